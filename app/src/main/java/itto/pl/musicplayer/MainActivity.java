@@ -1,27 +1,30 @@
 package itto.pl.musicplayer;
 
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.IBinder;
-import android.provider.MediaStore;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.os.Bundle;
 import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.ArrayList;
+import java.util.List;
 
-import itto.pl.music_visualizer.VerticalBarVisualizer;
+import itto.pl.music_visualizer.TextureBarVisualizer;
+import itto.pl.musicplayer.data.library.BrowseIndex;
+import itto.pl.musicplayer.data.library.SearchIndex;
 import itto.pl.musicplayer.data.model.Audio;
+import itto.pl.musicplayer.data.model.PlayQueue;
+import itto.pl.musicplayer.data.scanner.LibraryScanner;
 import itto.pl.musicplayer.service.MediaPlayerService;
-import itto.pl.musicplayer.utils.StorageUtil;
+import itto.pl.musicplayer.utils.MediaUtil.PlaybackStatus;
 
 import static itto.pl.musicplayer.utils.Constants.TAGG;
 
@@ -29,9 +32,26 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = TAGG + MainActivity.class.getSimpleName();
     private MediaPlayerService mPlayerService;
     private boolean mServiceBound = false;
-    private ArrayList<Audio> mAudioList;
-    public static final String BROADCAST_PLAY_NEW_AUDIO = "itto.pl.musicplayer.PlayNewAudio";
-    VerticalBarVisualizer mVisualizer;
+    // Same instance as the service queue once bound
+    private PlayQueue mQueue = PlayQueue.EMPTY;
+    // Index to play once the service is bound, -1 if none
+    private int mPendingAudioIndex = -1;
+    // Scanned tracks held until the service tells whether it restored the last queue, null after.
+    // The new ones are the tracks added to MediaStore since the last scan.
+    private ArrayList<Audio> mHeldTracks = new ArrayList<>();
+    private ArrayList<Audio> mHeldNewTracks = new ArrayList<>();
+    // True if the service restored the last queue, it already holds the stored library
+    private boolean mQueueRestored;
+    private LibraryScanner mLibraryScanner;
+    // Search as you type over the scanned tracks, main thread only
+    private final SearchIndex mSearchIndex = new SearchIndex();
+    // Artists, albums and folders saved with the playlist, then of the last finished scan.
+    // Handed to the service once bound
+    private BrowseIndex mBrowseIndex;
+    TextureBarVisualizer mVisualizer;
+    TextView mTitleView;
+    TextView mArtistView;
+    View mShuffleButton;
 
     private ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
@@ -42,6 +62,18 @@ public class MainActivity extends AppCompatActivity {
             mPlayerService = binder.getService();
             mServiceBound = true;
             Toast.makeText(MainActivity.this, "Service Bound", Toast.LENGTH_SHORT).show();
+            mPlayerService.setPlaybackListener(mPlaybackListener);
+            if (mBrowseIndex != null) {
+                mPlayerService.setBrowseIndex(mBrowseIndex);
+            }
+            if (mHeldTracks != null) {
+                // Pick up where the last run left off, scanned tracks only start a queue if there is none
+                mPlayerService.restoreQueue();
+            } else if (mPendingAudioIndex != -1) {
+                mPlayerService.setQueue(mQueue, mPendingAudioIndex);
+                mPendingAudioIndex = -1;
+            }
+            updateShuffleButton();
             Log.d(TAG, "Service Audio Session ID: "+mPlayerService.getSessionId());
             mVisualizer.setPlayer(mPlayerService.getSessionId());
         }
@@ -53,6 +85,50 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
+    private MediaPlayerService.PlaybackListener mPlaybackListener = new MediaPlayerService.PlaybackListener() {
+        @Override
+        public void onAudioChanged(Audio audio, int index) {
+            mTitleView.setText(audio.getTitle());
+            mArtistView.setText(audio.getArtist());
+        }
+
+        @Override
+        public void onPlaybackStatusChanged(PlaybackStatus status) {
+            // Nothing is captured while paused, stop the render thread too
+            mVisualizer.setPlaying(status == PlaybackStatus.PLAYING);
+        }
+
+        @Override
+        public void onQueueChanged(PlayQueue queue, PlayQueue.Change change) {
+            // Posted from the playback thread, the service may already hold a newer queue
+            if (mServiceBound) {
+                mQueue = mPlayerService.getQueue();
+            }
+        }
+
+        @Override
+        public void onQueueRestored(boolean restored) {
+            if (!mServiceBound || mHeldTracks == null) {
+                return;
+            }
+            List<Audio> held = mHeldTracks;
+            List<Audio> heldNew = mHeldNewTracks;
+            mHeldTracks = null;
+            mHeldNewTracks = null;
+            mQueueRestored = restored;
+            if (restored) {
+                mQueue = mPlayerService.getQueue();
+                if (!heldNew.isEmpty()) {
+                    mPlayerService.enqueue(heldNew);
+                    mQueue = mPlayerService.getQueue();
+                }
+            } else if (!held.isEmpty()) {
+                mQueue = PlayQueue.of(held);
+                mPlayerService.setQueue(mQueue, 0);
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -60,12 +136,39 @@ public class MainActivity extends AppCompatActivity {
         findViewById(R.id.now_playing_img_preview).setClipToOutline(true);
         mVisualizer = findViewById(R.id.now_playing_visualizer);
         mVisualizer.setColor(getColor(R.color.colorAccent));
+        mTitleView = findViewById(R.id.now_playing_song_title);
+        mArtistView = findViewById(R.id.now_playing_tv_song_artist);
+        mShuffleButton = findViewById(R.id.now_playing_btn_shuffle);
+        mShuffleButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (mServiceBound) {
+                    mPlayerService.setShuffle(!mPlayerService.isShuffle());
+                    updateShuffleButton();
+                }
+            }
+        });
+        updateShuffleButton();
+        mLibraryScanner = new LibraryScanner(getApplicationContext());
+        // The service restores the last queue as soon as it is bound, while the library loads
+        startPlayerService();
         loadAudio();
-        playAudio(0);
 //        playAudio("https://upload.wikimedia.org/wikipedia/commons/6/6c/Grieg_Lyric_Pieces_Kobold.ogg");
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mServiceBound) {
+            mPlayerService.setPlaybackListener(null);
+        }
+        if (mVisualizer != null) {
+            mVisualizer.release();
+        }
+        mLibraryScanner.shutdown();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         outState.putBoolean("ServiceState", mServiceBound);
@@ -95,48 +198,87 @@ public class MainActivity extends AppCompatActivity {
     private void playAudio(int audioIndex) {
         // Check is service is active
         if (!mServiceBound) {
-            // Store Serialized audioList to SharedPreferences
-            StorageUtil storageUtil = new StorageUtil(getApplicationContext());
-            storageUtil.storeAudio(mAudioList);
-            storageUtil.storeAudioIndex(audioIndex);
-
-            Intent playerIntent = new Intent(this, MediaPlayerService.class);
-            startService(playerIntent);
-            bindService(playerIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
+            // The queue is handed over in onServiceConnected
+            mPendingAudioIndex = audioIndex;
+            startPlayerService();
         } else {
-            // Store the new audio Index to SharedPreferences
-            StorageUtil storageUtil = new StorageUtil(getApplicationContext());
-            storageUtil.storeAudioIndex(audioIndex);
-
-            // Service is active
-            // Send a broadcast to the service -> PLAY_NEW_AUDIO
-            Intent broadcastIntent = new Intent(BROADCAST_PLAY_NEW_AUDIO);
-            sendBroadcast(broadcastIntent);
+            // Service is active, play from the shared queue
+            mPlayerService.playAtIndex(audioIndex);
         }
     }
 
+    private void startPlayerService() {
+        Intent playerIntent = new Intent(this, MediaPlayerService.class);
+        startService(playerIntent);
+        bindService(playerIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    private void updateShuffleButton() {
+        mShuffleButton.setAlpha(mServiceBound && mPlayerService.isShuffle() ? 1f : 0.4f);
+    }
+
     private void loadAudio() {
-        ContentResolver contentResolver = getContentResolver();
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String selection = MediaStore.Audio.Media.IS_MUSIC + "!=0";
-        String sortOrder = MediaStore.Audio.Media.TITLE + " ASC";
-        Cursor cursor = contentResolver.query(uri, null, selection, null, sortOrder);
-
-        if (cursor != null && cursor.getCount() > 0) {
-            mAudioList = new ArrayList<>();
-            while (cursor.moveToNext()) {
-                String data = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.DATA));
-                Log.d(TAG, "loadAudio: ");
-                String title = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.TITLE));
-                String album = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM));
-                String artist = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST));
-
-                // Save to audio list
-                mAudioList.add(new Audio(data, title, album, artist));
+        // Rows arrive page by page on the main thread, the scan itself runs on the scanner's thread.
+        // The library stored by the last run comes first, then the tracks changed since.
+        mLibraryScanner.scanCached(new LibraryScanner.Listener() {
+            @Override
+            public void onBrowseIndexRestored(BrowseIndex browseIndex) {
+                // Browsable right away, the scan only brings the changes
+                mBrowseIndex = browseIndex;
+            }
+
+            @Override
+            public void onPage(List<Audio> page, boolean incremental) {
+                Log.d(TAG, "loadAudio: page of " + page.size());
+                List<Audio> added = page;
+                if (incremental) {
+                    // Changed tracks already queued are only updated in the search index
+                    added = new ArrayList<>();
+                    for (Audio audio : page) {
+                        if (!mSearchIndex.contains(audio.getId())) {
+                            added.add(audio);
+                        }
+                    }
+                }
+                mSearchIndex.addAll(page);
+                if (added.isEmpty()) {
+                    return;
+                }
+                if (mHeldTracks != null) {
+                    // Queued once the service tells whether it restored the last queue
+                    mHeldTracks.addAll(added);
+                    if (incremental) {
+                        mHeldNewTracks.addAll(added);
+                    }
+                    return;
+                }
+                if (mQueueRestored && !incremental) {
+                    // The restored queue already holds the stored library
+                    return;
+                }
+                boolean firstPage = mQueue.isEmpty();
+                if (mServiceBound) {
+                    mPlayerService.enqueue(added);
+                    mQueue = mPlayerService.getQueue();
+                } else {
+                    mQueue = mQueue.withAppended(added);
+                }
+                if (firstPage) {
+                    // Start playing as soon as the first page is in
+                    playAudio(0);
+                }
             }
-        }
 
-        cursor.close();
+            @Override
+            public void onScanFinished(long[] liveIds, BrowseIndex browseIndex, boolean incremental) {
+                mSearchIndex.retainAll(liveIds);
+                mBrowseIndex = browseIndex;
+                if (mServiceBound) {
+                    mPlayerService.setBrowseIndex(browseIndex);
+                }
+                Log.d(TAG, "loadAudio: " + mQueue.size() + " audio files");
+            }
+        });
     }
 
 }
@@ -0,0 +1,330 @@
+package itto.pl.musicplayer.data.art;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+import static itto.pl.musicplayer.utils.Constants.TAGG;
+
+/**
+ * Album art for the MediaSession metadata and the notification.
+ * <p>
+ * Art is extracted from the audio file (embedded picture) or MediaStore, decoded off the calling
+ * thread with an {@code inSampleSize} matching the target size and kept in a byte bounded memory
+ * LRU. The decoded thumbnail is also written to a disk cache keyed by album id, so later runs skip
+ * the extraction. Callers only ever get an already decoded bitmap from {@link #get(long)} and ask for
+ * the missing ones with {@link #load(Audio, Listener)}.
+ */
+public class AlbumArtCache {
+    private static final String TAG = TAGG + AlbumArtCache.class.getSimpleName();
+    private static final String DIRECTORY = "album_art";
+    private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+    private static final int JPEG_QUALITY = 90;
+    // Albums known to have no art, they get the placeholder without another extraction
+    private static final int MISSING_CAPACITY = 256;
+
+    public interface Listener {
+        /**
+         * Called on the loader thread once the art of {@code albumId} is in memory.
+         *
+         * @param bitmap the album art, or the placeholder if the album has none
+         */
+        void onArtLoaded(long albumId, Bitmap bitmap);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Resources mResources;
+    private final int mPlaceholderRes;
+    private final int mTargetSize;
+    private final File mDirectory;
+    private final LruCache<Long, Bitmap> mMemoryCache;
+    private final LruCache<Long, Boolean> mMissing = new LruCache<>(MISSING_CAPACITY);
+    // Listeners of the loads in flight, per album id
+    private final HashMap<Long, List<Listener>> mPending = new HashMap<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AlbumArt");
+        }
+    });
+    private volatile Bitmap mPlaceholder;
+
+    /**
+     * @param placeholderRes drawable used for albums without art
+     * @param targetSize     edge in pixels of the largest surface the art is shown on
+     * @param maxBytes       budget of the memory cache
+     */
+    public AlbumArtCache(Context context, int placeholderRes, int targetSize, int maxBytes) {
+        mContentResolver = context.getContentResolver();
+        mResources = context.getResources();
+        mPlaceholderRes = placeholderRes;
+        mTargetSize = targetSize;
+        mDirectory = new File(context.getCacheDir(), DIRECTORY);
+        mMemoryCache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        // Decode the placeholder up front, so even the first update does not decode on its caller
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                placeholder();
+            }
+        });
+    }
+
+    /**
+     * @return the art of {@code albumId} if it is in memory, the placeholder if the album is known
+     * to have none, null otherwise. Never decodes.
+     */
+    public Bitmap get(long albumId) {
+        Bitmap bitmap = mMemoryCache.get(albumId);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        if (albumId <= 0 || mMissing.get(albumId) != null) {
+            return mPlaceholder;
+        }
+        return null;
+    }
+
+    /**
+     * @return the placeholder if it has been decoded already, null otherwise
+     */
+    public Bitmap getPlaceholder() {
+        return mPlaceholder;
+    }
+
+    /**
+     * Bring the art of {@code audio}'s album into memory, {@code listener} is told once it is there.
+     * Concurrent loads of the same album share one decode.
+     */
+    public void load(final Audio audio, Listener listener) {
+        final long albumId = audio.getAlbumId();
+        Bitmap cached = get(albumId);
+        if (cached != null) {
+            listener.onArtLoaded(albumId, cached);
+            return;
+        }
+        synchronized (mPending) {
+            List<Listener> listeners = mPending.get(albumId);
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+            listeners = new ArrayList<>(1);
+            listeners.add(listener);
+            mPending.put(albumId, listeners);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = loadBitmap(audio);
+                List<Listener> listeners;
+                synchronized (mPending) {
+                    listeners = mPending.remove(albumId);
+                }
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).onArtLoaded(albumId, bitmap);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the memory cache, e.g. on {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     * The disk cache is kept.
+     */
+    public void trimMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    // Runs on the loader thread
+    private Bitmap loadBitmap(Audio audio) {
+        long albumId = audio.getAlbumId();
+        if (albumId <= 0) {
+            // Not from MediaStore, nothing to key the art on
+            return placeholder();
+        }
+        Bitmap bitmap = decodeFile(diskFile(albumId));
+        if (bitmap == null) {
+            bitmap = extract(audio);
+            if (bitmap == null) {
+                mMissing.put(albumId, Boolean.TRUE);
+                return placeholder();
+            }
+            writeDiskCache(albumId, bitmap);
+        }
+        mMemoryCache.put(albumId, bitmap);
+        return bitmap;
+    }
+
+    // Runs on the loader thread
+    private Bitmap extract(Audio audio) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(audio.getData());
+            byte[] picture = retriever.getEmbeddedPicture();
+            if (picture != null) {
+                return decodeBytes(picture);
+            }
+        } catch (RuntimeException e) {
+            Log.d(TAG, "extract: no embedded art for " + audio.getData());
+        } finally {
+            retriever.release();
+        }
+        return decodeAlbumArtUri(audio.getAlbumId());
+    }
+
+    private Bitmap decodeBytes(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private Bitmap decodeAlbumArtUri(long albumId) {
+        Uri uri = ContentUris.withAppendedId(ALBUM_ART_URI, albumId);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        if (!decodeStream(uri, options)) {
+            return null;
+        }
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        InputStream in = null;
+        try {
+            in = mContentResolver.openInputStream(uri);
+            return in != null ? BitmapFactory.decodeStream(in, null, options) : null;
+        } catch (IOException | SecurityException e) {
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    // Bounds pass over the MediaStore album art, false if there is none
+    private boolean decodeStream(Uri uri, BitmapFactory.Options options) {
+        InputStream in = null;
+        try {
+            in = mContentResolver.openInputStream(uri);
+            if (in == null) {
+                return false;
+            }
+            BitmapFactory.decodeStream(in, null, options);
+            return options.outWidth > 0;
+        } catch (IOException | SecurityException e) {
+            return false;
+        } finally {
+            close(in);
+        }
+    }
+
+    private Bitmap decodeFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        // Thumbnails on disk are written at the target size already
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    private Bitmap placeholder() {
+        Bitmap placeholder = mPlaceholder;
+        if (placeholder == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(mResources, mPlaceholderRes, options);
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+            options.inJustDecodeBounds = false;
+            placeholder = mPlaceholder = BitmapFactory.decodeResource(mResources, mPlaceholderRes, options);
+        }
+        return placeholder;
+    }
+
+    /**
+     * Largest power of two keeping both edges at or above the target size
+     */
+    private int sampleSize(int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= mTargetSize && height / (sampleSize * 2) >= mTargetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void writeDiskCache(long albumId, Bitmap bitmap) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File file = diskFile(albumId);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "writeDiskCache: " + e.toString());
+            close(out);
+            tmp.delete();
+            return;
+        }
+        close(out);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    private File diskFile(long albumId) {
+        return new File(mDirectory, albumId + ".jpg");
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,872 @@
+package itto.pl.musicplayer.data.library;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * Immutable grouping of the library by artist, album and folder, sorted once when it is built so
+ * that browsing never sorts.
+ * <p>
+ * Artists are sorted by name, the albums of an artist follow each other sorted by name, and the
+ * tracks of an album follow each other sorted by path. An artist's albums and tracks are therefore
+ * contiguous ranges, stored as int offset arrays. Folders form a tree numbered breadth first from
+ * {@link #ROOT_FOLDER}, so the children of a folder are a contiguous range as well. A page of any
+ * group is read in O(page).
+ * <p>
+ * Names are sorted by collation keys of the default locale, computed once per distinct name by the
+ * {@link Builder} and kept with the index. The builder stays alive across rescans and only moves the
+ * tracks that changed, at launch it is seeded from the index saved with the playlist.
+ */
+public final class BrowseIndex {
+    public static final int ROOT_FOLDER = 0;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Audio[] mTracks;
+    // Language tag of the locale the keys were computed with
+    private final String mLocale;
+
+    private final String[] mArtistNames;
+    private final byte[][] mArtistKeys;
+    // Albums of artist a are [mArtistAlbumStart[a], mArtistAlbumStart[a + 1])
+    private final int[] mArtistAlbumStart;
+
+    private final String[] mAlbumNames;
+    private final byte[][] mAlbumKeys;
+    private final int[] mAlbumArtists;
+    // Tracks of album b are mAlbumTracks[mAlbumTrackStart[b] .. mAlbumTrackStart[b + 1])
+    private final int[] mAlbumTrackStart;
+    private final int[] mAlbumTracks;
+
+    // Last path segment of every folder, the root has none
+    private final String[] mFolderNames;
+    private final byte[][] mFolderKeys;
+    private final int[] mFolderParents;
+    // Children of folder f are the folders [mFolderChildStart[f], mFolderChildStart[f + 1])
+    private final int[] mFolderChildStart;
+    private final int[] mFolderTrackStart;
+    private final int[] mFolderTracks;
+
+    private BrowseIndex(Audio[] tracks, String locale,
+                        String[] artistNames, byte[][] artistKeys, int[] artistAlbumStart,
+                        String[] albumNames, byte[][] albumKeys, int[] albumArtists,
+                        int[] albumTrackStart, int[] albumTracks,
+                        String[] folderNames, byte[][] folderKeys, int[] folderParents,
+                        int[] folderChildStart, int[] folderTrackStart, int[] folderTracks) {
+        mTracks = tracks;
+        mLocale = locale;
+        mArtistNames = artistNames;
+        mArtistKeys = artistKeys;
+        mArtistAlbumStart = artistAlbumStart;
+        mAlbumNames = albumNames;
+        mAlbumKeys = albumKeys;
+        mAlbumArtists = albumArtists;
+        mAlbumTrackStart = albumTrackStart;
+        mAlbumTracks = albumTracks;
+        mFolderNames = folderNames;
+        mFolderKeys = folderKeys;
+        mFolderParents = folderParents;
+        mFolderChildStart = folderChildStart;
+        mFolderTrackStart = folderTrackStart;
+        mFolderTracks = folderTracks;
+    }
+
+    public int getTrackCount() {
+        return mTracks.length;
+    }
+
+    public Audio getTrack(int position) {
+        return mTracks[position];
+    }
+
+    public int getArtistCount() {
+        return mArtistNames.length;
+    }
+
+    public String getArtistName(int artist) {
+        return mArtistNames[artist];
+    }
+
+    public int getArtistAlbumCount(int artist) {
+        return mArtistAlbumStart[artist + 1] - mArtistAlbumStart[artist];
+    }
+
+    /**
+     * @return album index of the {@code i}th album of {@code artist}
+     */
+    public int getArtistAlbum(int artist, int i) {
+        return mArtistAlbumStart[artist] + i;
+    }
+
+    public int getArtistTrackCount(int artist) {
+        return mAlbumTrackStart[mArtistAlbumStart[artist + 1]] - mAlbumTrackStart[mArtistAlbumStart[artist]];
+    }
+
+    /**
+     * @return up to {@code limit} tracks of every album of {@code artist}, from {@code offset}
+     */
+    public List<Audio> getArtistTracks(int artist, int offset, int limit) {
+        int start = mAlbumTrackStart[mArtistAlbumStart[artist]];
+        return page(mAlbumTracks, start, mAlbumTrackStart[mArtistAlbumStart[artist + 1]], offset, limit);
+    }
+
+    /**
+     * @return the first artist sorting at or after {@code name}, {@link #getArtistCount()} if none
+     */
+    public int findArtist(String name) {
+        return lowerBound(mArtistKeys, 0, mArtistKeys.length, collationKey(collator(), name));
+    }
+
+    public int getAlbumCount() {
+        return mAlbumNames.length;
+    }
+
+    public String getAlbumName(int album) {
+        return mAlbumNames[album];
+    }
+
+    public int getAlbumArtist(int album) {
+        return mAlbumArtists[album];
+    }
+
+    public int getAlbumTrackCount(int album) {
+        return mAlbumTrackStart[album + 1] - mAlbumTrackStart[album];
+    }
+
+    public List<Audio> getAlbumTracks(int album, int offset, int limit) {
+        return page(mAlbumTracks, mAlbumTrackStart[album], mAlbumTrackStart[album + 1], offset, limit);
+    }
+
+    public int getFolderCount() {
+        return mFolderNames.length;
+    }
+
+    /**
+     * @return last path segment of {@code folder}, null for the root
+     */
+    public String getFolderName(int folder) {
+        return mFolderNames[folder];
+    }
+
+    /**
+     * @return parent of {@code folder}, -1 for the root
+     */
+    public int getFolderParent(int folder) {
+        return mFolderParents[folder];
+    }
+
+    /**
+     * @return the full path of {@code folder}, "/" for the root
+     */
+    public String getFolderPath(int folder) {
+        if (folder == ROOT_FOLDER) {
+            return "/";
+        }
+        StringBuilder path = new StringBuilder();
+        for (int f = folder; f != ROOT_FOLDER; f = mFolderParents[f]) {
+            path.insert(0, mFolderNames[f]).insert(0, '/');
+        }
+        return path.toString();
+    }
+
+    public int getChildFolderCount(int folder) {
+        return mFolderChildStart[folder + 1] - mFolderChildStart[folder];
+    }
+
+    public int getChildFolder(int folder, int i) {
+        return mFolderChildStart[folder] + i;
+    }
+
+    public int getFolderTrackCount(int folder) {
+        return mFolderTrackStart[folder + 1] - mFolderTrackStart[folder];
+    }
+
+    public List<Audio> getFolderTracks(int folder, int offset, int limit) {
+        return page(mFolderTracks, mFolderTrackStart[folder], mFolderTrackStart[folder + 1], offset, limit);
+    }
+
+    /**
+     * @return true if the collation keys were computed for the current default locale
+     */
+    public boolean isCurrentLocale() {
+        return mLocale.equals(Locale.getDefault().toLanguageTag());
+    }
+
+    private List<Audio> page(int[] positions, int start, int end, int offset, int limit) {
+        int from = Math.min(start + offset, end);
+        int to = (int) Math.min((long) from + limit, end);
+        List<Audio> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(mTracks[positions[i]]);
+        }
+        return page;
+    }
+
+    /**
+     * Positions of the tracks of this index in {@code tracks}, matched by id
+     *
+     * @return null if a track of this index is missing from {@code tracks}
+     */
+    public int[] positionsIn(List<Audio> tracks) {
+        LongIntMap positionById = new LongIntMap(tracks.size());
+        for (int i = 0; i < tracks.size(); i++) {
+            positionById.put(tracks.get(i).getId(), i);
+        }
+        int[] positions = new int[mTracks.length];
+        for (int i = 0; i < mTracks.length; i++) {
+            positions[i] = positionById.get(mTracks[i].getId(), -1);
+            if (positions[i] < 0) {
+                return null;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Write the index with track positions mapped through {@code positions}, see {@link #positionsIn(List)}.
+     * Big endian, read back by {@link #read(ByteBuffer, List)}.
+     */
+    public void write(DataOutput out, int[] positions) throws IOException {
+        writeString(out, mLocale);
+        writeNames(out, mArtistNames, mArtistKeys);
+        writeInts(out, mArtistAlbumStart);
+        writeNames(out, mAlbumNames, mAlbumKeys);
+        writeInts(out, mAlbumArtists);
+        writeInts(out, mAlbumTrackStart);
+        writePositions(out, mAlbumTracks, positions);
+        writeNames(out, mFolderNames, mFolderKeys);
+        writeInts(out, mFolderParents);
+        writeInts(out, mFolderChildStart);
+        writeInts(out, mFolderTrackStart);
+        writePositions(out, mFolderTracks, positions);
+    }
+
+    /**
+     * Read an index written by {@link #write(DataOutput, int[])}. Every count, offset and position
+     * is checked, so a damaged index fails here rather than while browsing.
+     *
+     * @param tracks the tracks the positions were mapped to
+     * @throws IllegalArgumentException           if the index is inconsistent
+     * @throws java.nio.BufferUnderflowException if the index is truncated
+     */
+    public static BrowseIndex read(ByteBuffer buffer, List<Audio> tracks) {
+        String locale = readString(buffer);
+        if (locale == null) {
+            throw new IllegalArgumentException("No locale");
+        }
+        // A name takes at least its string length and its key length
+        int artistCount = readCount(buffer, 8);
+        String[] artistNames = new String[artistCount];
+        byte[][] artistKeys = new byte[artistCount][];
+        readNames(buffer, artistNames, artistKeys);
+        int[] artistAlbumStart = readInts(buffer);
+        int albumCount = readCount(buffer, 8);
+        String[] albumNames = new String[albumCount];
+        byte[][] albumKeys = new byte[albumCount][];
+        readNames(buffer, albumNames, albumKeys);
+        int[] albumArtists = readInts(buffer);
+        int[] albumTrackStart = readInts(buffer);
+        int[] albumTracks = readInts(buffer);
+        int folderCount = readCount(buffer, 8);
+        String[] folderNames = new String[folderCount];
+        byte[][] folderKeys = new byte[folderCount][];
+        readNames(buffer, folderNames, folderKeys);
+        int[] folderParents = readInts(buffer);
+        int[] folderChildStart = readInts(buffer);
+        int[] folderTrackStart = readInts(buffer);
+        int[] folderTracks = readInts(buffer);
+
+        checkStarts(artistAlbumStart, artistCount, 0, albumCount);
+        checkValues(albumArtists, albumCount, 0, artistCount);
+        checkStarts(albumTrackStart, albumCount, 0, albumTracks.length);
+        checkValues(albumTracks, albumTracks.length, 0, tracks.size());
+        if (folderCount == 0 || folderParents.length != folderCount || folderParents[ROOT_FOLDER] != -1) {
+            throw new IllegalArgumentException("No root folder");
+        }
+        for (int f = 1; f < folderCount; f++) {
+            // Numbered breadth first, a parent comes before its children
+            if (folderParents[f] < 0 || folderParents[f] >= f) {
+                throw new IllegalArgumentException("Bad parent of folder " + f);
+            }
+        }
+        checkStarts(folderChildStart, folderCount, 1, folderCount);
+        checkStarts(folderTrackStart, folderCount, 0, folderTracks.length);
+        checkValues(folderTracks, folderTracks.length, 0, tracks.size());
+
+        // The saved queue may hold tracks no group references, e.g. deleted since the index was built
+        int[] positionOf = new int[tracks.size()];
+        for (int position : albumTracks) {
+            positionOf[position] = 1;
+        }
+        int count = 0;
+        for (int i = 0; i < positionOf.length; i++) {
+            positionOf[i] = positionOf[i] != 0 ? count++ : -1;
+        }
+        Audio[] indexed = new Audio[count];
+        for (int i = 0; i < positionOf.length; i++) {
+            if (positionOf[i] >= 0) {
+                indexed[positionOf[i]] = tracks.get(i);
+            }
+        }
+        remap(albumTracks, positionOf);
+        remap(folderTracks, positionOf);
+        return new BrowseIndex(indexed, locale,
+                artistNames, artistKeys, artistAlbumStart,
+                albumNames, albumKeys, albumArtists, albumTrackStart, albumTracks,
+                folderNames, folderKeys, folderParents, folderChildStart, folderTrackStart, folderTracks);
+    }
+
+    private static void remap(int[] positions, int[] positionOf) {
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = positionOf[positions[i]];
+            if (positions[i] < 0) {
+                throw new IllegalArgumentException("Folder track missing from the albums");
+            }
+        }
+    }
+
+    private static void writeNames(DataOutput out, String[] names, byte[][] keys) throws IOException {
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            writeString(out, names[i]);
+            out.writeInt(keys[i].length);
+            out.write(keys[i]);
+        }
+    }
+
+    private static void readNames(ByteBuffer buffer, String[] names, byte[][] keys) {
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readString(buffer);
+            keys[i] = new byte[readCount(buffer, 1)];
+            buffer.get(keys[i]);
+        }
+    }
+
+    /**
+     * @param minSize bytes taken by each of the counted items at least
+     */
+    private static int readCount(ByteBuffer buffer, int minSize) {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * minSize > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * {@code count} + 1 offsets of consecutive ranges, from {@code first} up to {@code end}
+     */
+    private static void checkStarts(int[] starts, int count, int first, int end) {
+        if (starts.length != count + 1 || starts[0] != first || starts[count] != end) {
+            throw new IllegalArgumentException("Bad range offsets");
+        }
+        for (int i = 0; i < count; i++) {
+            if (starts[i] > starts[i + 1]) {
+                throw new IllegalArgumentException("Bad range offsets");
+            }
+        }
+    }
+
+    private static void checkValues(int[] values, int length, int min, int bound) {
+        if (values.length != length) {
+            throw new IllegalArgumentException("Bad length " + values.length);
+        }
+        for (int value : values) {
+            if (value < min || value >= bound) {
+                throw new IllegalArgumentException("Out of range " + value);
+            }
+        }
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writePositions(DataOutput out, int[] values, int[] positions) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(positions[value]);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[readCount(buffer, 4)];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * 4);
+        return values;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static Collator collator() {
+        Collator collator = Collator.getInstance();
+        // Case does not matter, accents do
+        collator.setStrength(Collator.SECONDARY);
+        return collator;
+    }
+
+    private static byte[] collationKey(Collator collator, String name) {
+        return collator.getCollationKey(name == null ? "" : name).toByteArray();
+    }
+
+    static int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static int lowerBound(byte[][] keys, int from, int to, byte[] key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (compareKeys(keys[middle], key) < 0) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Node of the artist and folder trees kept by the {@link Builder}
+     */
+    private static final class Group {
+        final String mName;
+        final byte[] mKey;
+        final Group mParent;
+        // Sorted by key, then by name
+        final ArrayList<Group> mChildren = new ArrayList<>(0);
+        // Builder slots, sorted by path
+        int[] mTracks = new int[0];
+        int mTrackCount;
+
+        Group(String name, byte[] key, Group parent) {
+            mName = name;
+            mKey = key;
+            mParent = parent;
+        }
+
+        boolean isEmpty() {
+            return mTrackCount == 0 && mChildren.isEmpty();
+        }
+    }
+
+    private static final Comparator<Group> GROUP_ORDER = new Comparator<Group>() {
+        @Override
+        public int compare(Group a, Group b) {
+            int byKey = compareKeys(a.mKey, b.mKey);
+            if (byKey != 0) {
+                return byKey;
+            }
+            // Names differing only in case or spelling of the same key stay separate groups
+            if (a.mName == null || b.mName == null) {
+                return a.mName == null ? (b.mName == null ? 0 : -1) : 1;
+            }
+            return a.mName.compareTo(b.mName);
+        }
+    };
+
+    /**
+     * Keeps the groups of the library sorted while tracks are added and removed, and flattens them
+     * into a {@link BrowseIndex} on {@link #build()}. Adding or removing a track costs a binary search
+     * and an array shift in its groups, collation keys are computed once per distinct name.
+     * Not thread safe.
+     */
+    public static final class Builder {
+        private final Collator mCollator = collator();
+        private final String mLocale = Locale.getDefault().toLanguageTag();
+        private final HashMap<String, byte[]> mKeys = new HashMap<>();
+
+        // Slot of every track, freed slots are reused
+        private Audio[] mTracks = new Audio[64];
+        private String[] mPaths = new String[64];
+        private Group[] mAlbumOf = new Group[64];
+        private Group[] mFolderOf = new Group[64];
+        private int mSlotCount;
+        private int[] mFreeSlots = new int[16];
+        private int mFreeCount;
+        private final LongIntMap mSlotById = new LongIntMap();
+
+        private final Group mArtists = new Group(null, new byte[0], null);
+        private final Group mFolders = new Group(null, new byte[0], null);
+
+        public Builder() {
+        }
+
+        /**
+         * Start from a built index, such as the one saved with the playlist, without computing a
+         * collation key or sorting anything. The tracks of {@code index} take the slots of their positions.
+         *
+         * @param index built for the current default locale, see {@link BrowseIndex#isCurrentLocale()}
+         */
+        public Builder(BrowseIndex index) {
+            if (!index.isCurrentLocale()) {
+                throw new IllegalArgumentException("Index keys are for " + index.mLocale);
+            }
+            int count = index.mTracks.length;
+            int capacity = Math.max(64, count);
+            mTracks = Arrays.copyOf(index.mTracks, capacity);
+            mPaths = new String[capacity];
+            mAlbumOf = new Group[capacity];
+            mFolderOf = new Group[capacity];
+            mSlotCount = count;
+            for (int slot = 0; slot < count; slot++) {
+                String path = mTracks[slot].getData();
+                mPaths[slot] = path == null ? "" : path;
+                mSlotById.put(mTracks[slot].getId(), slot);
+            }
+
+            for (int artist = 0; artist < index.mArtistNames.length; artist++) {
+                Group artistGroup = seedChild(mArtists, index.mArtistNames[artist], index.mArtistKeys[artist]);
+                for (int album = index.mArtistAlbumStart[artist]; album < index.mArtistAlbumStart[artist + 1]; album++) {
+                    Group albumGroup = seedChild(artistGroup, index.mAlbumNames[album], index.mAlbumKeys[album]);
+                    seedTracks(albumGroup, index.mAlbumTracks, index.mAlbumTrackStart[album],
+                            index.mAlbumTrackStart[album + 1], mAlbumOf);
+                }
+            }
+
+            // Numbered breadth first, a folder comes after its parent and in order among its siblings
+            Group[] folders = new Group[index.mFolderNames.length];
+            folders[ROOT_FOLDER] = mFolders;
+            for (int f = 0; f < folders.length; f++) {
+                if (f != ROOT_FOLDER) {
+                    folders[f] = seedChild(folders[index.mFolderParents[f]], index.mFolderNames[f], index.mFolderKeys[f]);
+                }
+                seedTracks(folders[f], index.mFolderTracks, index.mFolderTrackStart[f],
+                        index.mFolderTrackStart[f + 1], mFolderOf);
+            }
+
+            // Every track of a built index has an album, free any slot none refers to
+            for (int slot = 0; slot < count; slot++) {
+                if (mAlbumOf[slot] == null) {
+                    remove(mTracks[slot].getId());
+                }
+            }
+        }
+
+        /**
+         * @return number of tracks
+         */
+        public int size() {
+            return mSlotCount - mFreeCount;
+        }
+
+        /**
+         * @return true if the track is held as it is, with the same id and modification date
+         */
+        public boolean contains(Audio audio) {
+            int slot = mSlotById.get(audio.getId(), -1);
+            return slot >= 0 && mTracks[slot].getDateModified() == audio.getDateModified();
+        }
+
+        /**
+         * Add a track, replacing the track with the same id if there is one
+         */
+        public Builder add(Audio audio) {
+            remove(audio.getId());
+            int slot = mFreeCount > 0 ? mFreeSlots[--mFreeCount] : newSlot();
+            mTracks[slot] = audio;
+            mSlotById.put(audio.getId(), slot);
+            String path = audio.getData();
+            mPaths[slot] = path == null ? "" : path;
+
+            Group artist = child(mArtists, audio.getArtist());
+            Group album = child(artist, audio.getAlbum());
+            insertTrack(album, slot);
+            mAlbumOf[slot] = album;
+
+            int slash = path == null ? -1 : path.lastIndexOf('/');
+            Group folder = mFolders;
+            int start = 0;
+            while (start < slash) {
+                int end = path.indexOf('/', start);
+                if (end > start) {
+                    folder = child(folder, path.substring(start, end));
+                }
+                start = end + 1;
+            }
+            if (slash >= 0) {
+                insertTrack(folder, slot);
+                mFolderOf[slot] = folder;
+            }
+            return this;
+        }
+
+        public Builder addAll(List<Audio> audioList) {
+            for (int i = 0; i < audioList.size(); i++) {
+                add(audioList.get(i));
+            }
+            return this;
+        }
+
+        /**
+         * @return true if a track with this id was known
+         */
+        public boolean remove(long id) {
+            int slot = mSlotById.remove(id, -1);
+            if (slot < 0) {
+                return false;
+            }
+            if (mAlbumOf[slot] != null) {
+                removeTrack(mAlbumOf[slot], slot);
+            }
+            if (mFolderOf[slot] != null) {
+                removeTrack(mFolderOf[slot], slot);
+            }
+            mTracks[slot] = null;
+            mPaths[slot] = null;
+            mAlbumOf[slot] = null;
+            mFolderOf[slot] = null;
+            if (mFreeCount == mFreeSlots.length) {
+                mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeCount * 2);
+            }
+            mFreeSlots[mFreeCount++] = slot;
+            return true;
+        }
+
+        /**
+         * Remove every track whose id is missing from {@code liveIds}, as reported by a finished scan
+         *
+         * @param liveIds sorted ascending
+         */
+        public Builder retainAll(long[] liveIds) {
+            for (int slot = 0; slot < mSlotCount; slot++) {
+                Audio audio = mTracks[slot];
+                if (audio != null && Arrays.binarySearch(liveIds, audio.getId()) < 0) {
+                    remove(audio.getId());
+                }
+            }
+            return this;
+        }
+
+        public BrowseIndex build() {
+            // Tracks are numbered in slot order, skipping free slots
+            int[] positionOf = new int[mSlotCount];
+            Audio[] tracks = new Audio[size()];
+            int count = 0;
+            for (int slot = 0; slot < mSlotCount; slot++) {
+                if (mTracks[slot] != null) {
+                    positionOf[slot] = count;
+                    tracks[count++] = mTracks[slot];
+                }
+            }
+
+            int artistCount = mArtists.mChildren.size();
+            String[] artistNames = new String[artistCount];
+            byte[][] artistKeys = new byte[artistCount][];
+            int[] artistAlbumStart = new int[artistCount + 1];
+            int albumCount = 0;
+            for (Group artist : mArtists.mChildren) {
+                albumCount += artist.mChildren.size();
+            }
+            String[] albumNames = new String[albumCount];
+            byte[][] albumKeys = new byte[albumCount][];
+            int[] albumArtists = new int[albumCount];
+            int[] albumTrackStart = new int[albumCount + 1];
+            int[] albumTracks = new int[tracks.length];
+            int album = 0;
+            int track = 0;
+            for (int artist = 0; artist < artistCount; artist++) {
+                Group artistGroup = mArtists.mChildren.get(artist);
+                artistNames[artist] = artistGroup.mName;
+                artistKeys[artist] = artistGroup.mKey;
+                artistAlbumStart[artist] = album;
+                for (Group albumGroup : artistGroup.mChildren) {
+                    albumNames[album] = albumGroup.mName;
+                    albumKeys[album] = albumGroup.mKey;
+                    albumArtists[album] = artist;
+                    albumTrackStart[album] = track;
+                    track = copyTracks(albumGroup, positionOf, albumTracks, track);
+                    album++;
+                }
+            }
+            artistAlbumStart[artistCount] = album;
+            albumTrackStart[albumCount] = track;
+
+            // Breadth first, the children of every folder get consecutive numbers
+            ArrayList<Group> folders = new ArrayList<>();
+            ArrayList<Integer> parents = new ArrayList<>();
+            folders.add(mFolders);
+            parents.add(-1);
+            int folderTrackCount = 0;
+            for (int f = 0; f < folders.size(); f++) {
+                Group folder = folders.get(f);
+                folderTrackCount += folder.mTrackCount;
+                for (Group child : folder.mChildren) {
+                    folders.add(child);
+                    parents.add(f);
+                }
+            }
+            int folderCount = folders.size();
+            String[] folderNames = new String[folderCount];
+            byte[][] folderKeys = new byte[folderCount][];
+            int[] folderParents = new int[folderCount];
+            int[] folderChildStart = new int[folderCount + 1];
+            int[] folderTrackStart = new int[folderCount + 1];
+            int[] folderTracks = new int[folderTrackCount];
+            int child = 1;
+            track = 0;
+            for (int f = 0; f < folderCount; f++) {
+                Group folder = folders.get(f);
+                folderNames[f] = folder.mName;
+                folderKeys[f] = folder.mKey;
+                folderParents[f] = parents.get(f);
+                folderChildStart[f] = child;
+                child += folder.mChildren.size();
+                folderTrackStart[f] = track;
+                track = copyTracks(folder, positionOf, folderTracks, track);
+            }
+            folderChildStart[folderCount] = child;
+            folderTrackStart[folderCount] = track;
+
+            return new BrowseIndex(tracks, mLocale,
+                    artistNames, artistKeys, artistAlbumStart,
+                    albumNames, albumKeys, albumArtists, albumTrackStart, albumTracks,
+                    folderNames, folderKeys, folderParents, folderChildStart, folderTrackStart, folderTracks);
+        }
+
+        private static int copyTracks(Group group, int[] positionOf, int[] out, int offset) {
+            for (int i = 0; i < group.mTrackCount; i++) {
+                out[offset++] = positionOf[group.mTracks[i]];
+            }
+            return offset;
+        }
+
+        private int newSlot() {
+            if (mSlotCount == mTracks.length) {
+                int capacity = mSlotCount * 2;
+                mTracks = Arrays.copyOf(mTracks, capacity);
+                mPaths = Arrays.copyOf(mPaths, capacity);
+                mAlbumOf = Arrays.copyOf(mAlbumOf, capacity);
+                mFolderOf = Arrays.copyOf(mFolderOf, capacity);
+            }
+            return mSlotCount++;
+        }
+
+        /**
+         * @return the child of {@code parent} called {@code name}, inserted in order if missing
+         */
+        private Group child(Group parent, String name) {
+            Group probe = new Group(name, key(name), parent);
+            int index = Collections.binarySearch(parent.mChildren, probe, GROUP_ORDER);
+            if (index >= 0) {
+                return parent.mChildren.get(index);
+            }
+            parent.mChildren.add(-index - 1, probe);
+            return probe;
+        }
+
+        /**
+         * Append a child to {@code parent}, only used while seeding from an index that is already sorted
+         */
+        private Group seedChild(Group parent, String name, byte[] key) {
+            Group child = new Group(name, key, parent);
+            parent.mChildren.add(child);
+            mKeys.put(name == null ? "" : name, key);
+            return child;
+        }
+
+        private static void seedTracks(Group group, int[] tracks, int from, int to, Group[] groupOf) {
+            group.mTracks = Arrays.copyOfRange(tracks, from, to);
+            group.mTrackCount = to - from;
+            for (int slot : group.mTracks) {
+                groupOf[slot] = group;
+            }
+        }
+
+        private byte[] key(String name) {
+            String text = name == null ? "" : name;
+            byte[] key = mKeys.get(text);
+            if (key == null) {
+                key = collationKey(mCollator, text);
+                mKeys.put(text, key);
+            }
+            return key;
+        }
+
+        private void insertTrack(Group group, int slot) {
+            int index = trackIndex(group, slot);
+            if (group.mTrackCount == group.mTracks.length) {
+                group.mTracks = Arrays.copyOf(group.mTracks, Math.max(4, group.mTrackCount * 2));
+            }
+            System.arraycopy(group.mTracks, index, group.mTracks, index + 1, group.mTrackCount - index);
+            group.mTracks[index] = slot;
+            group.mTrackCount++;
+        }
+
+        private void removeTrack(Group group, int slot) {
+            int index = trackIndex(group, slot);
+            System.arraycopy(group.mTracks, index + 1, group.mTracks, index, group.mTrackCount - index - 1);
+            group.mTrackCount--;
+            // Drop groups left empty, up to the root
+            while (group.mParent != null && group.isEmpty()) {
+                group.mParent.mChildren.remove(group);
+                group = group.mParent;
+            }
+        }
+
+        /**
+         * @return index of {@code slot} in the tracks of {@code group}, or where it belongs
+         */
+        private int trackIndex(Group group, int slot) {
+            String path = mPaths[slot];
+            int low = 0;
+            int high = group.mTrackCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int other = group.mTracks[middle];
+                int order = String.CASE_INSENSITIVE_ORDER.compare(mPaths[other], path);
+                if (order == 0) {
+                    order = other - slot;
+                }
+                if (order < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
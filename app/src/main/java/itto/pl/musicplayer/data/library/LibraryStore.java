@@ -0,0 +1,407 @@
+package itto.pl.musicplayer.data.library;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * Immutable columnar store of library tracks.
+ * <p>
+ * Numbers are kept in parallel primitive arrays. Artist, album and folder names repeat across many
+ * tracks, they are stored once in a dictionary and referenced by int. Titles and file names are
+ * unique per track and kept as UTF-8 in one byte array, decoded when read. A track costs about a
+ * hundred bytes this way, against several hundred for an {@link Audio} with its four strings.
+ * <p>
+ * {@link #get(int)} hands out a {@link Track}, a small view that can go wherever an {@link Audio}
+ * is expected. Views are created on demand, keep them only as long as needed.
+ */
+public final class LibraryStore {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte FLAG_NULL_TITLE = 1;
+    private static final byte FLAG_NULL_DATA = 2;
+
+    public static final LibraryStore EMPTY = new Builder().build();
+
+    private final int mSize;
+    private final long[] mIds;
+    private final long[] mAlbumIds;
+    private final long[] mDateModified;
+    // Refs into mStrings, -1 for null
+    private final int[] mArtistRefs;
+    private final int[] mAlbumRefs;
+    private final int[] mFolderRefs;
+    // Shared with the builder and the other stores it built, entries are never changed once set
+    private final String[] mStrings;
+    // Title of track i in [2i, 2i + 1], its file name in [2i + 1, 2i + 2] of mTextOffsets
+    private final byte[] mText;
+    private final int[] mTextOffsets;
+    private final byte[] mFlags;
+
+    private LibraryStore(Builder builder) {
+        mSize = builder.mSize;
+        mIds = Arrays.copyOf(builder.mIds, mSize);
+        mAlbumIds = Arrays.copyOf(builder.mAlbumIds, mSize);
+        mDateModified = Arrays.copyOf(builder.mDateModified, mSize);
+        mArtistRefs = Arrays.copyOf(builder.mArtistRefs, mSize);
+        mAlbumRefs = Arrays.copyOf(builder.mAlbumRefs, mSize);
+        mFolderRefs = Arrays.copyOf(builder.mFolderRefs, mSize);
+        mStrings = builder.mStrings;
+        mText = Arrays.copyOf(builder.mText, builder.mTextSize);
+        mTextOffsets = Arrays.copyOf(builder.mTextOffsets, mSize * 2 + 1);
+        mFlags = Arrays.copyOf(builder.mFlags, mSize);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return a view of the track at {@code index}
+     */
+    public Track get(int index) {
+        checkIndex(index);
+        return new Track(this, index);
+    }
+
+    /**
+     * @return a read only list of views over every track, each call of get creates a new view
+     */
+    public List<Audio> asList() {
+        return new TrackList(this);
+    }
+
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    public long getAlbumId(int index) {
+        return mAlbumIds[index];
+    }
+
+    public long getDateModified(int index) {
+        return mDateModified[index];
+    }
+
+    public String getTitle(int index) {
+        if ((mFlags[index] & FLAG_NULL_TITLE) != 0) {
+            return null;
+        }
+        return decode(mTextOffsets[index * 2], mTextOffsets[index * 2 + 1]);
+    }
+
+    /**
+     * @return the file name of the track, without its folder
+     */
+    public String getFileName(int index) {
+        if ((mFlags[index] & FLAG_NULL_DATA) != 0) {
+            return null;
+        }
+        return decode(mTextOffsets[index * 2 + 1], mTextOffsets[index * 2 + 2]);
+    }
+
+    /**
+     * @return the full path of the track
+     */
+    public String getData(int index) {
+        String name = getFileName(index);
+        int folderRef = mFolderRefs[index];
+        return name == null || folderRef < 0 ? name : mStrings[folderRef] + '/' + name;
+    }
+
+    public String getArtist(int index) {
+        return getString(mArtistRefs[index]);
+    }
+
+    public String getAlbum(int index) {
+        return getString(mAlbumRefs[index]);
+    }
+
+    public String getFolder(int index) {
+        return getString(mFolderRefs[index]);
+    }
+
+    /**
+     * @return dictionary ref of the artist, equal refs mean equal names. -1 for null.
+     */
+    public int getArtistRef(int index) {
+        return mArtistRefs[index];
+    }
+
+    /**
+     * @return dictionary ref of the album, equal refs mean equal names. -1 for null.
+     */
+    public int getAlbumRef(int index) {
+        return mAlbumRefs[index];
+    }
+
+    /**
+     * @return dictionary ref of the folder holding the track, -1 if the path has none
+     */
+    public int getFolderRef(int index) {
+        return mFolderRefs[index];
+    }
+
+    /**
+     * @return the dictionary string of {@code ref}, null for -1
+     */
+    public String getString(int ref) {
+        return ref < 0 ? null : mStrings[ref];
+    }
+
+    private String decode(int start, int end) {
+        return new String(mText, start, end - start, UTF_8);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+    }
+
+    /**
+     * {@link Audio} view of one track of a {@link LibraryStore}. Immutable, the setters throw.
+     */
+    public static final class Track extends Audio {
+        private final LibraryStore mStore;
+        private final int mIndex;
+
+        Track(LibraryStore store, int index) {
+            mStore = store;
+            mIndex = index;
+        }
+
+        public LibraryStore getStore() {
+            return mStore;
+        }
+
+        /**
+         * @return position of the track in its store
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        @Override
+        public long getId() {
+            return mStore.getId(mIndex);
+        }
+
+        @Override
+        public String getData() {
+            return mStore.getData(mIndex);
+        }
+
+        @Override
+        public String getTitle() {
+            return mStore.getTitle(mIndex);
+        }
+
+        @Override
+        public String getAlbum() {
+            return mStore.getAlbum(mIndex);
+        }
+
+        @Override
+        public String getArtist() {
+            return mStore.getArtist(mIndex);
+        }
+
+        @Override
+        public long getAlbumId() {
+            return mStore.getAlbumId(mIndex);
+        }
+
+        @Override
+        public long getDateModified() {
+            return mStore.getDateModified(mIndex);
+        }
+
+        @Override
+        public void setId(long id) {
+            throw immutable();
+        }
+
+        @Override
+        public void setData(String data) {
+            throw immutable();
+        }
+
+        @Override
+        public void setTitle(String title) {
+            throw immutable();
+        }
+
+        @Override
+        public void setAlbum(String album) {
+            throw immutable();
+        }
+
+        @Override
+        public void setArtist(String artist) {
+            throw immutable();
+        }
+
+        @Override
+        public void setAlbumId(long albumId) {
+            throw immutable();
+        }
+
+        @Override
+        public void setDateModified(long dateModified) {
+            throw immutable();
+        }
+
+        private static UnsupportedOperationException immutable() {
+            return new UnsupportedOperationException("Library tracks are immutable");
+        }
+
+        // Serialized as a plain Audio, the store is not serializable
+        private Object writeReplace() {
+            return new Audio(getId(), getData(), getTitle(), getAlbum(), getArtist(), getAlbumId(),
+                    getDateModified());
+        }
+    }
+
+    private static final class TrackList extends AbstractList<Audio> implements RandomAccess {
+        private final LibraryStore mStore;
+
+        TrackList(LibraryStore store) {
+            mStore = store;
+        }
+
+        @Override
+        public Audio get(int index) {
+            return mStore.get(index);
+        }
+
+        @Override
+        public int size() {
+            return mStore.size();
+        }
+    }
+
+    /**
+     * Collects tracks into a {@link LibraryStore}. Every {@link #build()} returns the tracks added since
+     * the previous one, the dictionary is kept so stores built one page at a time share their strings.
+     * Not thread safe.
+     */
+    public static final class Builder {
+        private int mSize;
+        private long[] mIds = new long[16];
+        private long[] mAlbumIds = new long[16];
+        private long[] mDateModified = new long[16];
+        private int[] mArtistRefs = new int[16];
+        private int[] mAlbumRefs = new int[16];
+        private int[] mFolderRefs = new int[16];
+        private byte[] mFlags = new byte[16];
+        private int[] mTextOffsets = new int[33];
+        private byte[] mText = new byte[1024];
+        private int mTextSize;
+
+        private final HashMap<String, Integer> mRefs = new HashMap<>();
+        private String[] mStrings = new String[64];
+        private int mStringCount;
+
+        /**
+         * @return number of tracks added since the last {@link #build()}
+         */
+        public int size() {
+            return mSize;
+        }
+
+        public Builder add(Audio audio) {
+            return add(audio.getId(), audio.getData(), audio.getTitle(), audio.getAlbum(), audio.getArtist(),
+                    audio.getAlbumId(), audio.getDateModified());
+        }
+
+        public Builder addAll(List<Audio> audioList) {
+            for (int i = 0; i < audioList.size(); i++) {
+                add(audioList.get(i));
+            }
+            return this;
+        }
+
+        public Builder add(long id, String data, String title, String album, String artist,
+                           long albumId, long dateModified) {
+            if (mSize == mIds.length) {
+                grow();
+            }
+            int index = mSize++;
+            mIds[index] = id;
+            mAlbumIds[index] = albumId;
+            mDateModified[index] = dateModified;
+            mArtistRefs[index] = intern(artist);
+            mAlbumRefs[index] = intern(album);
+            byte flags = 0;
+            if (title == null) {
+                flags |= FLAG_NULL_TITLE;
+            } else {
+                appendText(title);
+            }
+            mTextOffsets[index * 2 + 1] = mTextSize;
+            int slash = data == null ? -1 : data.lastIndexOf('/');
+            mFolderRefs[index] = slash < 0 ? -1 : intern(data.substring(0, slash));
+            if (data == null) {
+                flags |= FLAG_NULL_DATA;
+            } else {
+                appendText(slash < 0 ? data : data.substring(slash + 1));
+            }
+            mTextOffsets[index * 2 + 2] = mTextSize;
+            mFlags[index] = flags;
+            return this;
+        }
+
+        /**
+         * @return the tracks added since the last call
+         */
+        public LibraryStore build() {
+            LibraryStore store = new LibraryStore(this);
+            mSize = 0;
+            mTextSize = 0;
+            return store;
+        }
+
+        private int intern(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer ref = mRefs.get(value);
+            if (ref == null) {
+                if (mStringCount == mStrings.length) {
+                    // Stores built so far keep the old array, they never read past their own refs
+                    mStrings = Arrays.copyOf(mStrings, mStringCount * 2);
+                }
+                ref = mStringCount++;
+                mStrings[ref] = value;
+                mRefs.put(value, ref);
+            }
+            return ref;
+        }
+
+        private void appendText(String text) {
+            byte[] bytes = text.getBytes(UTF_8);
+            if (mTextSize + bytes.length > mText.length) {
+                mText = Arrays.copyOf(mText, Math.max(mText.length * 2, mTextSize + bytes.length));
+            }
+            System.arraycopy(bytes, 0, mText, mTextSize, bytes.length);
+            mTextSize += bytes.length;
+        }
+
+        private void grow() {
+            int capacity = mIds.length * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+            mDateModified = Arrays.copyOf(mDateModified, capacity);
+            mArtistRefs = Arrays.copyOf(mArtistRefs, capacity);
+            mAlbumRefs = Arrays.copyOf(mAlbumRefs, capacity);
+            mFolderRefs = Arrays.copyOf(mFolderRefs, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mTextOffsets = Arrays.copyOf(mTextOffsets, capacity * 2 + 1);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package itto.pl.musicplayer.data.library;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to int values, without boxing either of them.
+ * Not thread safe.
+ */
+final class LongIntMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean[] mUsed;
+    private int mSize;
+    private int mMask;
+
+    LongIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongIntMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the value of {@code key}, {@code missing} if there is none
+     */
+    int get(long key, int missing) {
+        int slot = find(key);
+        return slot < 0 ? missing : mValues[slot];
+    }
+
+    void put(long key, int value) {
+        int slot = slotOf(key);
+        while (mUsed[slot]) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mUsed[slot] = true;
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize > (mMask + 1) / 4 * 3) {
+            rehash(capacityFor(mSize));
+        }
+    }
+
+    /**
+     * @return the value {@code key} had, {@code missing} if there was none
+     */
+    int remove(long key, int missing) {
+        int slot = find(key);
+        if (slot < 0) {
+            return missing;
+        }
+        int value = mValues[slot];
+        // Shift the following entries of the probe run back so lookups don't stop at the hole
+        int hole = slot;
+        int next = (hole + 1) & mMask;
+        while (mUsed[next]) {
+            int home = slotOf(mKeys[next]);
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        mUsed[hole] = false;
+        mSize--;
+        return value;
+    }
+
+    void clear() {
+        Arrays.fill(mUsed, false);
+        mSize = 0;
+    }
+
+    private int find(long key) {
+        int slot = slotOf(key);
+        while (mUsed[slot]) {
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private int slotOf(long key) {
+        // Murmur3 finalizer, ids and packed characters are far from uniform
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mMask;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                int slot = slotOf(keys[i]);
+                while (mUsed[slot]) {
+                    slot = (slot + 1) & mMask;
+                }
+                mUsed[slot] = true;
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+        mMask = capacity - 1;
+    }
+
+    // Power of two keeping the load factor at or below one half
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,490 @@
+package itto.pl.musicplayer.data.library;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * In-memory search over the title, artist and album of the scanned tracks, for search as you type.
+ * <p>
+ * Text is normalized to lower case without diacritics and split into tokens on anything that is
+ * not a letter or digit. Every token is indexed by its one and two character prefixes and by all of
+ * its trigrams, each key owning a sorted posting list in a plain int array. A posting packs the
+ * document number with, per field, whether the key occurs there, starts a token and is the whole
+ * token. A query takes the shortest posting list among the keys of its tokens and only checks those
+ * documents, so its cost follows the rarest query token rather than the library size. A single
+ * query token of up to three characters is a single key, its postings are ranked without even
+ * looking at the text.
+ * <p>
+ * Query tokens of one or two characters match token prefixes, longer ones match anywhere in a
+ * token. Every query token must match. Tracks rank by field (title, then artist, then album) and
+ * by how well the token matches (whole token, prefix, infix), ties keep the order tracks were added.
+ * <p>
+ * Tracks are keyed by their MediaStore id, adding a known id replaces the track. Removed tracks
+ * leave a hole that is skipped by queries until enough of them pile up to rebuild the postings.
+ * Not thread safe, use it from one thread.
+ */
+public final class SearchIndex {
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int FIELD_COUNT = 3;
+    private static final int[] FIELD_WEIGHT = {4, 2, 1};
+
+    // Match quality multipliers
+    private static final int MATCH_INFIX = 1;
+    private static final int MATCH_PREFIX = 2;
+    private static final int MATCH_TOKEN = 3;
+
+    // Key kinds, stored above the 48 bits of up to three packed characters
+    private static final long KIND_TRIGRAM = 0;
+    private static final long KIND_PREFIX_1 = 1L << 48;
+    private static final long KIND_PREFIX_2 = 2L << 48;
+
+    // Low bits of a posting, three per field: key occurs, starts a token, is the whole token
+    private static final int FLAG_BITS = 3 * 3;
+    private static final int FLAG_OCCURS = 1;
+    private static final int FLAG_START = 2;
+    private static final int FLAG_TOKEN = 4;
+
+    // Postings are rebuilt once this many holes exist and they outnumber the live documents
+    private static final int MIN_HOLES_TO_COMPACT = 1024;
+
+    // Document number to track, null for a removed track
+    private Audio[] mDocs = new Audio[64];
+    // Normalized title, artist and album of every document, FIELD_COUNT per document
+    private String[] mFields = new String[64 * FIELD_COUNT];
+    private int mDocCount;
+    private int mHoles;
+    private final LongIntMap mDocById = new LongIntMap();
+
+    // Key to posting list slot, and the posting lists with their used length
+    private final LongIntMap mSlotByKey = new LongIntMap(4096);
+    private int[][] mPostings = new int[256][];
+    private int[] mPostingSizes = new int[256];
+    private int mSlotCount;
+
+    // Bounded min-heap of packed score and document, reused by every query
+    private long[] mHeap = new long[16];
+
+    /**
+     * @return number of tracks in the index
+     */
+    public int size() {
+        return mDocCount - mHoles;
+    }
+
+    public boolean contains(long id) {
+        return mDocById.get(id, -1) >= 0;
+    }
+
+    /**
+     * Add a track, replacing the track with the same id if there is one
+     */
+    public void add(Audio audio) {
+        int doc = mDocById.get(audio.getId(), -1);
+        if (doc >= 0) {
+            removeDoc(doc);
+        }
+        addDoc(audio);
+        compactIfNeeded();
+    }
+
+    public void addAll(List<Audio> audioList) {
+        for (int i = 0; i < audioList.size(); i++) {
+            add(audioList.get(i));
+        }
+    }
+
+    /**
+     * @return true if a track with this id was in the index
+     */
+    public boolean remove(long id) {
+        int doc = mDocById.get(id, -1);
+        if (doc < 0) {
+            return false;
+        }
+        removeDoc(doc);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Remove every track whose id is missing from {@code liveIds}, as reported by a finished scan
+     *
+     * @param liveIds sorted ascending
+     */
+    public void retainAll(long[] liveIds) {
+        for (int doc = 0; doc < mDocCount; doc++) {
+            Audio audio = mDocs[doc];
+            if (audio != null && Arrays.binarySearch(liveIds, audio.getId()) < 0) {
+                removeDoc(doc);
+            }
+        }
+        compactIfNeeded();
+    }
+
+    public void clear() {
+        Arrays.fill(mDocs, 0, mDocCount, null);
+        Arrays.fill(mFields, 0, mDocCount * FIELD_COUNT, null);
+        mDocCount = 0;
+        mHoles = 0;
+        mDocById.clear();
+        clearPostings();
+    }
+
+    /**
+     * @param limit maximum number of tracks returned
+     * @return the best matching tracks, best first. Empty for a query without any token.
+     */
+    public List<Audio> search(String query, int limit) {
+        String normalized = normalize(query);
+        if (normalized.length() == 0 || limit <= 0) {
+            return new ArrayList<>(0);
+        }
+        String[] tokens = normalized.substring(1).split(" ");
+        int driver = shortestPosting(tokens);
+        if (driver < 0) {
+            return new ArrayList<>(0);
+        }
+        if (mHeap.length < limit) {
+            mHeap = new long[limit];
+        }
+        int[] posting = mPostings[driver];
+        int postingSize = mPostingSizes[driver];
+        // The driver key is the whole query, its flags tell everything about the match
+        boolean exact = tokens.length == 1 && tokens[0].length() <= 3;
+        int heapSize = 0;
+        for (int i = 0; i < postingSize; i++) {
+            int doc = posting[i] >>> FLAG_BITS;
+            if (mDocs[doc] == null) {
+                continue;
+            }
+            int score = exact ? score(posting[i]) : score(doc, tokens);
+            if (score == 0) {
+                continue;
+            }
+            // Higher score first, then lower document number
+            long entry = ((long) score << 32) | (Integer.MAX_VALUE - doc);
+            if (heapSize < limit) {
+                mHeap[heapSize] = entry;
+                siftUp(mHeap, heapSize++);
+            } else if (entry > mHeap[0]) {
+                mHeap[0] = entry;
+                siftDown(mHeap, heapSize);
+            }
+        }
+        Arrays.sort(mHeap, 0, heapSize);
+        List<Audio> result = new ArrayList<>(heapSize);
+        for (int i = heapSize - 1; i >= 0; i--) {
+            result.add(mDocs[Integer.MAX_VALUE - (int) mHeap[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Lower case {@code text}, strip its diacritics and reduce everything that is not a letter or a
+     * digit to single spaces.
+     *
+     * @return the tokens of {@code text}, each preceded by a space, empty if there is none
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        boolean ascii = true;
+        for (int i = 0; i < text.length() && ascii; i++) {
+            ascii = text.charAt(i) < 0x80;
+        }
+        if (!ascii) {
+            // Split accented letters into base letter and combining mark, the marks are dropped below
+            text = Normalizer.normalize(text, Normalizer.Form.NFD);
+        }
+        StringBuilder builder = new StringBuilder(text.length() + 1);
+        boolean separator = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (separator) {
+                    builder.append(' ');
+                    separator = false;
+                }
+                appendFolded(builder, c);
+            } else {
+                separator = true;
+            }
+        }
+        return builder.toString();
+    }
+
+    // Letters NFD leaves alone
+    private static void appendFolded(StringBuilder builder, char c) {
+        switch (c) {
+            case '\u00df':
+                builder.append("ss");
+                break;
+            case '\u00c6':
+            case '\u00e6':
+                builder.append("ae");
+                break;
+            case '\u00d8':
+            case '\u00f8':
+                builder.append('o');
+                break;
+            case '\u0110':
+            case '\u0111':
+                builder.append('d');
+                break;
+            case '\u0141':
+            case '\u0142':
+                builder.append('l');
+                break;
+            default:
+                builder.append(c < 0x80 ? (char) (c | (c >= 'A' && c <= 'Z' ? 0x20 : 0))
+                        : String.valueOf(c).toLowerCase(Locale.ROOT).charAt(0));
+        }
+    }
+
+    private void addDoc(Audio audio) {
+        if (mDocCount == mDocs.length) {
+            mDocs = Arrays.copyOf(mDocs, mDocCount * 2);
+            mFields = Arrays.copyOf(mFields, mDocCount * 2 * FIELD_COUNT);
+        }
+        int doc = mDocCount++;
+        mDocs[doc] = audio;
+        mDocById.put(audio.getId(), doc);
+        indexField(doc, FIELD_TITLE, audio.getTitle());
+        indexField(doc, FIELD_ARTIST, audio.getArtist());
+        indexField(doc, FIELD_ALBUM, audio.getAlbum());
+    }
+
+    private void indexField(int doc, int field, String text) {
+        String normalized = normalize(text);
+        mFields[doc * FIELD_COUNT + field] = normalized;
+        int length = normalized.length();
+        int start = 1;
+        while (start < length) {
+            int end = normalized.indexOf(' ', start);
+            if (end < 0) {
+                end = length;
+            }
+            int tokenLength = end - start;
+            int flags = FLAG_OCCURS | FLAG_START;
+            addPosting(prefixKey(normalized, start, start + 1), doc,
+                    flags(field, tokenLength == 1 ? flags | FLAG_TOKEN : flags));
+            if (tokenLength >= 2) {
+                addPosting(prefixKey(normalized, start, start + 2), doc,
+                        flags(field, tokenLength == 2 ? flags | FLAG_TOKEN : flags));
+            }
+            for (int i = start; i + 3 <= end; i++) {
+                if (i > start) {
+                    flags = FLAG_OCCURS;
+                } else if (tokenLength == 3) {
+                    flags |= FLAG_TOKEN;
+                }
+                addPosting(trigramKey(normalized, i), doc, flags(field, flags));
+            }
+            start = end + 1;
+        }
+    }
+
+    private static int flags(int field, int flags) {
+        return flags << (field * 3);
+    }
+
+    private void addPosting(long key, int doc, int flags) {
+        int slot = mSlotByKey.get(key, -1);
+        if (slot < 0) {
+            slot = mSlotCount++;
+            if (slot == mPostings.length) {
+                mPostings = Arrays.copyOf(mPostings, slot * 2);
+                mPostingSizes = Arrays.copyOf(mPostingSizes, slot * 2);
+            }
+            mPostings[slot] = new int[4];
+            mSlotByKey.put(key, slot);
+        }
+        int[] posting = mPostings[slot];
+        int size = mPostingSizes[slot];
+        // Documents are only ever appended, so a repeated key of the same document is the last entry
+        if (size > 0 && posting[size - 1] >>> FLAG_BITS == doc) {
+            posting[size - 1] |= flags;
+            return;
+        }
+        if (size == posting.length) {
+            posting = Arrays.copyOf(posting, size * 2);
+            mPostings[slot] = posting;
+        }
+        posting[size] = doc << FLAG_BITS | flags;
+        mPostingSizes[slot] = size + 1;
+    }
+
+    private void removeDoc(int doc) {
+        mDocById.remove(mDocs[doc].getId(), -1);
+        mDocs[doc] = null;
+        mHoles++;
+    }
+
+    private void compactIfNeeded() {
+        if (mHoles < MIN_HOLES_TO_COMPACT || mHoles < mDocCount - mHoles) {
+            return;
+        }
+        Audio[] live = new Audio[mDocCount - mHoles];
+        int count = 0;
+        for (int doc = 0; doc < mDocCount; doc++) {
+            if (mDocs[doc] != null) {
+                live[count++] = mDocs[doc];
+            }
+        }
+        clear();
+        for (Audio audio : live) {
+            addDoc(audio);
+        }
+    }
+
+    private void clearPostings() {
+        mSlotByKey.clear();
+        Arrays.fill(mPostings, 0, mSlotCount, null);
+        Arrays.fill(mPostingSizes, 0, mSlotCount, 0);
+        mSlotCount = 0;
+    }
+
+    /**
+     * @return slot of the shortest posting list among the keys of every token, -1 if one of the
+     * keys is not indexed at all so nothing can match
+     */
+    private int shortestPosting(String[] tokens) {
+        int best = -1;
+        for (String token : tokens) {
+            int length = token.length();
+            if (length < 3) {
+                best = shorter(best, mSlotByKey.get(prefixKey(token, 0, length), -1));
+                if (best < 0) {
+                    return -1;
+                }
+            } else {
+                for (int i = 0; i + 3 <= length; i++) {
+                    best = shorter(best, mSlotByKey.get(trigramKey(token, i), -1));
+                    if (best < 0) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private int shorter(int best, int slot) {
+        if (slot < 0) {
+            return -1;
+        }
+        return best < 0 || mPostingSizes[slot] < mPostingSizes[best] ? slot : best;
+    }
+
+    /**
+     * @return score of the single key query matching {@code posting}
+     */
+    private static int score(int posting) {
+        int best = 0;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            int flags = posting >>> (field * 3);
+            int match = (flags & FLAG_TOKEN) != 0 ? MATCH_TOKEN
+                    : (flags & FLAG_START) != 0 ? MATCH_PREFIX
+                    : (flags & FLAG_OCCURS) != 0 ? MATCH_INFIX : 0;
+            best = Math.max(best, match * FIELD_WEIGHT[field]);
+        }
+        return best;
+    }
+
+    /**
+     * @return score of {@code doc} for the query tokens, 0 if one of them does not match
+     */
+    private int score(int doc, String[] tokens) {
+        int total = 0;
+        for (String token : tokens) {
+            int best = 0;
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                int match = match(mFields[doc * FIELD_COUNT + field], token);
+                best = Math.max(best, match * FIELD_WEIGHT[field]);
+            }
+            if (best == 0) {
+                return 0;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    /**
+     * @return the best match quality of {@code token} in the normalized {@code field}, 0 if none
+     */
+    private static int match(String field, String token) {
+        int best = 0;
+        int index = field.indexOf(token);
+        while (index >= 0) {
+            boolean tokenStart = field.charAt(index - 1) == ' ';
+            int end = index + token.length();
+            if (tokenStart && (end == field.length() || field.charAt(end) == ' ')) {
+                return MATCH_TOKEN;
+            } else if (tokenStart) {
+                best = MATCH_PREFIX;
+            } else if (best == 0 && token.length() >= 3) {
+                // Short tokens only match prefixes, their postings only hold prefixes
+                best = MATCH_INFIX;
+            }
+            index = field.indexOf(token, index + 1);
+        }
+        return best;
+    }
+
+    private static long prefixKey(String text, int start, int end) {
+        if (end - start == 1) {
+            return KIND_PREFIX_1 | text.charAt(start);
+        }
+        return KIND_PREFIX_2 | ((long) text.charAt(start) << 16) | text.charAt(start + 1);
+    }
+
+    private static long trigramKey(String text, int start) {
+        return KIND_TRIGRAM | ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16)
+                | text.charAt(start + 2);
+    }
+
+    private static void siftUp(long[] heap, int index) {
+        long entry = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= entry) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = entry;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        long entry = heap[0];
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= entry) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = entry;
+    }
+}
@@ -3,10 +3,19 @@ package itto.pl.musicplayer.data.model;
 import java.io.Serializable;
 
 public class Audio implements Serializable {
+    private long mId;
     private String mData;
     private String mTitle;
     private String mAlbum;
     private String mArtist;
+    private long mAlbumId;
+    private long mDateModified;
+
+    /**
+     * For views that read their fields from elsewhere and override every getter
+     */
+    protected Audio() {
+    }
 
     public Audio(String data, String title, String album, String artist) {
         mData = data;
@@ -15,6 +24,24 @@ public class Audio implements Serializable {
         mArtist = artist;
     }
 
+    public Audio(long id, String data, String title, String album, String artist, long albumId, long dateModified) {
+        this(data, title, album, artist);
+        mId = id;
+        mAlbumId = albumId;
+        mDateModified = dateModified;
+    }
+
+    /**
+     * MediaStore row id (_ID) of this track, 0 when the track did not come from MediaStore
+     */
+    public long getId() {
+        return mId;
+    }
+
+    public void setId(long id) {
+        mId = id;
+    }
+
     public String getData() {
         return mData;
     }
@@ -46,4 +73,23 @@ public class Audio implements Serializable {
     public void setArtist(String artist) {
         mArtist = artist;
     }
+
+    public long getAlbumId() {
+        return mAlbumId;
+    }
+
+    public void setAlbumId(long albumId) {
+        mAlbumId = albumId;
+    }
+
+    /**
+     * MediaStore DATE_MODIFIED of this track, in seconds
+     */
+    public long getDateModified() {
+        return mDateModified;
+    }
+
+    public void setDateModified(long dateModified) {
+        mDateModified = dateModified;
+    }
 }
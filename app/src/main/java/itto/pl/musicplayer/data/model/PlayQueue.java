@@ -0,0 +1,391 @@
+package itto.pl.musicplayer.data.model;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable play queue. Every edit returns a new queue, so the same instance can be handed between
+ * the activity, the service and the persistence thread without copying or locking.
+ * <p>
+ * The items live in a persistent AVL tree ordered by position, each node knowing the size of its
+ * subtree. Lookup by index, insert, remove and move are O(log n), an edit copies the nodes along
+ * one path and shares everything else with the queue it was made from. Every edit can be described
+ * by a {@link Change}, which is all the persistence and the UI need to follow it.
+ */
+public final class PlayQueue {
+    public static final PlayQueue EMPTY = new PlayQueue(null);
+
+    private static final class Node {
+        final Node mLeft;
+        final Audio mAudio;
+        final Node mRight;
+        final int mSize;
+        final int mHeight;
+
+        Node(Node left, Audio audio, Node right) {
+            mLeft = left;
+            mAudio = audio;
+            mRight = right;
+            mSize = size(left) + 1 + size(right);
+            mHeight = Math.max(height(left), height(right)) + 1;
+        }
+    }
+
+    /**
+     * One edit of a queue, an insert of one or more items, a remove or a move
+     */
+    public static final class Change {
+        public static final int INSERT = 0;
+        public static final int REMOVE = 1;
+        public static final int MOVE = 2;
+
+        private final int mKind;
+        private final int mIndex;
+        private final int mTo;
+        private final List<Audio> mItems;
+
+        private Change(int kind, int index, int to, List<Audio> items) {
+            mKind = kind;
+            mIndex = index;
+            mTo = to;
+            mItems = items;
+        }
+
+        /**
+         * {@code items} inserted before the item at {@code index}, at the end if it is the size
+         */
+        public static Change insert(int index, List<Audio> items) {
+            return new Change(INSERT, index, -1, Collections.unmodifiableList(new ArrayList<>(items)));
+        }
+
+        public static Change remove(int index) {
+            return new Change(REMOVE, index, -1, Collections.<Audio>emptyList());
+        }
+
+        /**
+         * See {@link PlayQueue#withMoved(int, int)}
+         */
+        public static Change move(int from, int to) {
+            return new Change(MOVE, from, to, Collections.<Audio>emptyList());
+        }
+
+        public int getKind() {
+            return mKind;
+        }
+
+        /**
+         * @return where the items are inserted, the index removed or moved from
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * @return where the item is moved to, -1 for the other kinds
+         */
+        public int getTo() {
+            return mTo;
+        }
+
+        /**
+         * @return the inserted items, empty for the other kinds
+         */
+        public List<Audio> getItems() {
+            return mItems;
+        }
+
+        /**
+         * Follow a position through this change, e.g. the current item
+         *
+         * @return where the item at {@code index} is after the change, -1 if it was removed
+         */
+        public int mapIndex(int index) {
+            if (index < 0) {
+                return index;
+            }
+            switch (mKind) {
+                case INSERT:
+                    return index >= mIndex ? index + mItems.size() : index;
+                case REMOVE:
+                    return index == mIndex ? -1 : index > mIndex ? index - 1 : index;
+                default:
+                    return indexAfterMove(index, mIndex, mTo);
+            }
+        }
+    }
+
+    private final Node mRoot;
+
+    private PlayQueue(Node root) {
+        mRoot = root;
+    }
+
+    public static PlayQueue of(List<Audio> audioList) {
+        return audioList.isEmpty() ? EMPTY : new PlayQueue(build(audioList, 0, audioList.size()));
+    }
+
+    public int size() {
+        return size(mRoot);
+    }
+
+    public boolean isEmpty() {
+        return mRoot == null;
+    }
+
+    public Audio get(int index) {
+        checkIndex(index);
+        Node node = mRoot;
+        while (true) {
+            int leftSize = size(node.mLeft);
+            if (index < leftSize) {
+                node = node.mLeft;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.mRight;
+            } else {
+                return node.mAudio;
+            }
+        }
+    }
+
+    /**
+     * @return a read only view of this queue, iterating is O(n), {@code get} is O(log n)
+     */
+    public List<Audio> asList() {
+        return new AbstractList<Audio>() {
+            @Override
+            public Audio get(int index) {
+                return PlayQueue.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return PlayQueue.this.size();
+            }
+
+            @Override
+            public Iterator<Audio> iterator() {
+                return new InOrderIterator(mRoot);
+            }
+        };
+    }
+
+    public PlayQueue apply(Change change) {
+        switch (change.getKind()) {
+            case Change.INSERT:
+                return withInserted(change.getIndex(), change.getItems());
+            case Change.REMOVE:
+                return withRemoved(change.getIndex());
+            default:
+                return withMoved(change.getIndex(), change.getTo());
+        }
+    }
+
+    public PlayQueue withAppended(List<Audio> audioList) {
+        return withInserted(size(), audioList);
+    }
+
+    public PlayQueue withInserted(int index, Audio audio) {
+        return withInserted(index, Collections.singletonList(audio));
+    }
+
+    public PlayQueue withInserted(int index, List<Audio> audioList) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+        }
+        if (audioList.isEmpty()) {
+            return this;
+        }
+        Node[] halves = new Node[2];
+        split(mRoot, index, halves);
+        return new PlayQueue(concat(concat(halves[0], build(audioList, 0, audioList.size())), halves[1]));
+    }
+
+    public PlayQueue withRemoved(int index) {
+        checkIndex(index);
+        Node[] halves = new Node[2];
+        split(mRoot, index, halves);
+        Node left = halves[0];
+        split(halves[1], 1, halves);
+        Node root = concat(left, halves[1]);
+        return root == null ? EMPTY : new PlayQueue(root);
+    }
+
+    public PlayQueue withMoved(int from, int to) {
+        checkIndex(from);
+        checkIndex(to);
+        if (from == to) {
+            return this;
+        }
+        Audio moved = get(from);
+        return withRemoved(from).withInserted(to, moved);
+    }
+
+    /**
+     * Where an item at {@code index} ends up after {@link #withMoved(int, int)}
+     */
+    public static int indexAfterMove(int index, int from, int to) {
+        if (index == from) {
+            return to;
+        }
+        if (from < index && index <= to) {
+            return index - 1;
+        }
+        if (to <= index && index < from) {
+            return index + 1;
+        }
+        return index;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+        }
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.mSize;
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.mHeight;
+    }
+
+    private static Node build(List<Audio> audioList, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int mid = (from + to) >>> 1;
+        return new Node(build(audioList, from, mid), audioList.get(mid), build(audioList, mid + 1, to));
+    }
+
+    /**
+     * The first {@code count} items of {@code node} go to {@code halves[0]}, the rest to {@code halves[1]}
+     */
+    private static void split(Node node, int count, Node[] halves) {
+        if (node == null) {
+            halves[0] = null;
+            halves[1] = null;
+            return;
+        }
+        int leftSize = size(node.mLeft);
+        if (count <= leftSize) {
+            split(node.mLeft, count, halves);
+            halves[1] = join(halves[1], node.mAudio, node.mRight);
+        } else {
+            split(node.mRight, count - leftSize - 1, halves);
+            halves[0] = join(node.mLeft, node.mAudio, halves[0]);
+        }
+    }
+
+    private static Node concat(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        Audio[] first = new Audio[1];
+        Node rest = removeFirst(right, first);
+        return join(left, first[0], rest);
+    }
+
+    private static Node removeFirst(Node node, Audio[] first) {
+        if (node.mLeft == null) {
+            first[0] = node.mAudio;
+            return node.mRight;
+        }
+        return join(removeFirst(node.mLeft, first), node.mAudio, node.mRight);
+    }
+
+    // Balanced tree of left, audio and right, in O(height difference)
+    private static Node join(Node left, Audio audio, Node right) {
+        if (height(left) > height(right) + 1) {
+            return joinRight(left, audio, right);
+        }
+        if (height(right) > height(left) + 1) {
+            return joinLeft(left, audio, right);
+        }
+        return new Node(left, audio, right);
+    }
+
+    // Left is the taller tree, walk down its right spine
+    private static Node joinRight(Node left, Audio audio, Node right) {
+        Node spine = left.mRight;
+        if (height(spine) <= height(right) + 1) {
+            Node joined = new Node(spine, audio, right);
+            if (height(joined) <= height(left.mLeft) + 1) {
+                return new Node(left.mLeft, left.mAudio, joined);
+            }
+            return rotateLeft(new Node(left.mLeft, left.mAudio, rotateRight(joined)));
+        }
+        Node joined = joinRight(spine, audio, right);
+        Node node = new Node(left.mLeft, left.mAudio, joined);
+        return height(joined) <= height(left.mLeft) + 1 ? node : rotateLeft(node);
+    }
+
+    // Right is the taller tree, walk down its left spine
+    private static Node joinLeft(Node left, Audio audio, Node right) {
+        Node spine = right.mLeft;
+        if (height(spine) <= height(left) + 1) {
+            Node joined = new Node(left, audio, spine);
+            if (height(joined) <= height(right.mRight) + 1) {
+                return new Node(joined, right.mAudio, right.mRight);
+            }
+            return rotateRight(new Node(rotateLeft(joined), right.mAudio, right.mRight));
+        }
+        Node joined = joinLeft(left, audio, spine);
+        Node node = new Node(joined, right.mAudio, right.mRight);
+        return height(joined) <= height(right.mRight) + 1 ? node : rotateRight(node);
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.mRight;
+        return new Node(new Node(node.mLeft, node.mAudio, right.mLeft), right.mAudio, right.mRight);
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.mLeft;
+        return new Node(left.mLeft, left.mAudio, new Node(left.mRight, node.mAudio, node.mRight));
+    }
+
+    private static final class InOrderIterator implements Iterator<Audio> {
+        // Nodes whose audio and right subtree are still to come, the next one on top
+        private final Node[] mStack = new Node[64];
+        private int mDepth;
+
+        InOrderIterator(Node root) {
+            pushLeft(root);
+        }
+
+        private void pushLeft(Node node) {
+            for (; node != null; node = node.mLeft) {
+                mStack[mDepth++] = node;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mDepth > 0;
+        }
+
+        @Override
+        public Audio next() {
+            if (mDepth == 0) {
+                throw new NoSuchElementException();
+            }
+            Node node = mStack[--mDepth];
+            pushLeft(node.mRight);
+            return node.mAudio;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
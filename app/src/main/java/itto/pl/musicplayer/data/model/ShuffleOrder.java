@@ -0,0 +1,423 @@
+package itto.pl.musicplayer.data.model;
+
+import java.util.Arrays;
+
+/**
+ * Shuffled play order over the indices of a {@link PlayQueue}, dealt lazily by an incremental
+ * Fisher-Yates shuffle.
+ * <p>
+ * {@code mOrder} is a permutation of the queue indices. Its first {@code mDealt} slots are the
+ * tracks dealt in the current cycle in play order, the rest is the pool not played yet. Moving
+ * forward past the dealt tracks swaps a random pool slot to the front of the pool, so next and
+ * previous are O(1), going back walks the history and nothing repeats until the pool is exhausted.
+ * Skipping past the end starts a new cycle. A track picked from the pool is dealt next instead of a
+ * random one, the cycle goes on.
+ * <p>
+ * Without queue edits the whole order follows from {@link #getSeed()}, {@link #getFirst()},
+ * {@link #getDealt()} and the few {@link #getPicks()}, which is what gets persisted instead of a
+ * reordered copy of the queue, see {@link #restore(int, long, int, int, int, int, int[])}. Queue
+ * edits are applied in place, the order is never reshuffled. Not thread safe.
+ */
+public final class ShuffleOrder {
+    private int[] mOrder;
+    // Slot of every queue index in mOrder
+    private int[] mSlots;
+    private int mSize;
+    private int mDealt;
+    // Slot of the current track, -1 before the first one
+    private int mPosition = -1;
+
+    // First track and generator seed of the current cycle
+    private int mFirst = -1;
+    private long mSeed;
+    private long mRandom;
+    // Slot and queue index of every track picked from the pool this cycle, by slot
+    private int[] mPicks = new int[0];
+    private int mPickCount;
+
+    /**
+     * @param size queue size
+     */
+    public ShuffleOrder(int size, long seed) {
+        mOrder = new int[Math.max(size, 1)];
+        mSlots = new int[mOrder.length];
+        mSize = size;
+        reset(seed);
+    }
+
+    /**
+     * Rebuild a persisted order without picks. The tracks dealt before are dealt again from the
+     * seed, so without queue edits the restored order is the original one. After an edit
+     * {@code current} is moved to the current slot, the restored history may then differ from the
+     * original but the current track and the number of tracks played are kept.
+     *
+     * @param current queue index of the current track
+     */
+    public static ShuffleOrder restore(int size, long seed, int first, int dealt, int position, int current) {
+        return restore(size, seed, first, dealt, position, current, new int[0]);
+    }
+
+    /**
+     * @param picks see {@link #getPicks()}, picks that no longer fit the queue are dealt at random
+     */
+    public static ShuffleOrder restore(int size, long seed, int first, int dealt, int position, int current,
+                                       int[] picks) {
+        ShuffleOrder order = new ShuffleOrder(size, seed);
+        if (size == 0 || current < 0 || current >= size) {
+            return order;
+        }
+        order.start(first >= 0 && first < size ? first : current);
+        int pick = 0;
+        while (order.mDealt < Math.min(dealt, size)) {
+            while (pick + 1 < picks.length && picks[pick] < order.mDealt) {
+                pick += 2;
+            }
+            int index = pick + 1 < picks.length && picks[pick] == order.mDealt ? picks[pick + 1] : -1;
+            if (index >= 0 && index < size && order.mSlots[index] >= order.mDealt) {
+                order.dealPicked(index);
+            } else {
+                order.deal();
+            }
+        }
+        order.mPosition = Math.max(0, Math.min(position, order.mDealt - 1));
+        order.swap(order.mPosition, order.mSlots[current]);
+        return order;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public int getFirst() {
+        return mFirst;
+    }
+
+    public int getDealt() {
+        return mDealt;
+    }
+
+    /**
+     * @return slot and queue index of every track picked from the pool this cycle, as pairs
+     */
+    public int[] getPicks() {
+        return Arrays.copyOf(mPicks, mPickCount * 2);
+    }
+
+    /**
+     * @return slot of the current track in the play order, -1 before the first one
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return queue index of the current track, -1 before the first one
+     */
+    public int current() {
+        return mPosition < 0 ? -1 : mOrder[mPosition];
+    }
+
+    /**
+     * Start a new cycle with the track at queue index {@code index}. The seed is kept, the same
+     * first track deals the same order.
+     */
+    public void start(int index) {
+        checkIndex(index);
+        mRandom = mSeed;
+        for (int i = 0; i < mSize; i++) {
+            mOrder[i] = i;
+            mSlots[i] = i;
+        }
+        mFirst = index;
+        swap(0, index);
+        mDealt = 1;
+        mPosition = 0;
+        mPickCount = 0;
+    }
+
+    /**
+     * Make the track at queue index {@code index} current, e.g. picked by the user. A track of the
+     * history becomes current again, a track of the pool is dealt after the history and recorded
+     * in {@link #getPicks()}.
+     */
+    public void jumpTo(int index) {
+        checkIndex(index);
+        if (mDealt == 0) {
+            start(index);
+            return;
+        }
+        if (mSlots[index] >= mDealt) {
+            dealPicked(index);
+        }
+        mPosition = mSlots[index];
+    }
+
+    /**
+     * @return queue index of the track after the current one without moving, -1 at the end of the
+     * cycle. The track is dealt if needed, it stays next until the queue or the position changes.
+     */
+    public int peekNext() {
+        if (mPosition + 1 == mDealt) {
+            if (mDealt == 0 || mDealt == mSize) {
+                return -1;
+            }
+            deal();
+        }
+        return mOrder[mPosition + 1];
+    }
+
+    /**
+     * Move to the next track, starts a new cycle past the last one
+     *
+     * @return queue index of the new current track, -1 if the queue is empty
+     */
+    public int next() {
+        if (mSize == 0) {
+            return -1;
+        }
+        if (peekNext() == -1) {
+            newCycle();
+        } else {
+            mPosition++;
+        }
+        return current();
+    }
+
+    /**
+     * Move to the previous track of the history, stays on the first one
+     *
+     * @return queue index of the new current track, -1 if the queue is empty
+     */
+    public int previous() {
+        if (mSize == 0) {
+            return -1;
+        }
+        if (mPosition > 0) {
+            mPosition--;
+        }
+        return current();
+    }
+
+    /**
+     * {@link #next()} or {@link #previous()} {@code |delta|} times
+     */
+    public int skip(int delta) {
+        int index = current();
+        for (; delta > 0; delta--) {
+            index = next();
+        }
+        for (; delta < 0; delta++) {
+            index = previous();
+        }
+        return index;
+    }
+
+    /**
+     * Apply an edit of the queue, see the {@code on*} methods
+     */
+    public void onChange(PlayQueue.Change change) {
+        switch (change.getKind()) {
+            case PlayQueue.Change.INSERT:
+                onInserted(change.getIndex(), change.getItems().size());
+                break;
+            case PlayQueue.Change.REMOVE:
+                onRemoved(change.getIndex());
+                break;
+            default:
+                onMoved(change.getIndex(), change.getTo());
+                break;
+        }
+    }
+
+    /**
+     * {@code count} tracks were appended to the queue, they join the pool
+     */
+    public void onAppended(int count) {
+        onInserted(mSize, count);
+    }
+
+    /**
+     * A track was inserted into the queue at {@code index}, it joins the pool
+     */
+    public void onInserted(int index) {
+        onInserted(index, 1);
+    }
+
+    /**
+     * {@code count} tracks were inserted into the queue at {@code index}, they join the pool
+     */
+    public void onInserted(int index, int count) {
+        if (index < 0 || index > mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        ensureCapacity(mSize + count);
+        if (index < mSize) {
+            for (int i = 0; i < mSize; i++) {
+                if (mOrder[i] >= index) {
+                    mOrder[i] += count;
+                }
+            }
+            if (mFirst >= index) {
+                mFirst += count;
+            }
+            for (int i = 1; i < mPickCount * 2; i += 2) {
+                if (mPicks[i] >= index) {
+                    mPicks[i] += count;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            mOrder[mSize + i] = index + i;
+        }
+        mSize += count;
+        if (index < mSize - count) {
+            updateSlots();
+        } else {
+            for (int i = mSize - count; i < mSize; i++) {
+                mSlots[i] = i;
+            }
+        }
+    }
+
+    /**
+     * The track at queue index {@code index} was removed. If it was the current track, the track
+     * after it in the play order is next.
+     */
+    public void onRemoved(int index) {
+        checkIndex(index);
+        int slot = mSlots[index];
+        System.arraycopy(mOrder, slot + 1, mOrder, slot, mSize - slot - 1);
+        mSize--;
+        if (slot < mDealt) {
+            mDealt--;
+            if (slot <= mPosition) {
+                mPosition--;
+            }
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mOrder[i] > index) {
+                mOrder[i]--;
+            }
+        }
+        if (mFirst == index) {
+            mFirst = -1;
+        } else if (mFirst > index) {
+            mFirst--;
+        }
+        int picks = 0;
+        for (int i = 0; i < mPickCount * 2; i += 2) {
+            if (mPicks[i] == slot) {
+                continue;
+            }
+            mPicks[picks++] = mPicks[i] > slot ? mPicks[i] - 1 : mPicks[i];
+            mPicks[picks++] = mPicks[i + 1] > index ? mPicks[i + 1] - 1 : mPicks[i + 1];
+        }
+        mPickCount = picks / 2;
+        updateSlots();
+    }
+
+    /**
+     * A track of the queue was moved, see {@link PlayQueue#withMoved(int, int)}. The play order
+     * stays the same.
+     */
+    public void onMoved(int from, int to) {
+        checkIndex(from);
+        checkIndex(to);
+        for (int i = 0; i < mSize; i++) {
+            mOrder[i] = PlayQueue.indexAfterMove(mOrder[i], from, to);
+        }
+        if (mFirst != -1) {
+            mFirst = PlayQueue.indexAfterMove(mFirst, from, to);
+        }
+        for (int i = 1; i < mPickCount * 2; i += 2) {
+            mPicks[i] = PlayQueue.indexAfterMove(mPicks[i], from, to);
+        }
+        updateSlots();
+    }
+
+    private void reset(long seed) {
+        mSeed = seed;
+        mRandom = seed;
+        mDealt = 0;
+        mPosition = -1;
+        mFirst = -1;
+        mPickCount = 0;
+    }
+
+    // Deals the track after the last dealt one
+    private void deal() {
+        swap(mDealt, mDealt + nextInt(mSize - mDealt));
+        mDealt++;
+    }
+
+    // Deals a track of the pool picked by queue index, without drawing from the generator
+    private void dealPicked(int index) {
+        if (mPickCount * 2 == mPicks.length) {
+            mPicks = Arrays.copyOf(mPicks, Math.max(8, mPicks.length * 2));
+        }
+        mPicks[mPickCount * 2] = mDealt;
+        mPicks[mPickCount * 2 + 1] = index;
+        mPickCount++;
+        swap(mDealt, mSlots[index]);
+        mDealt++;
+    }
+
+    private void newCycle() {
+        int last = current();
+        int first = nextInt(mSize);
+        if (mSize > 1 && last != -1) {
+            // The last track of a cycle is never the first of the next one
+            first = nextInt(mSize - 1);
+            if (first >= last) {
+                first++;
+            }
+        }
+        reset(nextLong());
+        start(first);
+    }
+
+    private void swap(int slot, int otherSlot) {
+        int index = mOrder[slot];
+        int other = mOrder[otherSlot];
+        mOrder[slot] = other;
+        mOrder[otherSlot] = index;
+        mSlots[other] = slot;
+        mSlots[index] = otherSlot;
+    }
+
+    private void updateSlots() {
+        for (int i = 0; i < mSize; i++) {
+            mSlots[mOrder[i]] = i;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mOrder.length) {
+            int length = Math.max(capacity, mOrder.length * 2);
+            mOrder = Arrays.copyOf(mOrder, length);
+            mSlots = Arrays.copyOf(mSlots, length);
+        }
+    }
+
+    // SplitMix64, so a seed deals the same order on every device
+    private long nextLong() {
+        long z = (mRandom += 0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private int nextInt(int bound) {
+        return (int) (((nextLong() >>> 33) * bound) >>> 31);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package itto.pl.musicplayer.data.scanner;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import itto.pl.musicplayer.data.library.BrowseIndex;
+import itto.pl.musicplayer.data.library.LibraryStore;
+import itto.pl.musicplayer.data.model.Audio;
+import itto.pl.musicplayer.data.storage.LibraryDatabase;
+import itto.pl.musicplayer.utils.StorageUtil;
+
+import static itto.pl.musicplayer.utils.Constants.TAGG;
+
+/**
+ * Scans the MediaStore audio table off the main thread and hands the rows to a {@link Listener}
+ * page by page, so the first screen can be rendered as soon as the first page is read.
+ * <p>
+ * The scanner remembers the highest DATE_MODIFIED it has seen (the watermark), so
+ * {@link #scanChanges(Listener)} only reads rows added or modified since the last completed scan.
+ * Files copied in keep their old DATE_MODIFIED, so live ids that were never stored are read by id too.
+ * Artists, albums and folders are grouped and sorted on the scanner's thread as the pages are read,
+ * the finished {@link BrowseIndex} comes with {@link Listener#onScanFinished}.
+ * <p>
+ * Every scanned page is also written to the {@link LibraryDatabase}, so {@link #scanCached(Listener)}
+ * can deliver the library from there at launch and only ask MediaStore for the changes. The browse
+ * index is seeded from the one saved with the playlist, only the stored tracks it is missing and the
+ * changes are grouped again.
+ */
+public class LibraryScanner {
+    private static final String TAG = TAGG + LibraryScanner.class.getSimpleName();
+    private static final String PREFERENCES = "itto.pl.musicplayer.SCANNER";
+    private static final String KEY_WATERMARK = "dateModifiedWatermark";
+
+    // A small first page gets something on screen quickly, the following pages amortize the main thread hops
+    public static final int FIRST_PAGE_SIZE = 50;
+    public static final int PAGE_SIZE = 500;
+
+    private static final Uri URI = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+    private static final String SELECTION = MediaStore.Audio.Media.IS_MUSIC + "!=0";
+    private static final String SELECTION_CHANGED = SELECTION
+            + " AND " + MediaStore.Audio.Media.DATE_MODIFIED + ">=?";
+    private static final String SORT_ORDER = MediaStore.Audio.Media.TITLE + " ASC";
+    // Ids per query for tracks missed by the watermark, below SQLite's limit of 999 host parameters
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    // Fixed projection, the column indices below are the positions in this array and in LibraryDatabase.PROJECTION
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_DATA = 1;
+    private static final int COLUMN_TITLE = 2;
+    private static final int COLUMN_ALBUM = 3;
+    private static final int COLUMN_ARTIST = 4;
+    private static final int COLUMN_ALBUM_ID = 5;
+    private static final int COLUMN_DATE_MODIFIED = 6;
+
+    private static final String[] PROJECTION_ID = {MediaStore.Audio.Media._ID};
+
+    public interface Listener {
+        /**
+         * Called on the main thread before the pages of a {@link #scanCached(Listener)} scan, with the
+         * index saved with the playlist that the scan builds on. Not called if none could be used.
+         */
+        void onBrowseIndexRestored(BrowseIndex browseIndex);
+
+        /**
+         * Called on the main thread for every page of scanned tracks, in title order.
+         *
+         * @param page        tracks of this page, read only views over a {@link LibraryStore}
+         * @param incremental true if the page only holds tracks changed since the last scan
+         */
+        void onPage(List<Audio> page, boolean incremental);
+
+        /**
+         * Called on the main thread once all pages have been delivered.
+         *
+         * @param liveIds     ids of every track currently in MediaStore, sorted ascending.
+         *                    Tracks known to the listener but missing here were deleted.
+         * @param browseIndex every live track read by this scanner grouped by artist, album and folder.
+         *                    Incremental scans add to the tracks of the previous scans or of the
+         *                    restored index.
+         * @param incremental true if this was a {@link #scanChanges(Listener)} or {@link #scanCached(Listener)} scan
+         */
+        void onScanFinished(long[] liveIds, BrowseIndex browseIndex, boolean incremental);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final SharedPreferences mPreferences;
+    private final LibraryDatabase mDatabase;
+    private final StorageUtil mStorageUtil;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Bumped on every scan or cancel, a running scan stops as soon as its generation is stale
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // Kept across scans so a rescan only moves the changed tracks, only used on the executor
+    private BrowseIndex.Builder mBrowseBuilder = new BrowseIndex.Builder();
+
+    public LibraryScanner(Context context) {
+        mContentResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mDatabase = LibraryDatabase.getInstance(context);
+        mStorageUtil = new StorageUtil(context);
+    }
+
+    /**
+     * Read the whole library, ignoring the watermark
+     */
+    public void scanAll(Listener listener) {
+        scan(listener, false, false);
+    }
+
+    /**
+     * Read only the tracks added or modified since the last completed scan
+     */
+    public void scanChanges(Listener listener) {
+        scan(listener, true, false);
+    }
+
+    /**
+     * Deliver the tracks stored by earlier scans, then read the tracks added or modified since.
+     * Stored tracks come as non incremental pages, changed tracks as incremental pages.
+     */
+    public void scanCached(Listener listener) {
+        scan(listener, true, true);
+    }
+
+    /**
+     * Stop the running scan, pages not yet delivered are dropped
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    public long getWatermark() {
+        return mPreferences.getLong(KEY_WATERMARK, 0);
+    }
+
+    public void resetWatermark() {
+        mPreferences.edit().remove(KEY_WATERMARK).apply();
+    }
+
+    private void scan(final Listener listener, final boolean incremental, final boolean cached) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                long watermark = incremental ? getWatermark() : 0;
+                if (cached) {
+                    if (mBrowseBuilder.size() == 0) {
+                        restoreBrowseIndex(listener, generation);
+                    }
+                    // Changes are relative to what the database holds
+                    watermark = readCachedPages(listener, generation);
+                    if (watermark < 0) {
+                        Log.d(TAG, "scan cancelled");
+                        return;
+                    }
+                    Log.d(TAG, "cached tracks delivered in " + (System.currentTimeMillis() - start) + "ms");
+                }
+                long newWatermark = readPages(listener, generation, incremental, watermark);
+                if (newWatermark < 0) {
+                    Log.d(TAG, "scan cancelled");
+                    return;
+                }
+                final long[] liveIds = readLiveIds(generation);
+                if (liveIds == null) {
+                    return;
+                }
+                if (incremental) {
+                    newWatermark = readMissingPages(listener, generation, liveIds, newWatermark);
+                    if (newWatermark < 0) {
+                        Log.d(TAG, "scan cancelled");
+                        return;
+                    }
+                }
+                if (liveIds.length == 0) {
+                    // MediaStore answered and has no tracks left
+                    mDatabase.clear();
+                } else {
+                    mDatabase.retainAll(liveIds);
+                }
+                mPreferences.edit().putLong(KEY_WATERMARK, newWatermark).apply();
+                final BrowseIndex browseIndex = mBrowseBuilder.retainAll(liveIds).build();
+                Log.d(TAG, "scan finished: " + liveIds.length + " tracks in "
+                        + (System.currentTimeMillis() - start) + "ms, incremental " + incremental);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration.get()) {
+                            listener.onScanFinished(liveIds, browseIndex, incremental);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Seed the builder with the index saved with the playlist, so the stored tracks are not grouped
+     * and sorted again at every launch
+     */
+    private void restoreBrowseIndex(final Listener listener, final int generation) {
+        final BrowseIndex browseIndex = mStorageUtil.loadBrowseIndex();
+        if (browseIndex == null || !browseIndex.isCurrentLocale()) {
+            // Keys of another locale sort differently, the stored tracks are grouped from scratch
+            return;
+        }
+        mBrowseBuilder = new BrowseIndex.Builder(browseIndex);
+        Log.d(TAG, "browse index restored: " + browseIndex.getTrackCount() + " tracks");
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    listener.onBrowseIndexRestored(browseIndex);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the highest DATE_MODIFIED read, or -1 if the scan was cancelled
+     */
+    private long readPages(Listener listener, int generation, boolean incremental, long watermark) {
+        String selection = incremental ? SELECTION_CHANGED : SELECTION;
+        String[] selectionArgs = incremental ? new String[]{String.valueOf(watermark)} : null;
+        Cursor cursor = mContentResolver.query(URI, PROJECTION, selection, selectionArgs, SORT_ORDER);
+        if (cursor == null) {
+            return watermark;
+        }
+        return readCursor(cursor, listener, generation, incremental, watermark, true);
+    }
+
+    /**
+     * @return the highest DATE_MODIFIED stored, or -1 if the scan was cancelled
+     */
+    private long readCachedPages(Listener listener, int generation) {
+        Cursor cursor = mDatabase.query(LibraryDatabase.ORDER_TITLE, 0, -1);
+        return readCursor(cursor, listener, generation, false, 0, false);
+    }
+
+    /**
+     * Deliver the rows of {@code cursor} page by page and close it
+     *
+     * @param store true to write the pages to the database
+     * @return the highest DATE_MODIFIED read, or -1 if the scan was cancelled
+     */
+    private long readCursor(Cursor cursor, Listener listener, int generation, boolean incremental,
+                            long watermark, boolean store) {
+        long maxDateModified = watermark;
+        try {
+            // Pages share the builder's dictionary, an artist name is held once for the whole scan
+            LibraryStore.Builder page = new LibraryStore.Builder();
+            int pageSize = FIRST_PAGE_SIZE;
+            while (cursor.moveToNext()) {
+                if (generation != mGeneration.get()) {
+                    return -1;
+                }
+                long dateModified = cursor.getLong(COLUMN_DATE_MODIFIED);
+                if (dateModified > maxDateModified) {
+                    maxDateModified = dateModified;
+                }
+                page.add(cursor.getLong(COLUMN_ID),
+                        cursor.getString(COLUMN_DATA),
+                        cursor.getString(COLUMN_TITLE),
+                        cursor.getString(COLUMN_ALBUM),
+                        cursor.getString(COLUMN_ARTIST),
+                        cursor.getLong(COLUMN_ALBUM_ID),
+                        dateModified);
+                if (page.size() == pageSize) {
+                    deliverPage(listener, generation, buildPage(page, store), incremental);
+                    pageSize = PAGE_SIZE;
+                }
+            }
+            if (page.size() > 0) {
+                deliverPage(listener, generation, buildPage(page, store), incremental);
+            }
+        } finally {
+            cursor.close();
+        }
+        return maxDateModified;
+    }
+
+    /**
+     * Create the track views of a page once, the listener and the browse index share them
+     */
+    private List<Audio> buildPage(LibraryStore.Builder page, boolean store) {
+        List<Audio> tracks = Collections.unmodifiableList(Arrays.asList(page.build().asList().toArray(new Audio[0])));
+        if (store) {
+            mBrowseBuilder.addAll(tracks);
+            // One transaction per page
+            mDatabase.upsert(tracks);
+        } else {
+            // Stored tracks are usually in the restored index already, only the ones stored after it was saved move
+            for (int i = 0; i < tracks.size(); i++) {
+                if (!mBrowseBuilder.contains(tracks.get(i))) {
+                    mBrowseBuilder.add(tracks.get(i));
+                }
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Read the live tracks that were never stored, added with a DATE_MODIFIED older than the watermark.
+     * They come as incremental pages like the other changes.
+     *
+     * @return the highest DATE_MODIFIED read, or -1 if the scan was cancelled
+     */
+    private long readMissingPages(Listener listener, int generation, long[] liveIds, long watermark) {
+        long[] missingIds = mDatabase.missingIds(liveIds);
+        if (missingIds.length == 0) {
+            return watermark;
+        }
+        Log.d(TAG, "reading " + missingIds.length + " tracks older than the watermark");
+        for (int from = 0; from < missingIds.length; from += MAX_IDS_PER_QUERY) {
+            int count = Math.min(MAX_IDS_PER_QUERY, missingIds.length - from);
+            StringBuilder selection = new StringBuilder(SELECTION)
+                    .append(" AND ").append(MediaStore.Audio.Media._ID).append(" IN (");
+            String[] selectionArgs = new String[count];
+            for (int i = 0; i < count; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = String.valueOf(missingIds[from + i]);
+            }
+            selection.append(')');
+            Cursor cursor = mContentResolver.query(URI, PROJECTION, selection.toString(), selectionArgs, SORT_ORDER);
+            if (cursor == null) {
+                continue;
+            }
+            watermark = readCursor(cursor, listener, generation, true, watermark, true);
+            if (watermark < 0) {
+                return -1;
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * Id-only query used to detect deleted tracks, a changed-rows query cannot see them
+     *
+     * @return sorted ids, null if the scan was cancelled or MediaStore could not be queried
+     */
+    private long[] readLiveIds(int generation) {
+        Cursor cursor = mContentResolver.query(URI, PROJECTION_ID, SELECTION, null, null);
+        if (cursor == null) {
+            // The provider is unavailable, not empty. Keep the library and the watermark.
+            Log.e(TAG, "readLiveIds: no cursor, scan aborted");
+            return null;
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) {
+                if (generation != mGeneration.get()) {
+                    return null;
+                }
+                ids[count++] = cursor.getLong(0);
+            }
+            if (count < ids.length) {
+                ids = Arrays.copyOf(ids, count);
+            }
+            Arrays.sort(ids);
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void deliverPage(final Listener listener, final int generation,
+                             final List<Audio> page, final boolean incremental) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration.get()) {
+                    listener.onPage(page, incremental);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,328 @@
+package itto.pl.musicplayer.data.storage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+import itto.pl.musicplayer.data.library.LibraryStore;
+import itto.pl.musicplayer.data.model.Audio;
+
+import static itto.pl.musicplayer.utils.Constants.TAGG;
+
+/**
+ * Local copy of the scanned MediaStore audio table, so a launch can show the library without
+ * waiting for MediaStore and a rescan only reads what changed.
+ * <p>
+ * Rows are keyed by the MediaStore _ID. Title, artist/album, album and path have indexes matching
+ * the {@code ORDER_*} sort orders, so a page is read straight from an index. The database runs in
+ * WAL mode: the scanner writes while the UI and the service read. Writes are batched, one
+ * transaction and one compiled statement per call.
+ */
+public class LibraryDatabase extends SQLiteOpenHelper {
+    private static final String TAG = TAGG + LibraryDatabase.class.getSimpleName();
+    private static final String DATABASE_NAME = "library.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_TRACKS = "tracks";
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_DATA = "data";
+    public static final String COLUMN_TITLE = "title";
+    public static final String COLUMN_ALBUM = "album";
+    public static final String COLUMN_ARTIST = "artist";
+    public static final String COLUMN_ALBUM_ID = "album_id";
+    public static final String COLUMN_DATE_MODIFIED = "date_modified";
+
+    /**
+     * Columns of every cursor returned here, in this order
+     */
+    public static final String[] PROJECTION = {
+            COLUMN_ID, COLUMN_DATA, COLUMN_TITLE, COLUMN_ALBUM, COLUMN_ARTIST, COLUMN_ALBUM_ID, COLUMN_DATE_MODIFIED
+    };
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATA = 1;
+    private static final int INDEX_TITLE = 2;
+    private static final int INDEX_ALBUM = 3;
+    private static final int INDEX_ARTIST = 4;
+    private static final int INDEX_ALBUM_ID = 5;
+    private static final int INDEX_DATE_MODIFIED = 6;
+
+    public static final int ORDER_TITLE = 0;
+    public static final int ORDER_ARTIST = 1;
+    public static final int ORDER_ALBUM = 2;
+    public static final int ORDER_PATH = 3;
+    // Every order ends with the rowid, the implicit last column of every index, so pages are stable
+    private static final String[] ORDER_BY = {
+            COLUMN_TITLE + " COLLATE NOCASE, " + COLUMN_ID,
+            COLUMN_ARTIST + " COLLATE NOCASE, " + COLUMN_ALBUM + " COLLATE NOCASE, " + COLUMN_DATA + ", " + COLUMN_ID,
+            COLUMN_ALBUM + " COLLATE NOCASE, " + COLUMN_DATA + ", " + COLUMN_ID,
+            COLUMN_DATA + ", " + COLUMN_ID
+    };
+
+    private static final String SQL_CREATE_TRACKS = "CREATE TABLE " + TABLE_TRACKS + " ("
+            + COLUMN_ID + " INTEGER PRIMARY KEY, "
+            + COLUMN_DATA + " TEXT, "
+            + COLUMN_TITLE + " TEXT, "
+            + COLUMN_ALBUM + " TEXT, "
+            + COLUMN_ARTIST + " TEXT, "
+            + COLUMN_ALBUM_ID + " INTEGER NOT NULL DEFAULT 0, "
+            + COLUMN_DATE_MODIFIED + " INTEGER NOT NULL DEFAULT 0)";
+    private static final String[] SQL_CREATE_INDEXES = {
+            "CREATE INDEX tracks_title ON " + TABLE_TRACKS + " (" + COLUMN_TITLE + " COLLATE NOCASE)",
+            "CREATE INDEX tracks_artist ON " + TABLE_TRACKS + " (" + COLUMN_ARTIST + " COLLATE NOCASE, "
+                    + COLUMN_ALBUM + " COLLATE NOCASE, " + COLUMN_DATA + ")",
+            "CREATE INDEX tracks_album ON " + TABLE_TRACKS + " (" + COLUMN_ALBUM + " COLLATE NOCASE, "
+                    + COLUMN_DATA + ")",
+            "CREATE INDEX tracks_data ON " + TABLE_TRACKS + " (" + COLUMN_DATA + ")",
+            "CREATE INDEX tracks_date_modified ON " + TABLE_TRACKS + " (" + COLUMN_DATE_MODIFIED + ")"
+    };
+    // MediaStore ids are stable, a replaced row keeps its rowid. Upserts of SQLite 3.24 are not on API 21.
+    private static final String SQL_UPSERT = "INSERT OR REPLACE INTO " + TABLE_TRACKS + " ("
+            + COLUMN_ID + ", " + COLUMN_DATA + ", " + COLUMN_TITLE + ", " + COLUMN_ALBUM + ", " + COLUMN_ARTIST + ", "
+            + COLUMN_ALBUM_ID + ", " + COLUMN_DATE_MODIFIED + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_DELETE = "DELETE FROM " + TABLE_TRACKS + " WHERE " + COLUMN_ID + "=?";
+    private static final String SQL_MAX_DATE_MODIFIED = "SELECT IFNULL(MAX(" + COLUMN_DATE_MODIFIED + "), 0) FROM "
+            + TABLE_TRACKS;
+
+    private static LibraryDatabase sInstance;
+
+    public static synchronized LibraryDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LibraryDatabase(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return sInstance;
+    }
+
+    LibraryDatabase(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_TRACKS);
+        for (String index : SQL_CREATE_INDEXES) {
+            db.execSQL(index);
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only a cache of MediaStore, the next scan fills it again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRACKS);
+        onCreate(db);
+    }
+
+    /**
+     * Insert or replace the tracks, matched by id, in a single transaction
+     */
+    public void upsert(List<Audio> audioList) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement upsert = db.compileStatement(SQL_UPSERT);
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < audioList.size(); i++) {
+                Audio audio = audioList.get(i);
+                upsert.bindLong(1, audio.getId());
+                bindString(upsert, 2, audio.getData());
+                bindString(upsert, 3, audio.getTitle());
+                bindString(upsert, 4, audio.getAlbum());
+                bindString(upsert, 5, audio.getArtist());
+                upsert.bindLong(6, audio.getAlbumId());
+                upsert.bindLong(7, audio.getDateModified());
+                upsert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            upsert.close();
+        }
+    }
+
+    /**
+     * Delete every track whose id is missing from {@code liveIds}, as reported by a finished scan.
+     * An empty set is taken as unknown and deletes nothing, use {@link #clear()} when MediaStore
+     * really reported no tracks.
+     *
+     * @param liveIds sorted ascending
+     * @return number of deleted tracks
+     */
+    public int retainAll(long[] liveIds) {
+        if (liveIds.length == 0) {
+            return 0;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        long[] deadIds = new long[16];
+        int deadCount = 0;
+        Cursor cursor = db.query(TABLE_TRACKS, new String[]{COLUMN_ID}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                if (Arrays.binarySearch(liveIds, id) < 0) {
+                    if (deadCount == deadIds.length) {
+                        deadIds = Arrays.copyOf(deadIds, deadCount * 2);
+                    }
+                    deadIds[deadCount++] = id;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (deadCount == 0) {
+            return 0;
+        }
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE);
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < deadCount; i++) {
+                delete.bindLong(1, deadIds[i]);
+                delete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            delete.close();
+        }
+        Log.d(TAG, "retainAll: deleted " + deadCount + " tracks");
+        return deadCount;
+    }
+
+    /**
+     * Find the tracks MediaStore reports that are not stored, e.g. files copied with an old
+     * DATE_MODIFIED that a changed-rows query cannot see
+     *
+     * @param liveIds sorted ascending
+     * @return the ids of {@code liveIds} that are not stored, sorted ascending
+     */
+    public long[] missingIds(long[] liveIds) {
+        if (liveIds.length == 0) {
+            return liveIds;
+        }
+        boolean[] stored = new boolean[liveIds.length];
+        Cursor cursor = getReadableDatabase().query(TABLE_TRACKS, new String[]{COLUMN_ID}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                int i = Arrays.binarySearch(liveIds, cursor.getLong(0));
+                if (i >= 0) {
+                    stored[i] = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        long[] missingIds = new long[liveIds.length];
+        int missingCount = 0;
+        for (int i = 0; i < liveIds.length; i++) {
+            if (!stored[i]) {
+                missingIds[missingCount++] = liveIds[i];
+            }
+        }
+        return Arrays.copyOf(missingIds, missingCount);
+    }
+
+    public void clear() {
+        getWritableDatabase().delete(TABLE_TRACKS, null, null);
+    }
+
+    public long count() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_TRACKS);
+    }
+
+    /**
+     * @return the highest DATE_MODIFIED stored, 0 if there are no tracks
+     */
+    public long getMaxDateModified() {
+        return DatabaseUtils.longForQuery(getReadableDatabase(), SQL_MAX_DATE_MODIFIED, null);
+    }
+
+    /**
+     * Query a page of tracks, columns as in {@link #PROJECTION}
+     *
+     * @param order one of the {@code ORDER_*} constants
+     * @param limit negative for every track from {@code offset}
+     */
+    public Cursor query(int order, int offset, int limit) {
+        return getReadableDatabase().query(TABLE_TRACKS, PROJECTION, null, null, null, null,
+                ORDER_BY[order], limit(offset, limit));
+    }
+
+    /**
+     * Query a page of the tracks of an artist, case insensitive, in {@link #ORDER_ARTIST} order
+     */
+    public Cursor queryArtist(String artist, int offset, int limit) {
+        return getReadableDatabase().query(TABLE_TRACKS, PROJECTION,
+                COLUMN_ARTIST + "=? COLLATE NOCASE", new String[]{artist}, null, null,
+                ORDER_BY[ORDER_ARTIST], limit(offset, limit));
+    }
+
+    /**
+     * Query a page of the tracks of an album, case insensitive, in {@link #ORDER_ALBUM} order
+     */
+    public Cursor queryAlbum(String album, int offset, int limit) {
+        return getReadableDatabase().query(TABLE_TRACKS, PROJECTION,
+                COLUMN_ALBUM + "=? COLLATE NOCASE", new String[]{album}, null, null,
+                ORDER_BY[ORDER_ALBUM], limit(offset, limit));
+    }
+
+    /**
+     * Query a page of the tracks below a folder, in {@link #ORDER_PATH} order
+     *
+     * @param folder absolute path without the trailing slash
+     */
+    public Cursor queryFolder(String folder, int offset, int limit) {
+        // A range on the path index, '0' is the character after '/'
+        return getReadableDatabase().query(TABLE_TRACKS, PROJECTION,
+                COLUMN_DATA + ">=? AND " + COLUMN_DATA + "<?", new String[]{folder + "/", folder + "0"}, null, null,
+                ORDER_BY[ORDER_PATH], limit(offset, limit));
+    }
+
+    /**
+     * Read a page of tracks for the UI or the service queue
+     *
+     * @return read only views over a {@link LibraryStore}
+     */
+    public List<Audio> load(int order, int offset, int limit) {
+        return read(query(order, offset, limit), new LibraryStore.Builder());
+    }
+
+    /**
+     * Read and close a cursor returned here into {@code builder}
+     *
+     * @return the tracks added to {@code builder}, as read only views
+     */
+    public static List<Audio> read(Cursor cursor, LibraryStore.Builder builder) {
+        try {
+            while (cursor.moveToNext()) {
+                builder.add(cursor.getLong(INDEX_ID),
+                        cursor.getString(INDEX_DATA),
+                        cursor.getString(INDEX_TITLE),
+                        cursor.getString(INDEX_ALBUM),
+                        cursor.getString(INDEX_ARTIST),
+                        cursor.getLong(INDEX_ALBUM_ID),
+                        cursor.getLong(INDEX_DATE_MODIFIED));
+            }
+        } finally {
+            cursor.close();
+        }
+        return builder.build().asList();
+    }
+
+    private static String limit(int offset, int limit) {
+        // The LIMIT clause is checked against digits only, no -1 for unlimited
+        return offset + "," + (limit < 0 ? Integer.MAX_VALUE : limit);
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package itto.pl.musicplayer.data.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Small fixed-slot file holding the playback position: queue index, track id, resume position and
+ * the shuffle order state.
+ * <p>
+ * It is kept apart from the playlist snapshot because it changes on every skip. The file has two
+ * 64 byte slots written alternately, each with a sequence number and a CRC, so a torn write
+ * only loses the latest update. Updates are coalesced in memory and written on a background thread,
+ * a burst of skips costs a single write. Recovery reads the 128 byte file once, files with the 32
+ * byte slots of older versions are still read.
+ */
+public class PlaybackJournal {
+    private static final String FILE_NAME = "playback.journal";
+    private static final int SLOT_SIZE = 64;
+    private static final int SLOT_PAYLOAD = 48;
+    // Slots without the shuffle state
+    private static final int LEGACY_SLOT_SIZE = 32;
+    private static final int LEGACY_SLOT_PAYLOAD = LEGACY_SLOT_SIZE - 4;
+    private static final long FLUSH_DELAY_MS = 250;
+
+    private static PlaybackJournal sInstance;
+
+    public static final class State {
+        public static final State EMPTY = new State(0, -1, 0, 0, 0, -1, -1, -1);
+
+        final long mSequence;
+        private final int mIndex;
+        private final long mTrackId;
+        private final long mPosition;
+        private final long mShuffleSeed;
+        private final int mShuffleFirst;
+        private final int mShuffleDealt;
+        private final int mShufflePosition;
+
+        State(long sequence, int index, long trackId, long position, long shuffleSeed, int shuffleFirst,
+              int shuffleDealt, int shufflePosition) {
+            mSequence = sequence;
+            mIndex = index;
+            mTrackId = trackId;
+            mPosition = position;
+            mShuffleSeed = shuffleSeed;
+            mShuffleFirst = shuffleFirst;
+            mShuffleDealt = shuffleDealt;
+            mShufflePosition = shufflePosition;
+        }
+
+        /**
+         * @return queue index, -1 if nothing was recorded
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public long getTrackId() {
+            return mTrackId;
+        }
+
+        /**
+         * @return resume position in milliseconds
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * @return whether a shuffle order was recorded, see {@link #recordShuffle(long, int, int, int)}
+         */
+        public boolean isShuffle() {
+            return mShuffleDealt >= 0;
+        }
+
+        public long getShuffleSeed() {
+            return mShuffleSeed;
+        }
+
+        public int getShuffleFirst() {
+            return mShuffleFirst;
+        }
+
+        public int getShuffleDealt() {
+            return mShuffleDealt;
+        }
+
+        public int getShufflePosition() {
+            return mShufflePosition;
+        }
+    }
+
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ByteBuffer mSlot = ByteBuffer.allocate(SLOT_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by this
+    private State mState;
+    private long mWrittenSequence;
+    private boolean mFlushPending;
+
+    // Only touched on the executor
+    private RandomAccessFile mRandomAccessFile;
+
+    public static synchronized PlaybackJournal getInstance(File directory) {
+        if (sInstance == null) {
+            sInstance = new PlaybackJournal(new File(directory, FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    PlaybackJournal(File file) {
+        mFile = file;
+        mState = recover(file);
+        mWrittenSequence = mState.mSequence;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Record a new current track, the resume position goes back to 0
+     */
+    public void recordIndex(int index, long trackId) {
+        update(index, trackId, 0);
+    }
+
+    /**
+     * Record that the current track moved to {@code index}, e.g. after an edit of the queue.
+     * Track and resume position are kept.
+     */
+    public synchronized void recordIndexShift(int index) {
+        State state = mState;
+        update(index, state.mTrackId, state.mPosition);
+    }
+
+    /**
+     * Record the resume position of the current track in milliseconds
+     */
+    public void recordPosition(long position) {
+        State state = getState();
+        update(state.mIndex, state.mTrackId, position);
+    }
+
+    /**
+     * Record the state of the shuffle order, {@code dealt} -1 when shuffle is off
+     */
+    public synchronized void recordShuffle(long seed, int first, int dealt, int position) {
+        State state = mState;
+        mState = new State(state.mSequence + 1, state.mIndex, state.mTrackId, state.mPosition, seed, first,
+                dealt, position);
+        scheduleFlush();
+    }
+
+    public synchronized void clear() {
+        mState = new State(mState.mSequence + 1, -1, 0, 0, 0, -1, -1, -1);
+        scheduleFlush();
+    }
+
+    private synchronized void update(int index, long trackId, long position) {
+        State state = mState;
+        mState = new State(state.mSequence + 1, index, trackId, position, state.mShuffleSeed,
+                state.mShuffleFirst, state.mShuffleDealt, state.mShufflePosition);
+        scheduleFlush();
+    }
+
+    /**
+     * Write the latest state without waiting for the coalescing delay
+     */
+    public void flushNow() {
+        mExecutor.execute(mFlushTask);
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushPending) {
+            mFlushPending = true;
+            mExecutor.schedule(mFlushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        State state;
+        synchronized (this) {
+            mFlushPending = false;
+            state = mState;
+            if (state.mSequence == mWrittenSequence) {
+                return;
+            }
+        }
+        try {
+            if (mRandomAccessFile == null) {
+                mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            }
+            mSlot.clear();
+            mSlot.putLong(state.mSequence)
+                    .putInt(state.mIndex)
+                    .putLong(state.mTrackId)
+                    .putLong(state.mPosition)
+                    .putLong(state.mShuffleSeed)
+                    .putInt(state.mShuffleFirst)
+                    .putInt(state.mShuffleDealt)
+                    .putInt(state.mShufflePosition);
+            mCrc.reset();
+            mCrc.update(mSlot.array(), 0, SLOT_PAYLOAD);
+            mSlot.putInt((int) mCrc.getValue());
+            mSlot.flip();
+            // Alternate slots, the previous state stays intact while this one is written.
+            // The page cache survives a process death, the CRC covers a torn write on power loss.
+            FileChannel channel = mRandomAccessFile.getChannel();
+            long offset = (state.mSequence & 1) * SLOT_SIZE;
+            while (mSlot.hasRemaining()) {
+                offset += channel.write(mSlot, offset);
+            }
+            synchronized (this) {
+                mWrittenSequence = state.mSequence;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static State recover(File file) {
+        if (!file.exists()) {
+            return State.EMPTY;
+        }
+        State best = State.EMPTY;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] bytes = new byte[SLOT_SIZE * 2];
+                int length = raf.read(bytes);
+                best = recover(bytes, length, SLOT_SIZE, SLOT_PAYLOAD);
+                if (best == State.EMPTY) {
+                    best = recover(bytes, length, LEGACY_SLOT_SIZE, LEGACY_SLOT_PAYLOAD);
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return best;
+    }
+
+    private static State recover(byte[] bytes, int length, int slotSize, int payload) {
+        State best = State.EMPTY;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        for (int slot = 0; slot < 2; slot++) {
+            int start = slot * slotSize;
+            if (start + payload + 4 > length) {
+                // The last slot is only written up to its CRC
+                break;
+            }
+            crc.reset();
+            crc.update(bytes, start, payload);
+            if ((int) crc.getValue() != buffer.getInt(start + payload)) {
+                continue;
+            }
+            long sequence = buffer.getLong(start);
+            if (sequence <= best.mSequence) {
+                continue;
+            }
+            if (payload == SLOT_PAYLOAD) {
+                best = new State(sequence, buffer.getInt(start + 8), buffer.getLong(start + 12),
+                        buffer.getLong(start + 20), buffer.getLong(start + 28), buffer.getInt(start + 36),
+                        buffer.getInt(start + 40), buffer.getInt(start + 44));
+            } else {
+                best = new State(sequence, buffer.getInt(start + 8), buffer.getLong(start + 12),
+                        buffer.getLong(start + 20), 0, -1, -1, -1);
+            }
+        }
+        return best;
+    }
+}
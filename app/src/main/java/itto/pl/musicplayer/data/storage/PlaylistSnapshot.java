@@ -0,0 +1,291 @@
+package itto.pl.musicplayer.data.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import itto.pl.musicplayer.data.library.BrowseIndex;
+import itto.pl.musicplayer.data.library.LibraryStore;
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * Compact binary snapshot of a playlist.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header   int magic, int version, int recordCount, int stringCount
+ * strings  stringCount x string            artist and album names, each stored once
+ * records  recordCount x (int length, record)
+ * record   long id, long albumId, long dateModified, int artistRef, int albumRef,
+ *          string data, string title
+ * browse   int present, {@link BrowseIndex} with track positions into the records   (version 2)
+ * string   int byteLength (-1 for null), UTF-8 bytes
+ * </pre>
+ * Refs index the string table, -1 for null. Every record is length-prefixed so newer versions can
+ * append fields that older readers skip. Snapshots are written to a temp file and renamed over the
+ * old one, so a crash never leaves a half written playlist behind.
+ */
+public final class PlaylistSnapshot {
+    private static final int MAGIC = 0x4D504C53; // "MPLS"
+    public static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_FIXED_SIZE = 8 + 8 + 8 + 4 + 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private PlaylistSnapshot() {
+    }
+
+    /**
+     * Tracks of a snapshot, with the browse index saved along with them if there was one
+     */
+    public static final class Contents {
+        private final List<Audio> mTracks;
+        private final BrowseIndex mBrowseIndex;
+
+        public Contents(List<Audio> tracks, BrowseIndex browseIndex) {
+            mTracks = tracks;
+            mBrowseIndex = browseIndex;
+        }
+
+        public List<Audio> getTracks() {
+            return mTracks;
+        }
+
+        /**
+         * @return null if none was saved
+         */
+        public BrowseIndex getBrowseIndex() {
+            return mBrowseIndex;
+        }
+    }
+
+    public static void write(File file, List<Audio> audioList) throws IOException {
+        write(file, audioList, null);
+    }
+
+    /**
+     * @param browseIndex saved along if all of its tracks are in {@code audioList}, may be null
+     */
+    public static void write(File file, List<Audio> audioList, BrowseIndex browseIndex) throws IOException {
+        // Build the string table first, artist and album names repeat a lot in a real library
+        HashMap<String, Integer> stringRefs = new HashMap<>();
+        ArrayList<byte[]> strings = new ArrayList<>();
+        int size = audioList.size();
+        int[] artistRefs = new int[size];
+        int[] albumRefs = new int[size];
+        for (int i = 0; i < size; i++) {
+            Audio audio = audioList.get(i);
+            artistRefs[i] = intern(audio.getArtist(), stringRefs, strings);
+            albumRefs[i] = intern(audio.getAlbum(), stringRefs, strings);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(strings.size());
+            for (byte[] string : strings) {
+                putBytes(channel, buffer, string);
+            }
+            for (int i = 0; i < size; i++) {
+                Audio audio = audioList.get(i);
+                byte[] data = encode(audio.getData());
+                byte[] title = encode(audio.getTitle());
+                int length = RECORD_FIXED_SIZE + stringSize(data) + stringSize(title);
+                ensureRemaining(channel, buffer, 4 + RECORD_FIXED_SIZE);
+                buffer.putInt(length)
+                        .putLong(audio.getId())
+                        .putLong(audio.getAlbumId())
+                        .putLong(audio.getDateModified())
+                        .putInt(artistRefs[i])
+                        .putInt(albumRefs[i]);
+                putBytes(channel, buffer, data);
+                putBytes(channel, buffer, title);
+            }
+            int[] positions = browseIndex == null ? null : browseIndex.positionsIn(audioList);
+            ensureRemaining(channel, buffer, 4);
+            buffer.putInt(positions == null ? 0 : 1);
+            flush(channel, buffer);
+            if (positions != null) {
+                DataOutputStream browse = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+                browseIndex.write(browse, positions);
+                browse.flush();
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * @return the playlist as read only views over a {@link LibraryStore}
+     */
+    public static List<Audio> read(File file) throws IOException {
+        return readContents(file).getTracks();
+    }
+
+    public static Contents readContents(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Truncated snapshot " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            return read(buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    static Contents read(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a playlist snapshot");
+            }
+            int version = buffer.getInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int size = buffer.getInt();
+            int stringCount = buffer.getInt();
+            // Counts are checked against what is left before anything is allocated for them
+            if (stringCount < 0 || (long) stringCount * 4 > buffer.remaining()) {
+                throw new IOException("Bad string count " + stringCount);
+            }
+            byte[] scratch = new byte[256];
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = getString(buffer, scratch);
+            }
+            if (size < 0 || (long) size * (4 + RECORD_FIXED_SIZE + 8) > buffer.remaining()) {
+                throw new IOException("Bad record count " + size);
+            }
+            LibraryStore.Builder builder = new LibraryStore.Builder();
+            for (int i = 0; i < size; i++) {
+                int length = buffer.getInt();
+                if (length < RECORD_FIXED_SIZE + 8 || length > buffer.remaining()) {
+                    throw new IOException("Bad record length " + length);
+                }
+                int next = buffer.position() + length;
+                long id = buffer.getLong();
+                long albumId = buffer.getLong();
+                long dateModified = buffer.getLong();
+                String artist = ref(strings, buffer.getInt());
+                String album = ref(strings, buffer.getInt());
+                String data = getString(buffer, scratch);
+                String title = getString(buffer, scratch);
+                if (buffer.position() > next) {
+                    throw new IOException("Record " + i + " overruns its length");
+                }
+                builder.add(id, data, title, album, artist, albumId, dateModified);
+                // Skip fields appended by newer versions
+                buffer.position(next);
+            }
+            List<Audio> tracks = builder.build().asList();
+            BrowseIndex browseIndex = null;
+            if (version >= 2 && buffer.getInt() != 0) {
+                browseIndex = BrowseIndex.read(buffer, tracks);
+            }
+            return new Contents(tracks, browseIndex);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupted playlist snapshot", e);
+        }
+    }
+
+    private static int intern(String value, HashMap<String, Integer> refs, ArrayList<byte[]> strings) {
+        if (value == null) {
+            return -1;
+        }
+        Integer ref = refs.get(value);
+        if (ref == null) {
+            ref = strings.size();
+            refs.put(value, ref);
+            strings.add(value.getBytes(UTF_8));
+        }
+        return ref;
+    }
+
+    private static String ref(String[] strings, int ref) throws IOException {
+        if (ref >= strings.length || ref < -1) {
+            throw new IOException("Bad string ref " + ref);
+        }
+        return ref < 0 ? null : strings[ref];
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(UTF_8);
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static String getString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    private static void putBytes(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+        ensureRemaining(channel, buffer, 4);
+        if (bytes == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(bytes.length);
+        if (bytes.length > buffer.capacity()) {
+            // Larger than the whole buffer, hand it to the channel directly
+            flush(channel, buffer);
+            ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+            return;
+        }
+        ensureRemaining(channel, buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() < needed) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
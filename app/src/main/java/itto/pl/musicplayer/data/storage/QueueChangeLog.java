@@ -0,0 +1,215 @@
+package itto.pl.musicplayer.data.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import itto.pl.musicplayer.data.model.Audio;
+import itto.pl.musicplayer.data.model.PlayQueue;
+
+/**
+ * Queue edits made since the last {@link PlaylistSnapshot}, appended as they happen so an edit of a
+ * large queue costs a few bytes on disk instead of a rewrite of the whole snapshot.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header   int magic, int version
+ * records  int length, int crc, change
+ * change   byte kind, int index, then
+ *          insert  int count, count x (long id, long albumId, long dateModified,
+ *                  string data, string title, string album, string artist)
+ *          remove  nothing
+ *          move    int to
+ * string   int byteLength (-1 for null), UTF-8 bytes
+ * </pre>
+ * The CRC covers the change. Nothing is synced, a record torn by a power loss fails its CRC and
+ * the replay stops there. The log is only valid for the snapshot it was started after, the owner
+ * deletes it before writing a new snapshot.
+ */
+public final class QueueChangeLog {
+    private static final int MAGIC = 0x4D50514C; // "MPQL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private QueueChangeLog() {
+    }
+
+    /**
+     * @return the size of the log in bytes after the append
+     */
+    public static long append(File file, List<PlayQueue.Change> changes) throws IOException {
+        boolean empty = file.length() < HEADER_SIZE;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !empty)));
+        try {
+            if (empty) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            CRC32 crc = new CRC32();
+            for (PlayQueue.Change change : changes) {
+                bytes.reset();
+                writeChange(record, change);
+                crc.reset();
+                crc.update(bytes.toByteArray(), 0, bytes.size());
+                out.writeInt(bytes.size());
+                out.writeInt((int) crc.getValue());
+                bytes.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+        return file.length();
+    }
+
+    /**
+     * Apply the logged edits to the queue read from the snapshot
+     *
+     * @return {@code queue} with every intact record applied
+     */
+    public static PlayQueue replay(File file, PlayQueue queue) throws IOException {
+        if (!file.exists()) {
+            return queue;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a queue change log");
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported queue change log version " + version);
+            }
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[256];
+            while (true) {
+                int length;
+                int expected;
+                try {
+                    length = in.readInt();
+                    expected = in.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    if (length > record.length) {
+                        record = new byte[length];
+                    }
+                    in.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    // End of the log, or a record torn while it was appended
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != expected) {
+                    break;
+                }
+                PlayQueue.Change change = readChange(
+                        new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+                if (!fits(change, queue.size())) {
+                    throw new IOException("Queue change log does not match the snapshot");
+                }
+                queue = queue.apply(change);
+            }
+            return queue;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean fits(PlayQueue.Change change, int size) {
+        switch (change.getKind()) {
+            case PlayQueue.Change.INSERT:
+                return change.getIndex() >= 0 && change.getIndex() <= size;
+            case PlayQueue.Change.REMOVE:
+                return change.getIndex() >= 0 && change.getIndex() < size;
+            default:
+                return change.getIndex() >= 0 && change.getIndex() < size && change.getTo() >= 0
+                        && change.getTo() < size;
+        }
+    }
+
+    private static void writeChange(DataOutputStream out, PlayQueue.Change change) throws IOException {
+        out.writeByte(change.getKind());
+        out.writeInt(change.getIndex());
+        switch (change.getKind()) {
+            case PlayQueue.Change.INSERT:
+                List<Audio> items = change.getItems();
+                out.writeInt(items.size());
+                for (Audio audio : items) {
+                    out.writeLong(audio.getId());
+                    out.writeLong(audio.getAlbumId());
+                    out.writeLong(audio.getDateModified());
+                    writeString(out, audio.getData());
+                    writeString(out, audio.getTitle());
+                    writeString(out, audio.getAlbum());
+                    writeString(out, audio.getArtist());
+                }
+                break;
+            case PlayQueue.Change.MOVE:
+                out.writeInt(change.getTo());
+                break;
+        }
+    }
+
+    private static PlayQueue.Change readChange(DataInputStream in) throws IOException {
+        int kind = in.readByte();
+        int index = in.readInt();
+        switch (kind) {
+            case PlayQueue.Change.INSERT:
+                int count = in.readInt();
+                List<Audio> items = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long id = in.readLong();
+                    long albumId = in.readLong();
+                    long dateModified = in.readLong();
+                    String data = readString(in);
+                    String title = readString(in);
+                    String album = readString(in);
+                    String artist = readString(in);
+                    items.add(new Audio(id, data, title, album, artist, albumId, dateModified));
+                }
+                return PlayQueue.Change.insert(index, items);
+            case PlayQueue.Change.REMOVE:
+                return PlayQueue.Change.remove(index);
+            case PlayQueue.Change.MOVE:
+                return PlayQueue.Change.move(index, in.readInt());
+            default:
+                throw new IOException("Unknown queue change " + kind);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,111 @@
+package itto.pl.musicplayer.service;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Fixed size log-linear histogram of latencies in microseconds, in the spirit of HdrHistogram.
+ * <p>
+ * Every power of two range is split into {@link #SUB_BUCKETS} linear buckets, so any recorded value
+ * is known within about 6% from 1us up to an hour, in 464 counters. Recording is O(1) and never
+ * allocates. Min, max, count and sum are exact.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values from 2^32 us (71 minutes) on go to the last bucket
+    private static final int MAX_EXPONENT = 31;
+    private static final int BUCKET_COUNT = bucketIndex((1L << (MAX_EXPONENT + 1)) - 1) + 1;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(micros, 0);
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        long subBucket = Math.min(micros >>> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) subBucket;
+    }
+
+    /**
+     * @return the largest value counted in bucket {@code index}
+     */
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public synchronized void record(long micros) {
+        mCounts[bucketIndex(micros)]++;
+        mCount++;
+        mSum += micros;
+        mMin = Math.min(mMin, micros);
+        mMax = Math.max(mMax, micros);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * @param percentile in [0, 100]
+     * @return a value at least as large as {@code percentile} percent of the recorded values, within
+     * the precision of a bucket, 0 if nothing was recorded
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                // The last bucket is open ended
+                long bound = i == mCounts.length - 1 ? mMax : bucketUpperBound(i);
+                return Math.min(Math.max(bound, mMin), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Print one line of milliseconds: count, mean, p50, p90, p99 and max
+     */
+    public synchronized void dump(PrintWriter writer, String name) {
+        writer.println(String.format(Locale.US, "  %-20s count %d  mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+                name, mCount, getMean() / 1000, getValueAtPercentile(50) / 1000.0,
+                getValueAtPercentile(90) / 1000.0, getValueAtPercentile(99) / 1000.0, mMax / 1000.0));
+    }
+}
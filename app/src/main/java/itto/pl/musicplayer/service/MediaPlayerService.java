@@ -1,6 +1,5 @@
 package itto.pl.musicplayer.service;
 
-import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
@@ -9,12 +8,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.media.session.MediaSessionManager;
 import android.os.Binder;
-import android.os.Build;
 import android.os.IBinder;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
@@ -23,26 +19,92 @@ import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import androidx.core.app.NotificationCompat;
-import itto.pl.musicplayer.MainActivity;
 import itto.pl.musicplayer.R;
+import itto.pl.musicplayer.data.art.AlbumArtCache;
+import itto.pl.musicplayer.data.library.BrowseIndex;
 import itto.pl.musicplayer.data.model.Audio;
+import itto.pl.musicplayer.data.model.PlayQueue;
+import itto.pl.musicplayer.data.model.ShuffleOrder;
+import itto.pl.musicplayer.data.storage.PlaylistSnapshot;
 import itto.pl.musicplayer.utils.MediaUtil.PlaybackStatus;
 import itto.pl.musicplayer.utils.StorageUtil;
 
 import static itto.pl.musicplayer.utils.Constants.TAGG;
 
-public class MediaPlayerService extends Service implements MediaPlayer.OnCompletionListener,
-        MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnSeekCompleteListener,
-        MediaPlayer.OnInfoListener, MediaPlayer.OnBufferingUpdateListener, AudioManager.OnAudioFocusChangeListener {
+/**
+ * Plays the queue handed over by the bound clients.
+ * <p>
+ * Every transport command (MediaSession callbacks, notification actions, broadcast receivers, focus
+ * changes and the binder API) is posted to a single {@link PlaybackThread}. Players, the current index
+ * and the metadata/notification updates live on that thread, only UI state is pushed back to the main
+ * thread through {@link PlaybackListener}.
+ */
+public class MediaPlayerService extends Service implements PlaybackEngine.Callback,
+        AudioManager.OnAudioFocusChangeListener {
     private static final String TAG = TAGG + MediaPlayerService.class.getSimpleName();
 
+    // Tokens of the commands that supersede a pending command of the same kind
+    private static final Object CMD_PLAY = new Object();
+    private static final Object CMD_SKIP = new Object();
+    private static final Object CMD_CHECKPOINT = new Object();
+
+    // Edge of the art handed to the MediaSession, lock screens and controllers scale it from there
+    private static final int SESSION_ART_SIZE_PX = 320;
+
+    // Quiet time after the last skip of a burst before the target audio is prepared
+    private static final long SKIP_DEBOUNCE_MS = 400;
+
+    // Resume position checkpoints while playing. The journal keeps them in memory and writes them
+    // in the background, a process death loses at most this much of the position.
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
+
+    public interface PlaybackListener {
+        /**
+         * Called on the main thread when another audio of the queue becomes the current one
+         */
+        void onAudioChanged(Audio audio, int index);
+
+        /**
+         * Called on the main thread when playback starts or stops
+         */
+        void onPlaybackStatusChanged(PlaybackStatus status);
+
+        /**
+         * Called on the main thread after the queue was edited
+         *
+         * @param change the edit, null if the whole queue was replaced
+         */
+        void onQueueChanged(PlayQueue queue, PlayQueue.Change change);
+
+        /**
+         * Called on the main thread once a {@link #restoreQueue()} is done
+         *
+         * @param restored true if the service holds a queue, restored or handed over earlier
+         */
+        void onQueueRestored(boolean restored);
+    }
+
     // Binder given to clients
     private final IBinder mBinder = new LocalBinder();
 
-    private MediaPlayer mMediaPlayer;
+    private final PlaybackThread mPlaybackThread = new PlaybackThread();
+
+    // Owns the MediaPlayers, pre-prepares the next queue item for gapless transitions.
+    // Only used on the playback thread, apart from the counters.
+    private volatile PlaybackEngine mEngine;
+    // Stamped by the engine and the commands, read by the bound clients and dumpsys
+    private final PlaybackMetrics mMetrics = new PlaybackMetrics();
+
+    // One audio session for every player, so clients can attach to it before anything is prepared
+    private int mAudioSessionId;
 
     // path to the audio file
     private String mMediaFile;
@@ -57,10 +119,38 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     private PhoneStateListener mPhoneStateListener;
     private TelephonyManager mTelephonyManager;
 
-    // List of available Audio files
-    private ArrayList<Audio> mAudioList;
+    // Latest queue handed over by the clients
+    private volatile PlayQueue mQueue = PlayQueue.EMPTY;
+    // Queue the current index refers to, only used on the playback thread
+    private PlayQueue mPlaybackQueue = PlayQueue.EMPTY;
     private int mAudioIndex = -1;
     private Audio mActiveAudio; // an object of the currently playing audio
+    // Play order while shuffle is on, null otherwise. Only used on the playback thread.
+    private ShuffleOrder mShuffle;
+    private volatile boolean mShuffleEnabled;
+    // Artists, albums and folders of the last scan, saved with the queue so browsing works before a rescan
+    private volatile BrowseIndex mBrowseIndex;
+
+    // Net index delta of the skips not yet run by the playback thread
+    private final AtomicInteger mPendingSkip = new AtomicInteger();
+    // The audio a burst of skips ended on waits for mPrepareSkipTarget, only used on the playback thread
+    private boolean mSkipTargetPending;
+
+    private volatile PlaybackListener mPlaybackListener;
+
+    private AlbumArtCache mArtCache;
+    // Last notification state, rebuilt once the album art is loaded. Only used on the playback thread.
+    private PlaybackStatus mNotificationStatus = PlaybackStatus.PLAYING;
+    private boolean mNotificationOnGoing = true;
+    // Last status told to the PlaybackListener, only used on the playback thread
+    private PlaybackStatus mPlaybackStatus;
+
+    // The queue is persisted in the background for durability only, clients hand it over through the binder
+    private final ExecutorService mPersistExecutor = Executors.newSingleThreadExecutor();
+    private PlayQueue mPendingPersistQueue;
+    // Edits made since the last write, appended to the log unless a full snapshot is pending
+    private final ArrayList<PlayQueue.Change> mPendingChanges = new ArrayList<>();
+    private boolean mPendingSnapshot;
 
     public static final String ACTION_PLAY = "itto.pl.musicplayer.ACTION_PLAY";
     public static final String ACTION_PAUSE = "itto.pl.musicplayer.ACTION_PAUSE";
@@ -68,7 +158,7 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     public static final String ACTION_NEXT = "itto.pl.musicplayer.ACTION_NEXT";
     public static final String ACTION_STOP = "itto.pl.musicplayer.ACTION_STOP";
 
-    public static final String NOTIFICATION_CHANNEL = "itto.channel";
+    public static final String NOTIFICATION_CHANNEL = NotificationController.NOTIFICATION_CHANNEL;
 
     // MediaSession
     // MediaSession allows interaction with media controllers, volume keys, media buttons, and transport controls.
@@ -76,8 +166,8 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     private MediaSessionCompat mMediaSession;
     private MediaControllerCompat.TransportControls mTransportControls;
 
-    // AudioPlayer notification ID
-    private static final int NOTIFICATION_ID = 101;
+    // Keeps the channel, PendingIntents and builders of the notification. Only used on the playback thread.
+    private NotificationController mNotificationController;
 
 
     @Override
@@ -86,53 +176,405 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     }
 
     /**
-     * The onStartCommand() handles the initialization of the MediaPlayer
-     * and the focus request to make sure there are no other apps playing media.
+     * The onStartCommand() handles the initialization of the MediaSession and the incoming
+     * MediaSession.TransportControls actions.
      * <p>
-     * This method will handle the initialization of the MediaSession,
-     * the MediaPlayer, loading the cached audio playlist and building the MediaStyle notification
+     * Clients call {@link #restoreQueue()} once bound, and hand a queue over with
+     * {@link #setQueue(PlayQueue, int)} if nothing was restored. The persisted queue is also loaded
+     * when a notification action arrives and the service has no queue, e.g. after the process was killed.
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand: ");
         try {
-            // LOad data from SharedPReferences
-            StorageUtil storageUtil = new StorageUtil(getApplicationContext());
+            initMediaSession();
+        } catch (Exception e) {
+            e.printStackTrace();
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        if (mQueue.isEmpty() && intent != null && intent.getAction() != null) {
+            // Restore the cached playlist, playback resumes at the stored index and position
+            mMetrics.onRequest(PlaybackMetrics.KIND_RESTORE);
+            mPlaybackThread.executeLatest(CMD_PLAY, new Runnable() {
+                @Override
+                public void run() {
+                    if (!restorePersistedQueue()) {
+                        stopSelf();
+                    }
+                }
+            });
+            return START_NOT_STICKY;
+        }
+
+        // Handle Intent action from MediaSession.TransportControls
+        handleIncomingActions(intent);
+
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Play the persisted queue from the stored audio and position, unless the service already holds
+     * a queue. The outcome comes with {@link PlaybackListener#onQueueRestored(boolean)}.
+     */
+    public void restoreQueue() {
+        if (mQueue.isEmpty()) {
+            mMetrics.onRequest(PlaybackMetrics.KIND_RESTORE);
+        }
+        // Not a latest-wins command, the client waits for the outcome
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                notifyQueueRestored(!mQueue.isEmpty() || restorePersistedQueue());
+            }
+        });
+    }
+
+    /**
+     * @return false if there was no queue or no valid index to restore, runs on the playback thread
+     */
+    private boolean restorePersistedQueue() {
+        StorageUtil storageUtil = new StorageUtil(getApplicationContext());
+        PlaylistSnapshot.Contents contents = storageUtil.loadLibrary();
+        List<Audio> audioList = contents == null ? null : contents.getTracks();
+        BrowseIndex browseIndex = contents == null ? null : contents.getBrowseIndex();
+        if (mBrowseIndex == null && browseIndex != null && browseIndex.isCurrentLocale()) {
+            mBrowseIndex = browseIndex;
+        }
+        int audioIndex = storageUtil.loadAudioIndex();
+        if (audioList == null || audioIndex < 0 || audioIndex >= audioList.size()) {
+            // Take the request, nothing will start
+            mMetrics.onCommand();
+            mMetrics.onCancelled();
+            return false;
+        }
+        PlayQueue queue = PlayQueue.of(audioList);
+        long position = storageUtil.loadResumePosition();
+        if (queue.get(audioIndex).getId() != storageUtil.loadAudioTrackId()) {
+            // The checkpoint belongs to another track
+            position = 0;
+        }
+        mQueue = queue;
+        mPlaybackQueue = queue;
+        mShuffle = storageUtil.loadShuffleOrder(queue.size(), audioIndex);
+        mShuffleEnabled = mShuffle != null;
+        mEngine.setShuffle(mShuffle);
+        notifyQueueChanged(queue, null);
+        play(queue, audioIndex, (int) position);
+        return true;
+    }
+
+    /**
+     * Replace the queue and start playing the audio at {@code index}
+     */
+    public void setQueue(final PlayQueue queue, final int index) {
+        synchronized (this) {
+            mQueue = queue;
+            persistQueue(queue, null);
+        }
+        mMetrics.onRequest(PlaybackMetrics.KIND_PLAY);
+        mPlaybackThread.executeLatest(CMD_PLAY, new Runnable() {
+            @Override
+            public void run() {
+                play(queue, index);
+            }
+        });
+    }
+
+    public PlayQueue getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Hand over the browse index of a finished scan, it is persisted along with the queue
+     */
+    public void setBrowseIndex(BrowseIndex browseIndex) {
+        mBrowseIndex = browseIndex;
+        synchronized (this) {
+            persistQueue(mQueue, null);
+        }
+    }
+
+    /**
+     * @return the latest browse index, null until a scan finished or the saved one was restored
+     */
+    public BrowseIndex getBrowseIndex() {
+        return mBrowseIndex;
+    }
+
+    /**
+     * Append audio files to the end of the queue, the current audio keeps playing
+     */
+    public void enqueue(List<Audio> audioList) {
+        synchronized (this) {
+            editQueue(PlayQueue.Change.insert(mQueue.size(), audioList));
+        }
+    }
+
+    /**
+     * Insert audio files before the queue item at {@code index}, the current audio keeps playing
+     */
+    public void insertQueueItems(int index, List<Audio> audioList) {
+        editQueue(PlayQueue.Change.insert(index, audioList));
+    }
+
+    /**
+     * Move a queue item, the current audio keeps playing
+     */
+    public void moveQueueItem(int from, int to) {
+        editQueue(PlayQueue.Change.move(from, to));
+    }
+
+    /**
+     * Remove a queue item. If it is the current audio the following one takes its place, playing
+     * or paused as the removed one was.
+     */
+    public void removeQueueItem(int index) {
+        editQueue(PlayQueue.Change.remove(index));
+    }
+
+    private void editQueue(final PlayQueue.Change change) {
+        final PlayQueue base;
+        final PlayQueue queue;
+        synchronized (this) {
+            base = mQueue;
+            queue = base.apply(change);
+            mQueue = queue;
+            persistQueue(queue, change);
+        }
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                onQueueEdited(base, queue, change);
+            }
+        });
+    }
+
+    /**
+     * Play the queue item at {@code index}
+     */
+    public void playAtIndex(final int index) {
+        final PlayQueue queue = mQueue;
+        mMetrics.onRequest(PlaybackMetrics.KIND_PLAY);
+        mPlaybackThread.executeLatest(CMD_PLAY, new Runnable() {
+            @Override
+            public void run() {
+                play(queue, index);
+            }
+        });
+    }
+
+    public void setPlaybackListener(PlaybackListener listener) {
+        mPlaybackListener = listener;
+    }
 
-            mAudioList = storageUtil.loadAudio();
-            mAudioIndex = storageUtil.loadAudioIndex();
+    // Runs on the playback thread
+    private void play(PlayQueue queue, int index) {
+        play(queue, index, 0);
+    }
 
-            if (mAudioIndex != -1 && mAudioIndex < mAudioList.size()) {
-                // index is is a valid range
-                mActiveAudio = mAudioList.get(mAudioIndex);
-            } else {
+    // Runs on the playback thread
+    private void play(PlayQueue queue, int index, int position) {
+        mMetrics.onCommand();
+        // Supersedes a pending skip target
+        mSkipTargetPending = false;
+        if (index < 0 || index >= queue.size()) {
+            Log.e(TAG, "play: invalid index " + index + ", queue size " + queue.size());
+            mMetrics.onCancelled();
+            return;
+        }
+        if (mEngine.isReleased()) {
+            // Request audio focus
+            if (!requestAudioFocus()) {
+                // Could not gain focus
                 stopSelf();
+                return;
             }
-        } catch (NullPointerException e) {
-            stopSelf();
         }
-        // Request audio focus
-        if (requestAudioFocus() == false) {
-            // Could not gain focus
-            stopSelf();
+        ShuffleOrder shuffle = mShuffle;
+        if (mShuffleEnabled && (shuffle == null || queue != mPlaybackQueue || shuffle.size() != queue.size())) {
+            // Another queue, its order starts with the requested audio
+            mShuffle = newShuffleOrder(queue.size());
         }
+        if (mShuffle != null) {
+            mShuffle.jumpTo(index);
+        }
+        setActiveAudio(queue, index);
+        mResumePosition = position;
+        if (position > 0) {
+            new StorageUtil(getApplicationContext()).storeResumePosition(position);
+        }
+        mEngine.play(queue, index, position);
+        if (mShuffle != shuffle) {
+            mEngine.setShuffle(mShuffle);
+        }
+        updateMetaData();
+        buildNotification(PlaybackStatus.PLAYING, true);
+    }
 
-        if (mMediaSessionManager == null) {
-            try {
-                initMediaSession();
-                initMediaPlayer();
-                buildNotification(PlaybackStatus.PLAYING, true);
-            } catch (Exception e) {
-                e.printStackTrace();
+    // Prepares the audio a burst of skips ended on, runs on the playback thread
+    private final Runnable mPrepareSkipTarget = new Runnable() {
+        @Override
+        public void run() {
+            mSkipTargetPending = false;
+            if (mEngine.isReleased() && !requestAudioFocus()) {
+                // Could not gain focus
                 stopSelf();
+                return;
             }
+            mEngine.play(mPlaybackQueue, mAudioIndex);
+        }
+    };
 
+    // Runs on the playback thread
+    private void onQueueEdited(PlayQueue base, PlayQueue queue, PlayQueue.Change change) {
+        StorageUtil storageUtil = new StorageUtil(getApplicationContext());
+        int audioIndex = mAudioIndex;
+        // Only an edit of the queue being played moves the current index
+        boolean follow = base == mPlaybackQueue;
+        if (follow) {
+            audioIndex = change.mapIndex(mAudioIndex);
+            if (mShuffle != null && mShuffle.size() == base.size()) {
+                mShuffle.onChange(change);
+            }
         }
+        mPlaybackQueue = queue;
+        if (mShuffle != null && mShuffle.size() != queue.size()) {
+            // The edit was based on another queue, start a new order from the current audio
+            mShuffle = newShuffleOrder(queue.size());
+            if (audioIndex >= 0 && audioIndex < queue.size()) {
+                mShuffle.start(audioIndex);
+            }
+            mEngine.setShuffle(mShuffle);
+        }
+        notifyQueueChanged(queue, change);
 
-        // Handle Intent action from MediaSession.TransportControls
-        handleIncomingActions(intent);
+        if (follow && mAudioIndex != -1 && audioIndex == -1) {
+            // The current audio was removed
+            onCurrentRemoved(queue);
+            return;
+        }
+        if (mAudioIndex != -1 && audioIndex != mAudioIndex) {
+            mAudioIndex = audioIndex;
+            // Same audio at another index, the position stored for it still holds
+            storageUtil.storeShiftedAudioIndex(mAudioIndex);
+        }
+        if (mShuffle != null) {
+            storageUtil.storeShuffleOrder(mShuffle);
+        }
+        mEngine.setQueue(queue, mAudioIndex);
+    }
 
-        return START_NOT_STICKY;
+    // Runs on the playback thread
+    private void onCurrentRemoved(PlayQueue queue) {
+        int removed = mAudioIndex;
+        if (queue.isEmpty()) {
+            mAudioIndex = -1;
+            stopMedia();
+            buildNotification(PlaybackStatus.PAUSED, false);
+            return;
+        }
+        boolean wasPlaying = mEngine.isPlaying();
+        int index = mShuffle != null ? mShuffle.next() : Math.min(removed, queue.size() - 1);
+        play(queue, index);
+        if (!wasPlaying) {
+            mEngine.pause();
+            mResumePosition = 0;
+            buildNotification(PlaybackStatus.PAUSED, false);
+        }
+    }
+
+    private void notifyQueueRestored(final boolean restored) {
+        final PlaybackListener listener = mPlaybackListener;
+        if (listener != null) {
+            mPlaybackThread.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onQueueRestored(restored);
+                }
+            });
+        }
+    }
+
+    private void notifyQueueChanged(final PlayQueue queue, final PlayQueue.Change change) {
+        final PlaybackListener listener = mPlaybackListener;
+        if (listener != null) {
+            mPlaybackThread.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onQueueChanged(queue, change);
+                }
+            });
+        }
+    }
+
+    // Runs on the playback thread
+    private void setActiveAudio(PlayQueue queue, final int index) {
+        mPlaybackQueue = queue;
+        mAudioIndex = index;
+        final Audio audio = mActiveAudio = queue.get(index);
+        StorageUtil storageUtil = new StorageUtil(getApplicationContext());
+        storageUtil.storeAudioIndex(index, audio.getId());
+        if (mShuffle != null) {
+            storageUtil.storeShuffleOrder(mShuffle);
+        }
+
+        final PlaybackListener listener = mPlaybackListener;
+        if (listener != null) {
+            mPlaybackThread.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onAudioChanged(audio, index);
+                }
+            });
+        }
+    }
+
+    /**
+     * Persist {@code queue} in the background, called together with the update of {@link #mQueue}
+     * so the edits reach the log in order
+     *
+     * @param change the edit that made {@code queue}, null to write the whole queue
+     */
+    private void persistQueue(PlayQueue queue, PlayQueue.Change change) {
+        boolean scheduled;
+        synchronized (mPersistExecutor) {
+            scheduled = mPendingPersistQueue != null;
+            mPendingPersistQueue = queue;
+            if (change == null) {
+                mPendingSnapshot = true;
+                mPendingChanges.clear();
+            } else if (!mPendingSnapshot) {
+                mPendingChanges.add(change);
+            }
+        }
+        if (scheduled) {
+            // The pending write picks up the newest queue
+            return;
+        }
+        mPersistExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PlayQueue queue;
+                List<PlayQueue.Change> changes;
+                boolean snapshot;
+                synchronized (mPersistExecutor) {
+                    queue = mPendingPersistQueue;
+                    changes = new ArrayList<>(mPendingChanges);
+                    snapshot = mPendingSnapshot;
+                    mPendingPersistQueue = null;
+                    mPendingChanges.clear();
+                    mPendingSnapshot = false;
+                }
+                StorageUtil storageUtil = new StorageUtil(getApplicationContext());
+                if (snapshot) {
+                    storageUtil.storeAudio(queue.asList(), mBrowseIndex);
+                } else {
+                    storageUtil.storeQueueChanges(changes, queue, mBrowseIndex);
+                }
+            }
+        });
     }
 
     /**
@@ -141,18 +583,27 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
      * if there are no interruptions from other media apps for audio focus.
      * <p>
      * If you want a more dynamic focus control, you can request audio focus when new media
-     * starts playing and release it in the {@link #onCompletion} method,
+     * starts playing and release it in the {@link #onPlaybackCompleted} method,
      * so the service will have focus control only while playing something.
      */
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mMediaPlayer != null) {
-            stopMedia();
-            mMediaPlayer.release();
-        }
+        // Commands already posted run first, then the players are released and the thread ends
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The queue, the current audio and its position are kept for the next start
+                checkpoint();
+                new StorageUtil(getApplicationContext()).flushPlaybackState();
+                stopMedia();
+                mEngine.release();
+                removeAudioFocus();
+                removeNotification();
+            }
+        });
+        mPlaybackThread.quit();
         releaseNotification();
-        removeAudioFocus();
 
         //You must unregister all the registered BroadcastReceivers when they are not needed anymore.
         // This happens in the Services onDestroy() method
@@ -162,27 +613,46 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
             mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
         }
 
-        removeNotification();
-
         // Unregister BroadcastReceivers
         unregisterReceiver(mBecomingNoisyReceiver);
-        unregisterReceiver(mPlayeNewAudio);
 
-        // clear cached playlist
-        new StorageUtil(getApplicationContext()).clearCachedAudioPlaylist();
+        mPersistExecutor.shutdown();
+        mArtCache.shutdown();
+    }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            // Decoded art is rebuilt from the disk cache when needed
+            mArtCache.trimMemory();
+        }
     }
 
     private void releaseNotification() {
         NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        manager.cancel(NOTIFICATION_ID);
+        manager.cancel(NotificationController.NOTIFICATION_ID);
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
         // Perform one-time setup procedures
-
+        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        mAudioSessionId = mAudioManager.generateAudioSessionId();
+        int artSize = Math.max(SESSION_ART_SIZE_PX,
+                getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width));
+        mArtCache = new AlbumArtCache(getApplicationContext(), R.drawable.ic_album, artSize,
+                (int) (Runtime.getRuntime().maxMemory() / 32));
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Created on the playback thread so the players deliver their callbacks there
+                mEngine = new PlaybackEngine(MediaPlayerService.this, mAudioSessionId, mMetrics);
+                // Shuffle stays on across restarts, the order of a new queue is dealt when it is played
+                mShuffleEnabled = new StorageUtil(getApplicationContext()).loadShuffle();
+            }
+        });
 
         // Manage incoming calls during playback
         // Pause MediaPlayer on incoming call
@@ -190,74 +660,65 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         callStateListener();
         // ACTION_AUDIO_BECOME_NOISY -- chane in audio outputs -- BroadcastReceiver
         registerBecomingNoisyReceiver();
-        // Listen for new Audio to play -- BroadcastReceiver
-        registerPlayNewAudio();
     }
 
+    // Runs on the playback thread
     @Override
-    public void onCompletion(MediaPlayer mp) {
-        //Invoked when playback of a media source has completed.
-        stopMedia();
-        // stop the service
-        stopSelf();
-    }
-
-    //Handle errors
-    @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
-        // Invoked when there has been an error during an asynchronous operation
-        switch (what) {
-            case MediaPlayer.MEDIA_ERROR_NOT_VALID_FOR_PROGRESSIVE_PLAYBACK:
-                Log.d("MediaPlayer Error", "MEDIA ERROR NOT VALID FOR PROGRESSIVE PLAYBACK " + extra);
-                break;
-            case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
-                Log.d(TAG, "MEDIA ERROR SERVER DIED " + extra);
-                break;
-            case MediaPlayer.MEDIA_ERROR_UNKNOWN:
-                Log.d(TAG, "MEDIA ERROR UNKNOWN " + extra);
-                break;
+    public void onTrackChanged(int index) {
+        // Gapless transition, the engine already plays the next audio
+        if (mShuffle != null) {
+            mShuffle.jumpTo(index);
         }
-        return false;
-    }
-
-    @Override
-    public boolean onInfo(MediaPlayer mp, int what, int extra) {
-        //Invoked to communicate some info.
-        return false;
+        setActiveAudio(mPlaybackQueue, index);
+        updateMetaData();
+        buildNotification(PlaybackStatus.PLAYING, true);
     }
 
+    // Runs on the playback thread
     @Override
-    public void onPrepared(MediaPlayer mp) {
-        Log.d(TAG, "onPrepared: ");
-        //Invoked when the media source is ready for playback
-        playMedia();
+    public void onPlaybackCompleted() {
+        //Invoked when playback of the last media source has completed.
+        stopMedia();
+        new StorageUtil(getApplicationContext()).storeResumePosition(0);
+        setPlaybackStatus(PlaybackStatus.PAUSED);
+        // stop the service
+        stopSelf();
     }
 
+    // Runs on the playback thread
     @Override
-    public void onSeekComplete(MediaPlayer mp) {
-        //Invoked indicating the completion of a seek operation.
+    public void onPlaybackError(int what, int extra) {
+        Log.e(TAG, "onPlaybackError: " + what + ", " + extra);
+        stopSelf();
     }
 
     @Override
-    public void onBufferingUpdate(MediaPlayer mp, int percent) {
-        //Invoked indicating buffering status of
-        //a media resource being streamed over the network.
+    public void onAudioFocusChange(final int focusChange) {
+        //Invoked when the audio focus of the system is updated.
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleAudioFocusChange(focusChange);
+            }
+        });
     }
 
-    @Override
-    public void onAudioFocusChange(int focusChange) {
-        //Invoked when the audio focus of the system is updated.
+    // Runs on the playback thread
+    private void handleAudioFocusChange(int focusChange) {
         switch (focusChange) {
             case AudioManager.AUDIOFOCUS_GAIN:
                 //The service gained audio focus, so it needs to start playing.
 
                 //Resume Playback
-                if (mMediaPlayer == null) {
-                    initMediaPlayer();
-                } else if (!mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.start();
+                if (mEngine.isReleased()) {
+                    if (mAudioIndex != -1) {
+                        // Where the loss checkpointed it
+                        mEngine.play(mPlaybackQueue, mAudioIndex, mResumePosition);
+                    }
+                } else {
+                    mEngine.start();
                 }
-                mMediaPlayer.setVolume(1.0f, 1.0f);
+                mEngine.setVolume(1.0f);
                 break;
             case AudioManager.AUDIOFOCUS_LOSS:
                 //The service lost audio focus, the user probably moved to playing media on another app,
@@ -265,35 +726,35 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
 
                 // Lost focus for an unbounded amount of time: stop playback
                 // and release media player
-                if (mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.stop();
-                }
-                mMediaPlayer.release();
-                mMediaPlayer = null;
+                mMetrics.onFocusLoss(PlaybackMetrics.FOCUS_LOSS);
+                checkpoint();
+                mEngine.stop();
+                mEngine.release();
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
                 // Focus lost for a short time, pause the MediaPlayer.
 
                 // Lost focus for a short time, but we have to stop playback
                 // We don't release the media player because playback is likely to resume
-                if (mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.pause();
-                }
+                mMetrics.onFocusLoss(PlaybackMetrics.FOCUS_LOSS_TRANSIENT);
+                // A permanent loss may follow while paused, record the position now
+                checkpoint();
+                mEngine.pause();
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
                 //Lost focus for a short time, probably a notification arrived on the device, lower the playback volume.
 
                 // Lost focus for a short time, but it's ok to keep playing
                 // at an attenuated level
-                if (mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.setVolume(0.1f, 0.1f);
+                mMetrics.onFocusLoss(PlaybackMetrics.FOCUS_LOSS_TRANSIENT_CAN_DUCK);
+                if (mEngine.isPlaying()) {
+                    mEngine.setVolume(0.1f);
                 }
                 break;
         }
     }
 
     private boolean requestAudioFocus() {
-        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
         int result = mAudioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN);
         if (result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
             // Focus gained
@@ -313,67 +774,97 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         }
     }
 
-    private void initMediaPlayer() {
-        Log.d(TAG, "initMediaPlayer: ");
-        mMediaPlayer = new MediaPlayer();
-        // Set up MediaPlayer event listeners
-        mMediaPlayer.setOnCompletionListener(this);
-        mMediaPlayer.setOnErrorListener(this);
-        mMediaPlayer.setOnPreparedListener(this);
-        mMediaPlayer.setOnBufferingUpdateListener(this);
-        mMediaPlayer.setOnSeekCompleteListener(this);
-        mMediaPlayer.setOnInfoListener(this);
-
-        // Reset so that the MediaPlayer is not pointing to another data source
-        mMediaPlayer.reset();
-
-        mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    // Runs on the playback thread
+    private void stopMedia() {
+        mMetrics.onCancelled();
+        mEngine.stop();
+    }
 
-        try {
-            // Set the data source to the mediaFile Location
-            mMediaPlayer.setDataSource(mActiveAudio.getData());
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.e(TAG, "Error in initMediaPlayer: \n" + e.toString());
-            stopSelf();
+    // Runs on the playback thread
+    private void pauseMedia() {
+        mMetrics.onCancelled();
+        if (mEngine.isPlaying()) {
+            checkpoint();
+            mEngine.pause();
         }
-        mMediaPlayer.prepareAsync();
     }
 
-    private void playMedia() {
-        if (!mMediaPlayer.isPlaying()) {
-            mMediaPlayer.start();
+    // Runs on the playback thread
+    private void resumeMedia() {
+        mMetrics.onCommand();
+        if (mSkipTargetPending) {
+            // The paused player still holds the audio skipped away from, play the target right away
+            mPlaybackThread.cancel(CMD_PLAY);
+            mPrepareSkipTarget.run();
+        } else if (mEngine.isReleased()) {
+            // Released by a permanent focus loss, no focus gain comes unless asked for
+            if (mAudioIndex == -1 || !requestAudioFocus()) {
+                mMetrics.onCancelled();
+                return;
+            }
+            mEngine.play(mPlaybackQueue, mAudioIndex, mResumePosition);
+        } else if (!mEngine.isPlaying()) {
+            mEngine.seekTo(mResumePosition);
+            mEngine.start();
+        } else {
+            mMetrics.onCancelled();
         }
     }
 
-    private void stopMedia() {
-        if (mMediaPlayer != null) return;
-        if (mMediaPlayer.isPlaying()) {
-            mMediaPlayer.stop();
-        }
+    /**
+     * Pause and update the notification on the playback thread
+     */
+    private void postPause(final boolean onGoing) {
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                pauseMedia();
+                buildNotification(PlaybackStatus.PAUSED, onGoing);
+            }
+        });
     }
 
-    private void pauseMedia() {
-        if (mMediaPlayer.isPlaying()) {
-            mMediaPlayer.pause();
-            mResumePosition = mMediaPlayer.getCurrentPosition();
-        }
+    /**
+     * Resume and update the notification on the playback thread
+     */
+    private void postResume() {
+        mMetrics.onRequest(PlaybackMetrics.KIND_RESUME);
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                resumeMedia();
+                buildNotification(PlaybackStatus.PLAYING, true);
+            }
+        });
     }
 
-    private void resumeMedia() {
-        if (!mMediaPlayer.isPlaying()) {
-            mMediaPlayer.seekTo(mResumePosition);
-            mMediaPlayer.start();
-        }
+    /**
+     * Move {@code delta} items through the queue. Skips that pile up before the playback thread gets
+     * to them are folded into one command. The metadata and the notification follow every skip, the
+     * target audio is only prepared once the burst has been quiet for {@link #SKIP_DEBOUNCE_MS}.
+     */
+    private void postSkip(int delta) {
+        mPendingSkip.addAndGet(delta);
+        mMetrics.onRequest(PlaybackMetrics.KIND_SKIP);
+        mPlaybackThread.executeLatest(CMD_SKIP, mSkipCommand);
     }
 
+    private final Runnable mSkipCommand = new Runnable() {
+        @Override
+        public void run() {
+            int delta = mPendingSkip.getAndSet(0);
+            if (delta != 0 && mAudioIndex != -1) {
+                skipBy(delta);
+            }
+        }
+    };
+
     // Becoming noisy
     private BroadcastReceiver mBecomingNoisyReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             // pause audio on ACTION_AUDIO_BECOMING_NOISY
-            pauseMedia();
-            buildNotification(PlaybackStatus.PAUSED, true);
+            postPause(true);
         }
     };
 
@@ -397,7 +888,7 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
                     case TelephonyManager.CALL_STATE_OFFHOOK:
                     case TelephonyManager.CALL_STATE_RINGING:
                         if (mMediaFile != null) {
-                            pauseMedia();
+                            postPause(true);
                             mOnGoingCall = true;
                         }
                         break;
@@ -406,7 +897,7 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
                         if (mMediaFile != null) {
                             if (mOnGoingCall) {
                                 mOnGoingCall = false;
-                                resumeMedia();
+                                postResume();
                             }
                         }
                         break;
@@ -419,34 +910,6 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
     }
 
-    private BroadcastReceiver mPlayeNewAudio = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            // Get the new media index from SharedPreferences
-            mAudioIndex = new StorageUtil(getApplicationContext()).loadAudioIndex();
-            if (mAudioIndex != -1 && mAudioIndex < mAudioList.size()) {
-                // index is in a valid range
-                mActiveAudio = mAudioList.get(mAudioIndex);
-            } else {
-                stopSelf();
-            }
-
-            // A PLAY_NEW_AUDIO aciton received
-            // reset mediaplayer to play new audio
-            stopMedia();
-            mMediaPlayer.reset();
-            initMediaPlayer();
-            updateMetaData();
-            buildNotification(PlaybackStatus.PLAYING, true);
-        }
-    };
-
-    private void registerPlayNewAudio() {
-        // Register playMedia receiver
-        IntentFilter filter = new IntentFilter(MainActivity.BROADCAST_PLAY_NEW_AUDIO);
-        registerReceiver(mPlayeNewAudio, filter);
-    }
-
     private void initMediaSession() {
         if (mMediaSessionManager != null) {
             return; // MediaSessionManager exists
@@ -465,39 +928,54 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         // through its MediaSessionCompat.Callback
         mMediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
 
-        // Set mediaSession's MetaData
-        updateMetaData();
+        // The notification is only touched on the playback thread, so is its controller
+        final MediaSessionCompat.Token sessionToken = mMediaSession.getSessionToken();
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mNotificationController = new NotificationController(MediaPlayerService.this, sessionToken,
+                        mPlaybackThread, playbackAction(0), playbackAction(1), playbackAction(3), playbackAction(2));
+            }
+        });
 
-        // Attach Callback to receive MediaSession updates
+        // Attach Callback to receive MediaSession updates.
+        // The callbacks arrive on the main thread, the work is posted to the playback thread.
         mMediaSession.setCallback(new MediaSessionCompat.Callback() {
             // Implement callbacks
 
             @Override
             public void onPlay() {
                 super.onPlay();
-                resumeMedia();
-                buildNotification(PlaybackStatus.PLAYING, true);
+                postResume();
             }
 
             @Override
             public void onPause() {
                 super.onPause();
-                pauseMedia();
-                buildNotification(PlaybackStatus.PAUSED, false);
+                postPause(false);
             }
 
             @Override
             public void onSkipToNext() {
                 super.onSkipToNext();
-                skipToNext();
-                updateMetaData();
-                buildNotification(PlaybackStatus.PLAYING, true);
+                postSkip(1);
+            }
+
+            @Override
+            public void onSkipToPrevious() {
+                super.onSkipToPrevious();
+                postSkip(-1);
             }
 
             @Override
             public void onStop() {
                 super.onStop();
-                removeNotification();
+                mPlaybackThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeNotification();
+                    }
+                });
                 // Stop the service
                 stopSelf();
             }
@@ -509,8 +987,13 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         });
     }
 
+    // Runs on the playback thread
     private void updateMetaData() {
-        Bitmap albumArt = BitmapFactory.decodeResource(getResources(), R.drawable.ic_album); // replace with medias album art
+        if (mActiveAudio == null) {
+            // Nothing queued yet
+            return;
+        }
+        Bitmap albumArt = albumArt();
         // Update the current metadata
         mMediaSession.setMetadata(new MediaMetadataCompat.Builder()
                 .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt)
@@ -520,106 +1003,114 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
                 .build());
     }
 
-    private void skipToNext() {
-        if (mAudioIndex == mAudioList.size() - 1) {
-            // if last in playlist
-            mAudioIndex = 0;
-            mActiveAudio = mAudioList.get(mAudioIndex);
-        } else {
-            // get next in playlist
-            mActiveAudio = mAudioList.get(++mAudioIndex);
+    /**
+     * @return the art of the active audio if it is decoded already, null otherwise. A missing art is
+     * loaded in the background and the metadata and notification are refreshed once it is there.
+     */
+    private Bitmap albumArt() {
+        Bitmap albumArt = mArtCache.get(mActiveAudio.getAlbumId());
+        if (albumArt == null) {
+            mArtCache.load(mActiveAudio, mArtListener);
+            albumArt = mArtCache.getPlaceholder();
         }
-
-        // Update stored index
-        new StorageUtil(getApplicationContext()).storeAudioIndex(mAudioIndex);
-
-        stopMedia();
-        // Reset Media Player
-        mMediaPlayer.reset();
-        initMediaPlayer();
+        return albumArt;
     }
 
-    private void skipToPrevious() {
-        if (mAudioIndex == 0) {
-            // If first in playlist
-            // set index to the last of audioList
-            mAudioIndex = mAudioList.size() - 1;
-            mActiveAudio = mAudioList.get(mAudioIndex);
+    private final AlbumArtCache.Listener mArtListener = new AlbumArtCache.Listener() {
+        @Override
+        public void onArtLoaded(final long albumId, Bitmap bitmap) {
+            mPlaybackThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mActiveAudio != null && mActiveAudio.getAlbumId() == albumId) {
+                        updateMetaData();
+                        buildNotification(mNotificationStatus, mNotificationOnGoing);
+                    }
+                }
+            });
+        }
+    };
+
+    // Runs on the playback thread
+    private void skipBy(int delta) {
+        mMetrics.onCommand();
+        int index;
+        if (mShuffle != null) {
+            index = mShuffle.skip(delta);
         } else {
-            // get previous in playlist
-            mActiveAudio = mAudioList.get(--mAudioIndex);
+            int size = mPlaybackQueue.size();
+            // Wrap around both ends of the playlist
+            index = ((mAudioIndex + delta) % size + size) % size;
         }
+        // Silence the old audio right away, nothing is prepared until the burst is over
+        mEngine.pause();
+        mResumePosition = 0;
+        mSkipTargetPending = true;
+        setActiveAudio(mPlaybackQueue, index);
+        updateMetaData();
+        buildNotification(PlaybackStatus.PLAYING, true);
+        // Shares the play token, an explicit play request supersedes the pending target
+        mPlaybackThread.executeLatestDelayed(CMD_PLAY, mPrepareSkipTarget, SKIP_DEBOUNCE_MS);
+    }
 
-        // Update stored index
-        new StorageUtil(getApplicationContext()).storeAudioIndex(mAudioIndex);
+    // Records the resume position every CHECKPOINT_INTERVAL_MS while playing, runs on the playback thread
+    private final Runnable mCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+            if (mPlaybackStatus == PlaybackStatus.PLAYING) {
+                mPlaybackThread.executeLatestDelayed(CMD_CHECKPOINT, this, CHECKPOINT_INTERVAL_MS);
+            }
+        }
+    };
 
-        stopMedia();
-        // Reset mediaplayer
-        mMediaPlayer.reset();
-        initMediaPlayer();
+    // Runs on the playback thread
+    private void checkpoint() {
+        // Only a playing player knows where it is, positions are recorded before pausing
+        if (mEngine.isPlaying()) {
+            mResumePosition = mEngine.getCurrentPosition();
+            new StorageUtil(getApplicationContext()).storeResumePosition(mResumePosition);
+        }
     }
 
+    // Runs on the playback thread
     private void buildNotification(PlaybackStatus playbackStatus, boolean onGoing) {
-        int notificationAction = android.R.drawable.ic_media_pause;
-        PendingIntent play_pauseAction = null;
-
-        // Build a new notification according to the current state of the MediaPlayer
-        if (playbackStatus == PlaybackStatus.PLAYING) {
-            notificationAction = android.R.drawable.ic_media_pause;
-            // create the pause action
-            play_pauseAction = playbackAction(1);
-        } else if (playbackStatus == PlaybackStatus.PAUSED) {
-            notificationAction = android.R.drawable.ic_media_play;
-            // create the play action
-            play_pauseAction = playbackAction(0);
-        }
-
-
-        Bitmap largeIcon = BitmapFactory.decodeResource(getResources(), R.drawable.ic_album); //replace with your own image
-
-        NotificationManager notificationManager = ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE));
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            NotificationChannel notificationChannel =
-                    new NotificationChannel(NOTIFICATION_CHANNEL, "Itto",
-                            NotificationManager.IMPORTANCE_DEFAULT);
-            notificationManager.createNotificationChannel(notificationChannel);
-        }
-
-
-        // Create a new Notification
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
-                .setShowWhen(false)
-                // Set the Notification style
-                .setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
-                                // Attach our MediaSession token)
-                                .setMediaSession(mMediaSession.getSessionToken())
-                                // Show our playback controls in thge compact notification view)
-                                .setShowActionsInCompactView(0, 1, 2)
-                        // Set the Notification color
-//                        .setColor(getResources().getColor(R.color.colorPrimary))
-
-                )
-                .setOngoing(onGoing)
-                // Set the large and small icons
-                .setLargeIcon(largeIcon)
-                .setSmallIcon(android.R.drawable.stat_sys_headset)
-                // Set Notification content information
-                .setContentText(mActiveAudio.getArtist())
-                .setContentTitle(mActiveAudio.getAlbum())
-                .setContentInfo(mActiveAudio.getTitle())
-                // Add playback actions
-                .addAction(android.R.drawable.ic_media_previous, "previous", playbackAction(3))
-                .addAction(notificationAction, "pause", play_pauseAction)
-                .addAction(android.R.drawable.ic_media_next, "next", playbackAction(2));
-        notificationManager.notify(NOTIFICATION_ID,
-                notificationBuilder.build());
+        setPlaybackStatus(playbackStatus);
+        if (mActiveAudio == null || mNotificationController == null) {
+            return;
+        }
+        mNotificationStatus = playbackStatus;
+        mNotificationOnGoing = onGoing;
+        mNotificationController.update(mActiveAudio, playbackStatus, onGoing, albumArt());
+    }
 
+    // Runs on the playback thread
+    private void setPlaybackStatus(final PlaybackStatus status) {
+        if (status == mPlaybackStatus) {
+            return;
+        }
+        mPlaybackStatus = status;
+        if (status == PlaybackStatus.PLAYING) {
+            mPlaybackThread.executeLatestDelayed(CMD_CHECKPOINT, mCheckpointTask, CHECKPOINT_INTERVAL_MS);
+        } else {
+            mPlaybackThread.cancel(CMD_CHECKPOINT);
+        }
+        final PlaybackListener listener = mPlaybackListener;
+        if (listener != null) {
+            mPlaybackThread.runOnMain(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onPlaybackStatusChanged(status);
+                }
+            });
+        }
     }
 
+    // Runs on the playback thread
     private void removeNotification() {
-        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        notificationManager.cancel(NOTIFICATION_ID);
+        if (mNotificationController != null) {
+            mNotificationController.cancel();
+        }
     }
 
     private PendingIntent playbackAction(int actionNumber) {
@@ -634,6 +1125,9 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
             case 2: // Next track
                 playbackAction.setAction(ACTION_NEXT);
                 return PendingIntent.getService(this, actionNumber, playbackAction, 0);
+            case 3: // Previous track
+                playbackAction.setAction(ACTION_PREVIOUS);
+                return PendingIntent.getService(this, actionNumber, playbackAction, 0);
             default:
                 break;
         }
@@ -660,37 +1154,88 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
 
     }
 
+    /**
+     * @return the audio session shared by every player of this service, valid before anything plays
+     */
     public int getSessionId() {
-        if (mMediaPlayer != null) {
-            return mMediaPlayer.getAudioSessionId();
-        }
-        return 0;
+        return mAudioSessionId;
     }
-}
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
 
+    /**
+     * Enable or disable gapless transitions between queue items, enabled by default
+     */
+    public void setGapless(final boolean gapless) {
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.setGapless(gapless);
+            }
+        });
+    }
 
+    /**
+     * Play the queue in a shuffled order, kept across restarts. The current audio keeps playing.
+     */
+    public void setShuffle(final boolean shuffle) {
+        mShuffleEnabled = shuffle;
+        mPlaybackThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Again in order with the stored mode read in onCreate
+                mShuffleEnabled = shuffle;
+                if (shuffle != (mShuffle != null)) {
+                    if (shuffle) {
+                        mShuffle = newShuffleOrder(mPlaybackQueue.size());
+                        if (mAudioIndex != -1) {
+                            mShuffle.start(mAudioIndex);
+                        }
+                    } else {
+                        mShuffle = null;
+                    }
+                    mEngine.setShuffle(mShuffle);
+                }
+                new StorageUtil(getApplicationContext()).storeShuffleOrder(mShuffle);
+            }
+        });
+    }
 
+    public boolean isShuffle() {
+        return mShuffleEnabled;
+    }
 
+    private static ShuffleOrder newShuffleOrder(int size) {
+        return new ShuffleOrder(size, System.nanoTime());
+    }
 
+    /**
+     * @return number of native MediaPlayer instances created by this service
+     */
+    public int getPlayersCreated() {
+        PlaybackEngine engine = mEngine;
+        return engine != null ? engine.getPlayersCreated() : 0;
+    }
 
+    /**
+     * @return number of times a native MediaPlayer was reused instead of created
+     */
+    public int getPlayersReused() {
+        PlaybackEngine engine = mEngine;
+        return engine != null ? engine.getPlayersReused() : 0;
+    }
 
+    /**
+     * @return latency histograms and failure counters of the playback transitions
+     */
+    public PlaybackMetrics getPlaybackMetrics() {
+        return mMetrics;
+    }
 
+    /**
+     * {@code adb shell dumpsys activity service MediaPlayerService}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        writer.println("  players created " + getPlayersCreated() + "  reused " + getPlayersReused());
+    }
+}
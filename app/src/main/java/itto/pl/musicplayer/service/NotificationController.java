@@ -0,0 +1,160 @@
+package itto.pl.musicplayer.service;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.text.TextUtils;
+
+import androidx.core.app.NotificationCompat;
+import itto.pl.musicplayer.data.model.Audio;
+import itto.pl.musicplayer.utils.MediaUtil.PlaybackStatus;
+
+/**
+ * Posts the playback notification of {@link MediaPlayerService}.
+ * <p>
+ * The channel, the PendingIntents and one builder per play/pause state are created once. Every
+ * {@link #update} is compared with the last posted state and dropped if nothing visible changed.
+ * Changes are posted at most once per {@link #MIN_UPDATE_INTERVAL_MS}, a change arriving sooner is
+ * held back and the latest one is always posted when the interval ends.
+ * <p>
+ * Only used on the playback thread.
+ */
+class NotificationController {
+    static final int NOTIFICATION_ID = 101;
+    static final String NOTIFICATION_CHANNEL = "itto.channel";
+    // Keeps bursts of state changes from flooding NotificationManager and system_server
+    static final long MIN_UPDATE_INTERVAL_MS = 250;
+
+    private final Object mFlushToken = new Object();
+    private final NotificationManager mNotificationManager;
+    private final PlaybackThread mPlaybackThread;
+    private final NotificationCompat.Builder mPlayingBuilder;
+    private final NotificationCompat.Builder mPausedBuilder;
+
+    // Last posted state
+    private Audio mPostedAudio;
+    private PlaybackStatus mPostedStatus;
+    private boolean mPostedOnGoing;
+    private Bitmap mPostedLargeIcon;
+    private long mPostedAt;
+
+    // Latest requested state
+    private Audio mAudio;
+    private PlaybackStatus mStatus;
+    private boolean mOnGoing;
+    private Bitmap mLargeIcon;
+
+    NotificationController(Context context, MediaSessionCompat.Token sessionToken, PlaybackThread playbackThread,
+                           PendingIntent playIntent, PendingIntent pauseIntent,
+                           PendingIntent previousIntent, PendingIntent nextIntent) {
+        mNotificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        mPlaybackThread = playbackThread;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel notificationChannel =
+                    new NotificationChannel(NOTIFICATION_CHANNEL, "Itto",
+                            NotificationManager.IMPORTANCE_DEFAULT);
+            mNotificationManager.createNotificationChannel(notificationChannel);
+        }
+
+        mPlayingBuilder = newBuilder(context, sessionToken, previousIntent)
+                .addAction(android.R.drawable.ic_media_pause, "pause", pauseIntent)
+                .addAction(android.R.drawable.ic_media_next, "next", nextIntent);
+        mPausedBuilder = newBuilder(context, sessionToken, previousIntent)
+                .addAction(android.R.drawable.ic_media_play, "play", playIntent)
+                .addAction(android.R.drawable.ic_media_next, "next", nextIntent);
+    }
+
+    /**
+     * Show {@code audio} in the notification, posted right away unless the last post is too recent
+     *
+     * @param largeIcon album art, null to show none
+     */
+    void update(Audio audio, PlaybackStatus status, boolean onGoing, Bitmap largeIcon) {
+        mAudio = audio;
+        mStatus = status;
+        mOnGoing = onGoing;
+        mLargeIcon = largeIcon;
+
+        long wait = mPostedAt + MIN_UPDATE_INTERVAL_MS - SystemClock.uptimeMillis();
+        if (wait > 0) {
+            // The pending flush picks up the latest state
+            mPlaybackThread.executeLatestDelayed(mFlushToken, mFlush, wait);
+        } else {
+            mPlaybackThread.cancel(mFlushToken);
+            flush();
+        }
+    }
+
+    /**
+     * Remove the notification and drop any update not posted yet
+     */
+    void cancel() {
+        mPlaybackThread.cancel(mFlushToken);
+        mNotificationManager.cancel(NOTIFICATION_ID);
+        mPostedAudio = null;
+        mPostedStatus = null;
+        mPostedLargeIcon = null;
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private void flush() {
+        if (mAudio == null || !hasChanged()) {
+            return;
+        }
+        NotificationCompat.Builder builder = mStatus == PlaybackStatus.PLAYING ? mPlayingBuilder : mPausedBuilder;
+        builder.setOngoing(mOnGoing)
+                .setLargeIcon(mLargeIcon)
+                // Set Notification content information
+                .setContentText(mAudio.getArtist())
+                .setContentTitle(mAudio.getAlbum())
+                .setContentInfo(mAudio.getTitle());
+        mNotificationManager.notify(NOTIFICATION_ID, builder.build());
+
+        mPostedAudio = mAudio;
+        mPostedStatus = mStatus;
+        mPostedOnGoing = mOnGoing;
+        mPostedLargeIcon = mLargeIcon;
+        mPostedAt = SystemClock.uptimeMillis();
+    }
+
+    private boolean hasChanged() {
+        if (mPostedAudio == null) {
+            return true;
+        }
+        // Bitmaps come from the art cache, the same art is the same instance
+        return mStatus != mPostedStatus
+                || mOnGoing != mPostedOnGoing
+                || mLargeIcon != mPostedLargeIcon
+                || !TextUtils.equals(mAudio.getTitle(), mPostedAudio.getTitle())
+                || !TextUtils.equals(mAudio.getArtist(), mPostedAudio.getArtist())
+                || !TextUtils.equals(mAudio.getAlbum(), mPostedAudio.getAlbum());
+    }
+
+    private static NotificationCompat.Builder newBuilder(Context context, MediaSessionCompat.Token sessionToken,
+                                                         PendingIntent previousIntent) {
+        return new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL)
+                .setShowWhen(false)
+                // Set the Notification style
+                .setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
+                        // Attach our MediaSession token
+                        .setMediaSession(sessionToken)
+                        // Show our playback controls in the compact notification view
+                        .setShowActionsInCompactView(0, 1, 2))
+                // Set the small icon
+                .setSmallIcon(android.R.drawable.stat_sys_headset)
+                // Add the previous action, play/pause and next follow per state
+                .addAction(android.R.drawable.ic_media_previous, "previous", previousIntent);
+    }
+}
@@ -0,0 +1,394 @@
+package itto.pl.musicplayer.service;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import itto.pl.musicplayer.data.model.Audio;
+import itto.pl.musicplayer.data.model.PlayQueue;
+import itto.pl.musicplayer.data.model.ShuffleOrder;
+
+import static itto.pl.musicplayer.utils.Constants.TAGG;
+
+/**
+ * Owns the MediaPlayers of {@link MediaPlayerService}.
+ * <p>
+ * In gapless mode the engine keeps a second player prepared with the next queue item and chains it
+ * with {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}. On completion the players are rotated
+ * instead of paying a full prepare for the next track. Queue edits that change the next item drop
+ * the pre-prepared player and prepare the new one.
+ * <p>
+ * Players come from a {@link PlayerPool} of {@link #POOL_SIZE} slots and are reset for reuse,
+ * never re-created per track.
+ * <p>
+ * An item can be played from a position, e.g. a restored checkpoint. The seek is issued as soon as
+ * the player is prepared and the player only starts once the seek completed, so nothing of the
+ * beginning of the track is heard.
+ */
+class PlaybackEngine implements PlayerPool.Listener {
+    private static final String TAG = TAGG + PlaybackEngine.class.getSimpleName();
+    // Current and next player, plus a warm spare so a rotation never waits for a native release
+    static final int POOL_SIZE = 3;
+
+    interface Callback {
+        /**
+         * The engine moved on to another queue item by itself, e.g. a gapless transition
+         */
+        void onTrackChanged(int index);
+
+        /**
+         * The last queue item finished playing
+         */
+        void onPlaybackCompleted();
+
+        /**
+         * The current player failed, it has been reset
+         */
+        void onPlaybackError(int what, int extra);
+    }
+
+    private final Callback mCallback;
+    private final PlaybackMetrics mMetrics;
+    // Every player joins this session, so effects and the visualizer stay attached across tracks
+    private final int mAudioSessionId;
+    private final PlayerPool mPool = new PlayerPool(POOL_SIZE, this);
+    private boolean mGapless = true;
+    private PlayQueue mQueue = PlayQueue.EMPTY;
+    // Decides what comes next when set, owned by the service
+    private ShuffleOrder mShuffle;
+
+    private PlayerPool.Slot mCurrent;
+    private int mCurrentIndex = -1;
+    // Start the current player as soon as it is prepared
+    private boolean mPlayWhenReady;
+    // Position in milliseconds the current player seeks to once prepared, 0 for the beginning
+    private int mStartPosition;
+    // The seek to mStartPosition is in flight, the player starts when it completes
+    private boolean mSeekingToStart;
+
+    private PlayerPool.Slot mNext;
+    private int mNextIndex = -1;
+
+    /**
+     * @param audioSessionId session shared by every player, 0 to let the first player create one
+     */
+    PlaybackEngine(Callback callback, int audioSessionId, PlaybackMetrics metrics) {
+        mCallback = callback;
+        mMetrics = metrics;
+        mAudioSessionId = audioSessionId;
+    }
+
+    void setGapless(boolean gapless) {
+        mGapless = gapless;
+        if (gapless) {
+            prepareNext();
+        } else {
+            releaseNext();
+        }
+    }
+
+    /**
+     * Follow {@code shuffle} for the next item instead of the queue order, null to go back to the
+     * queue order. The order must already be at the current item.
+     */
+    void setShuffle(ShuffleOrder shuffle) {
+        mShuffle = shuffle;
+        updateNext();
+    }
+
+    /**
+     * Hand over an edited queue. {@code currentIndex} is where the current item is in the new queue.
+     */
+    void setQueue(PlayQueue queue, int currentIndex) {
+        mQueue = queue;
+        mCurrentIndex = currentIndex;
+        updateNext();
+    }
+
+    private void updateNext() {
+        if (mNext != null) {
+            int nextIndex = nextIndex();
+            if (nextIndex != mNextIndex || mQueue.get(nextIndex) != mNext.getAudio()) {
+                // What comes next changed, the pre-prepared player is stale
+                releaseNext();
+            } else {
+                return;
+            }
+        }
+        prepareNext();
+    }
+
+    /**
+     * Start playing the item at {@code index} of {@code queue} from the beginning
+     */
+    void play(PlayQueue queue, int index) {
+        play(queue, index, 0);
+    }
+
+    /**
+     * Start playing the item at {@code index} of {@code queue} from {@code position} milliseconds
+     */
+    void play(PlayQueue queue, int index, int position) {
+        releaseNext();
+        mQueue = queue;
+        mCurrentIndex = index;
+        mPlayWhenReady = true;
+        mStartPosition = position;
+        mSeekingToStart = false;
+        if (mCurrent == null) {
+            mCurrent = mPool.acquire(mAudioSessionId);
+        }
+        mMetrics.onStage(PlaybackMetrics.STAGE_PREPARE);
+        if (mPool.prepare(mCurrent, mQueue.get(index))) {
+            mMetrics.onStage(PlaybackMetrics.STAGE_PREPARE_ASYNC);
+        } else {
+            mMetrics.onPrepareFailed();
+            mMetrics.onCancelled();
+            mCallback.onPlaybackError(MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+        }
+    }
+
+    boolean isReleased() {
+        return mCurrent == null;
+    }
+
+    boolean isPlaying() {
+        return mCurrent != null && mCurrent.getState() == PlayerPool.State.PLAYING;
+    }
+
+    void start() {
+        mPlayWhenReady = true;
+        if (mCurrent != null && !mSeekingToStart) {
+            startCurrent();
+        }
+    }
+
+    void pause() {
+        mPlayWhenReady = false;
+        if (mCurrent != null) {
+            mPool.pause(mCurrent);
+        }
+    }
+
+    void stop() {
+        mPlayWhenReady = false;
+        mSeekingToStart = false;
+        releaseNext();
+        if (isPlaying()) {
+            mPool.reset(mCurrent);
+        }
+    }
+
+    void seekTo(int position) {
+        if (mCurrent != null && mCurrent.isPrepared()) {
+            mCurrent.mPlayer.seekTo(position);
+        } else {
+            // Still preparing, seek once prepared
+            mStartPosition = position;
+        }
+    }
+
+    int getCurrentPosition() {
+        return mCurrent != null && mCurrent.isPrepared() ? mCurrent.mPlayer.getCurrentPosition() : 0;
+    }
+
+    void setVolume(float volume) {
+        if (mCurrent != null) {
+            mCurrent.mPlayer.setVolume(volume, volume);
+        }
+        if (mNext != null) {
+            mNext.mPlayer.setVolume(volume, volume);
+        }
+    }
+
+    int getAudioSessionId() {
+        if (mAudioSessionId != 0) {
+            return mAudioSessionId;
+        }
+        return mCurrent != null ? mCurrent.mPlayer.getAudioSessionId() : 0;
+    }
+
+    /**
+     * Release every native player, e.g. on a permanent audio focus loss
+     */
+    void release() {
+        mPool.releaseAll();
+        mCurrent = null;
+        mNext = null;
+        mNextIndex = -1;
+        mPlayWhenReady = false;
+        mSeekingToStart = false;
+    }
+
+    /**
+     * @return number of native MediaPlayer instances created so far
+     */
+    int getPlayersCreated() {
+        return mPool.getCreatedCount();
+    }
+
+    /**
+     * @return number of times an existing native MediaPlayer was reused
+     */
+    int getPlayersReused() {
+        return mPool.getReusedCount();
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        PlayerPool.Slot slot = mPool.find(mp);
+        if (slot == null) {
+            return;
+        }
+        mPool.onPrepared(slot);
+        if (slot == mCurrent) {
+            Log.d(TAG, "onPrepared: current");
+            mMetrics.onStage(PlaybackMetrics.STAGE_PREPARED);
+            if (mStartPosition > 0) {
+                mSeekingToStart = true;
+                mCurrent.mPlayer.seekTo(mStartPosition);
+                mStartPosition = 0;
+            } else if (mPlayWhenReady) {
+                startCurrent();
+            }
+            if (mNext != null && mNext.isPrepared()) {
+                mCurrent.mPlayer.setNextMediaPlayer(mNext.mPlayer);
+            } else {
+                prepareNext();
+            }
+        } else if (slot == mNext) {
+            Log.d(TAG, "onPrepared: next");
+            if (mCurrent != null && mCurrent.isPrepared()) {
+                mCurrent.mPlayer.setNextMediaPlayer(mNext.mPlayer);
+            }
+        }
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        //Invoked when playback of a media source has completed.
+        if (mCurrent == null || mp != mCurrent.mPlayer) {
+            return;
+        }
+        mPool.onCompleted(mCurrent);
+        if (mNext != null && mNext.isPrepared()) {
+            // The next player was chained and already started, rotate the players
+            Log.d(TAG, "onCompletion: gapless transition to " + mNextIndex);
+            PlayerPool.Slot finished = mCurrent;
+            mCurrent = mNext;
+            mCurrentIndex = mNextIndex;
+            mPool.onStartedAsNext(mCurrent);
+            mNext = null;
+            mNextIndex = -1;
+            mPool.recycle(finished);
+            mMetrics.onGaplessTransition();
+            mCallback.onTrackChanged(mCurrentIndex);
+            prepareNext();
+        } else {
+            mCallback.onPlaybackCompleted();
+        }
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        // Invoked when there has been an error during an asynchronous operation
+        switch (what) {
+            case MediaPlayer.MEDIA_ERROR_NOT_VALID_FOR_PROGRESSIVE_PLAYBACK:
+                Log.d(TAG, "MEDIA ERROR NOT VALID FOR PROGRESSIVE PLAYBACK " + extra);
+                break;
+            case MediaPlayer.MEDIA_ERROR_SERVER_DIED:
+                Log.d(TAG, "MEDIA ERROR SERVER DIED " + extra);
+                break;
+            case MediaPlayer.MEDIA_ERROR_UNKNOWN:
+                Log.d(TAG, "MEDIA ERROR UNKNOWN " + extra);
+                break;
+        }
+        PlayerPool.Slot slot = mPool.find(mp);
+        if (slot == null) {
+            return false;
+        }
+        if (slot.getState() == PlayerPool.State.PREPARING) {
+            mMetrics.onPrepareFailed();
+        } else if (slot == mCurrent) {
+            mMetrics.onPlaybackError();
+        }
+        if (slot == mNext) {
+            // Only the gapless transition is lost, the next track is prepared normally when it is played
+            releaseNext();
+            return true;
+        }
+        mPool.onError(slot);
+        if (slot == mCurrent) {
+            releaseNext();
+            mMetrics.onCancelled();
+            mCallback.onPlaybackError(what, extra);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        //Invoked to communicate some info.
+        return false;
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+        //Invoked indicating the completion of a seek operation.
+        if (mSeekingToStart && mCurrent != null && mp == mCurrent.mPlayer) {
+            mSeekingToStart = false;
+            if (mPlayWhenReady) {
+                startCurrent();
+            }
+        }
+    }
+
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        //Invoked indicating buffering status of
+        //a media resource being streamed over the network.
+    }
+
+    private int nextIndex() {
+        if (mShuffle != null) {
+            return mShuffle.peekNext();
+        }
+        int next = mCurrentIndex + 1;
+        return next < mQueue.size() ? next : -1;
+    }
+
+    private void prepareNext() {
+        if (!mGapless || mNext != null || mCurrent == null || !mCurrent.isPrepared()) {
+            return;
+        }
+        int nextIndex = nextIndex();
+        if (nextIndex == -1) {
+            return;
+        }
+        // Share the session so effects and the visualizer stay attached across the transition
+        mNext = mPool.acquire(getAudioSessionId());
+        mNextIndex = nextIndex;
+        if (!mPool.prepare(mNext, mQueue.get(nextIndex))) {
+            mMetrics.onPrepareFailed();
+            releaseNext();
+        }
+    }
+
+    private void startCurrent() {
+        mPool.start(mCurrent);
+        if (mCurrent.getState() == PlayerPool.State.PLAYING) {
+            mMetrics.onStarted();
+        }
+    }
+
+    private void releaseNext() {
+        if (mNext == null) {
+            return;
+        }
+        if (mCurrent != null && mCurrent.isPrepared()) {
+            mCurrent.mPlayer.setNextMediaPlayer(null);
+        }
+        mPool.recycle(mNext);
+        mNext = null;
+        mNextIndex = -1;
+    }
+}
@@ -0,0 +1,233 @@
+package itto.pl.musicplayer.service;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Where the time goes between a play request and audible sound, collected in the field.
+ * <p>
+ * A transition starts with {@link #onRequest(int)} on the thread that received the command, e.g.
+ * a MediaSession callback or the binder. The playback thread then stamps the stages it goes through
+ * with {@link System#nanoTime()}: picking the command up, reset and setDataSource, prepareAsync
+ * returning, onPrepared and start. Once the player starts, the time since the request goes to the
+ * time to first audio histogram, and to the skip histogram for skips. A newer request replaces an
+ * unfinished one.
+ * <p>
+ * The stages are only written on the playback thread, counters are single writer volatiles, and a
+ * transition costs a few field writes plus one uncontended histogram lock, nothing is allocated.
+ */
+public final class PlaybackMetrics {
+    public static final int KIND_PLAY = 0;
+    public static final int KIND_SKIP = 1;
+    public static final int KIND_RESUME = 2;
+    public static final int KIND_RESTORE = 3;
+    private static final String[] KIND_NAMES = {"play", "skip", "resume", "restore"};
+
+    static final int STAGE_REQUEST = 0;
+    static final int STAGE_COMMAND = 1;
+    static final int STAGE_PREPARE = 2;
+    static final int STAGE_PREPARE_ASYNC = 3;
+    static final int STAGE_PREPARED = 4;
+    static final int STAGE_STARTED = 5;
+    private static final int STAGE_COUNT = 6;
+    private static final String[] STAGE_NAMES = {"request", "command", "prepare", "prepareAsync", "prepared",
+            "started"};
+
+    public static final int FOCUS_LOSS = 0;
+    public static final int FOCUS_LOSS_TRANSIENT = 1;
+    public static final int FOCUS_LOSS_TRANSIENT_CAN_DUCK = 2;
+
+    private final LatencyHistogram mTimeToFirstAudio = new LatencyHistogram();
+    private final LatencyHistogram mSkipLatency = new LatencyHistogram();
+    private final LatencyHistogram mPrepareTime = new LatencyHistogram();
+
+    // Written by the thread receiving the request, picked up by the playback thread
+    private volatile long mRequestNanos;
+    private volatile int mRequestKind;
+
+    // Transition in progress and the last finished one, only used on the playback thread
+    private final long[] mStages = new long[STAGE_COUNT];
+    private int mKind = -1;
+    private final long[] mLastStages = new long[STAGE_COUNT];
+    private volatile int mLastKind = -1;
+
+    // Written on the playback thread, read by the bound clients
+    private volatile int mTransitions;
+    private volatile int mSuperseded;
+    private volatile int mPrepareFailures;
+    private volatile int mPlaybackErrors;
+    private volatile int mGaplessTransitions;
+    private final int[] mFocusLosses = new int[3];
+
+    /**
+     * A command that ends in playback was received, any thread
+     */
+    public void onRequest(int kind) {
+        mRequestKind = kind;
+        mRequestNanos = System.nanoTime();
+    }
+
+    /**
+     * The playback thread picked the last request up, playback thread only
+     */
+    void onCommand() {
+        long request = mRequestNanos;
+        if (request == 0) {
+            return;
+        }
+        mRequestNanos = 0;
+        if (mKind != -1) {
+            mSuperseded++;
+        }
+        mKind = mRequestKind;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = 0;
+        }
+        mStages[STAGE_REQUEST] = request;
+        mStages[STAGE_COMMAND] = System.nanoTime();
+    }
+
+    /**
+     * Stamp a stage of the transition in progress, playback thread only
+     */
+    void onStage(int stage) {
+        if (mKind != -1) {
+            mStages[stage] = System.nanoTime();
+        }
+    }
+
+    /**
+     * The current player started, ends the transition in progress. Playback thread only.
+     */
+    void onStarted() {
+        if (mKind == -1) {
+            return;
+        }
+        long now = System.nanoTime();
+        mStages[STAGE_STARTED] = now;
+        long micros = (now - mStages[STAGE_REQUEST]) / 1000;
+        mTimeToFirstAudio.record(micros);
+        if (mKind == KIND_SKIP) {
+            mSkipLatency.record(micros);
+        }
+        if (mStages[STAGE_PREPARE] != 0 && mStages[STAGE_PREPARED] != 0) {
+            mPrepareTime.record((mStages[STAGE_PREPARED] - mStages[STAGE_PREPARE]) / 1000);
+        }
+        synchronized (mLastStages) {
+            System.arraycopy(mStages, 0, mLastStages, 0, STAGE_COUNT);
+        }
+        mLastKind = mKind;
+        mKind = -1;
+        mTransitions++;
+    }
+
+    /**
+     * The transition in progress will not start a player, e.g. paused, stopped or failed.
+     * Playback thread only.
+     */
+    void onCancelled() {
+        mKind = -1;
+    }
+
+    /**
+     * The data source could not be set or a player failed while preparing
+     */
+    void onPrepareFailed() {
+        mPrepareFailures++;
+    }
+
+    /**
+     * The current player failed after it was prepared
+     */
+    void onPlaybackError() {
+        mPlaybackErrors++;
+    }
+
+    void onGaplessTransition() {
+        mGaplessTransitions++;
+    }
+
+    /**
+     * @param type one of the {@code FOCUS_*} constants
+     */
+    void onFocusLoss(int type) {
+        synchronized (mFocusLosses) {
+            mFocusLosses[type]++;
+        }
+    }
+
+    /**
+     * Time from a request to the player starting, in microseconds
+     */
+    public LatencyHistogram getTimeToFirstAudio() {
+        return mTimeToFirstAudio;
+    }
+
+    /**
+     * Time from a skip to the target starting, including the skip debounce, in microseconds
+     */
+    public LatencyHistogram getSkipLatency() {
+        return mSkipLatency;
+    }
+
+    /**
+     * Time from reset to onPrepared of the player being started, in microseconds
+     */
+    public LatencyHistogram getPrepareTime() {
+        return mPrepareTime;
+    }
+
+    public int getTransitionCount() {
+        return mTransitions;
+    }
+
+    public int getPrepareFailures() {
+        return mPrepareFailures;
+    }
+
+    public int getPlaybackErrors() {
+        return mPlaybackErrors;
+    }
+
+    public int getGaplessTransitions() {
+        return mGaplessTransitions;
+    }
+
+    /**
+     * @param type one of the {@code FOCUS_*} constants
+     */
+    public int getFocusLosses(int type) {
+        synchronized (mFocusLosses) {
+            return mFocusLosses[type];
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Playback metrics (ms)");
+        writer.println(String.format(Locale.US, "  transitions %d  superseded %d  gapless %d",
+                mTransitions, mSuperseded, mGaplessTransitions));
+        mTimeToFirstAudio.dump(writer, "time to first audio");
+        mSkipLatency.dump(writer, "skip latency");
+        mPrepareTime.dump(writer, "prepare");
+        writer.println(String.format(Locale.US, "  prepare failures %d  playback errors %d",
+                mPrepareFailures, mPlaybackErrors));
+        writer.println(String.format(Locale.US, "  focus losses %d  transient %d  duck %d",
+                getFocusLosses(FOCUS_LOSS), getFocusLosses(FOCUS_LOSS_TRANSIENT),
+                getFocusLosses(FOCUS_LOSS_TRANSIENT_CAN_DUCK)));
+        int kind = mLastKind;
+        if (kind == -1) {
+            return;
+        }
+        StringBuilder last = new StringBuilder("  last ").append(KIND_NAMES[kind]).append(':');
+        synchronized (mLastStages) {
+            long request = mLastStages[STAGE_REQUEST];
+            for (int stage = STAGE_COMMAND; stage < STAGE_COUNT; stage++) {
+                if (mLastStages[stage] != 0) {
+                    last.append(String.format(Locale.US, "  %s +%.1f", STAGE_NAMES[stage],
+                            (mLastStages[stage] - request) / 1e6));
+                }
+            }
+        }
+        writer.println(last);
+    }
+}
@@ -0,0 +1,63 @@
+package itto.pl.musicplayer.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Single thread running every playback command of {@link MediaPlayerService} in order.
+ * <p>
+ * MediaPlayers created on this thread also deliver their callbacks here, so player state is only
+ * ever touched from one thread. Commands that are superseded by a newer one of the same kind can be
+ * posted with {@link #executeLatest(Object, Runnable)}, the older one is dropped if it has not run yet.
+ */
+class PlaybackThread {
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    PlaybackThread() {
+        mThread = new HandlerThread("Playback", Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    void execute(Runnable command) {
+        mHandler.post(command);
+    }
+
+    /**
+     * Run {@code command}, dropping any command posted with the same token that has not run yet
+     */
+    void executeLatest(Object token, Runnable command) {
+        executeLatestDelayed(token, command, 0);
+    }
+
+    void executeLatestDelayed(Object token, Runnable command, long delayMillis) {
+        mHandler.removeCallbacksAndMessages(token);
+        mHandler.postAtTime(command, token, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    /**
+     * Drop the commands posted with {@code token} that have not run yet
+     */
+    void cancel(Object token) {
+        mHandler.removeCallbacksAndMessages(token);
+    }
+
+    /**
+     * Push a state change back to the main thread, for UI updates only
+     */
+    void runOnMain(Runnable runnable) {
+        mMainHandler.post(runnable);
+    }
+
+    /**
+     * Stop the thread once the commands already posted have run
+     */
+    void quit() {
+        mThread.quitSafely();
+    }
+}
@@ -0,0 +1,250 @@
+package itto.pl.musicplayer.service;
+
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+import static itto.pl.musicplayer.utils.Constants.TAGG;
+
+/**
+ * Small bounded pool of MediaPlayer slots and the single state machine driving them.
+ * <p>
+ * Native players are expensive to create and leak easily, so a slot is created once with its
+ * listeners and reused through {@link MediaPlayer#reset()}. Every state change of a pooled player
+ * goes through this class, which rejects calls MediaPlayer would answer with an error.
+ */
+class PlayerPool {
+    private static final String TAG = TAGG + PlayerPool.class.getSimpleName();
+
+    enum State {
+        IDLE,
+        PREPARING,
+        PREPARED,
+        PLAYING,
+        RELEASED
+    }
+
+    static final class Slot {
+        final MediaPlayer mPlayer;
+        State mState = State.IDLE;
+        boolean mInUse;
+        Audio mAudio;
+
+        Slot(MediaPlayer player) {
+            mPlayer = player;
+        }
+
+        State getState() {
+            return mState;
+        }
+
+        Audio getAudio() {
+            return mAudio;
+        }
+
+        boolean isPrepared() {
+            return mState == State.PREPARED || mState == State.PLAYING;
+        }
+    }
+
+    interface Listener extends MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener,
+            MediaPlayer.OnErrorListener, MediaPlayer.OnSeekCompleteListener, MediaPlayer.OnInfoListener,
+            MediaPlayer.OnBufferingUpdateListener {
+    }
+
+    private final int mCapacity;
+    private final Listener mListener;
+    private final ArrayList<Slot> mSlots;
+
+    // Written on the playback thread, read by the bound clients
+    private volatile int mCreatedCount;
+    private volatile int mReusedCount;
+
+    PlayerPool(int capacity, Listener listener) {
+        mCapacity = capacity;
+        mListener = listener;
+        mSlots = new ArrayList<>(capacity);
+    }
+
+    /**
+     * @param audioSessionId session to attach the player to, 0 to let the player create one
+     * @return an IDLE slot, reusing a free native player when there is one
+     */
+    Slot acquire(int audioSessionId) {
+        Slot slot = null;
+        for (int i = 0; i < mSlots.size(); i++) {
+            if (!mSlots.get(i).mInUse) {
+                slot = mSlots.get(i);
+                break;
+            }
+        }
+        if (slot != null) {
+            mReusedCount++;
+        } else {
+            if (mSlots.size() == mCapacity) {
+                throw new IllegalStateException("All " + mCapacity + " players are in use");
+            }
+            slot = new Slot(createPlayer());
+            mSlots.add(slot);
+            mCreatedCount++;
+        }
+        slot.mInUse = true;
+        if (audioSessionId != 0) {
+            // Only allowed while the player is idle
+            slot.mPlayer.setAudioSessionId(audioSessionId);
+        }
+        return slot;
+    }
+
+    /**
+     * Give a slot back to the pool, its player is reset and kept warm for the next {@link #acquire(int)}
+     */
+    void recycle(Slot slot) {
+        reset(slot);
+        slot.mInUse = false;
+    }
+
+    /**
+     * Bring an acquired slot back to IDLE so it can take a new data source
+     */
+    void reset(Slot slot) {
+        if (slot.mState == State.RELEASED) {
+            return;
+        }
+        slot.mPlayer.reset();
+        slot.mState = State.IDLE;
+        slot.mAudio = null;
+    }
+
+    /**
+     * IDLE -> PREPARING
+     *
+     * @return false if the data source could not be set, the slot is back to IDLE
+     */
+    boolean prepare(Slot slot, Audio audio) {
+        if (slot.mState != State.IDLE) {
+            reset(slot);
+        }
+        MediaPlayer player = slot.mPlayer;
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        try {
+            // Set the data source to the mediaFile Location
+            player.setDataSource(audio.getData());
+        } catch (Exception e) {
+            Log.e(TAG, "Error in prepare: \n" + e.toString());
+            reset(slot);
+            return false;
+        }
+        slot.mAudio = audio;
+        slot.mState = State.PREPARING;
+        player.prepareAsync();
+        return true;
+    }
+
+    /**
+     * PREPARING -> PREPARED, called from {@link MediaPlayer.OnPreparedListener}
+     */
+    void onPrepared(Slot slot) {
+        if (slot.mState == State.PREPARING) {
+            slot.mState = State.PREPARED;
+        }
+    }
+
+    /**
+     * PREPARED -> PLAYING
+     */
+    void start(Slot slot) {
+        if (slot.mState == State.PREPARED) {
+            slot.mPlayer.start();
+            slot.mState = State.PLAYING;
+        }
+    }
+
+    /**
+     * PLAYING -> PREPARED
+     */
+    void pause(Slot slot) {
+        if (slot.mState == State.PLAYING) {
+            slot.mPlayer.pause();
+            slot.mState = State.PREPARED;
+        }
+    }
+
+    /**
+     * A chained player started by itself through {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}
+     */
+    void onStartedAsNext(Slot slot) {
+        if (slot.mState == State.PREPARED) {
+            slot.mState = State.PLAYING;
+        }
+    }
+
+    /**
+     * PLAYING -> PREPARED, the player stays at the end of the stream and can be restarted or seeked
+     */
+    void onCompleted(Slot slot) {
+        if (slot.mState == State.PLAYING) {
+            slot.mState = State.PREPARED;
+        }
+    }
+
+    /**
+     * Any state -> IDLE after an error, the player is reset for reuse
+     */
+    void onError(Slot slot) {
+        reset(slot);
+    }
+
+    Slot find(MediaPlayer player) {
+        for (int i = 0; i < mSlots.size(); i++) {
+            if (mSlots.get(i).mPlayer == player) {
+                return mSlots.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Release every native player, the pool creates new ones on demand afterwards
+     */
+    void releaseAll() {
+        for (int i = 0; i < mSlots.size(); i++) {
+            Slot slot = mSlots.get(i);
+            slot.mPlayer.release();
+            slot.mState = State.RELEASED;
+            slot.mInUse = false;
+            slot.mAudio = null;
+        }
+        mSlots.clear();
+    }
+
+    /**
+     * @return number of native MediaPlayer instances created so far
+     */
+    int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    /**
+     * @return number of acquires served by an existing native player
+     */
+    int getReusedCount() {
+        return mReusedCount;
+    }
+
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        // Set up MediaPlayer event listeners, once per native player
+        player.setOnCompletionListener(mListener);
+        player.setOnErrorListener(mListener);
+        player.setOnPreparedListener(mListener);
+        player.setOnBufferingUpdateListener(mListener);
+        player.setOnSeekCompleteListener(mListener);
+        player.setOnInfoListener(mListener);
+        return player;
+    }
+}
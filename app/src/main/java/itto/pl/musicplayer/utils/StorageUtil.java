@@ -2,17 +2,42 @@ package itto.pl.musicplayer.utils;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import itto.pl.musicplayer.data.library.BrowseIndex;
 import itto.pl.musicplayer.data.model.Audio;
+import itto.pl.musicplayer.data.model.PlayQueue;
+import itto.pl.musicplayer.data.model.ShuffleOrder;
+import itto.pl.musicplayer.data.storage.PlaybackJournal;
+import itto.pl.musicplayer.data.storage.PlaylistSnapshot;
+import itto.pl.musicplayer.data.storage.QueueChangeLog;
+
+import static itto.pl.musicplayer.utils.Constants.TAGG;
 
 public class StorageUtil {
+    private static final String TAG = TAGG + StorageUtil.class.getSimpleName();
     private final String STORAGE = "itto.pl.musicplayer.STORAGE";
+    // Playlist JSON written by older versions, read once and moved to the snapshot file
+    private static final String KEY_LEGACY_AUDIO_LIST = "audioArrayList";
+    // Tracks picked from the shuffle pool, too many for the journal slot. Only valid for the seed stored along.
+    private static final String KEY_SHUFFLE_PICKS = "shufflePicks";
+    private static final String KEY_SHUFFLE_PICKS_SEED = "shufflePicksSeed";
+    private static final String PLAYLIST_SNAPSHOT = "playlist.snapshot";
+    // Queue edits since the snapshot was written
+    private static final String QUEUE_LOG = "playlist.log";
+    // The log is folded into a new snapshot once it grows past half the snapshot or this size
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
     private SharedPreferences mPreferences;
     private Context mContext;
 
@@ -20,35 +45,240 @@ public class StorageUtil {
         mContext = context;
     }
 
-    public void storeAudio(ArrayList<Audio> audioList) {
-        mPreferences = mContext.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
+    public void storeAudio(List<Audio> audioList) {
+        storeAudio(audioList, null);
+    }
 
-        SharedPreferences.Editor editor = mPreferences.edit();
-        Gson gson = new Gson();
-        String json = gson.toJson(audioList);
-        editor.putString("audioArrayList", json);
-        editor.apply();
+    /**
+     * Store the playlist together with the browse index of the library, see {@link #loadLibrary()}
+     */
+    public void storeAudio(List<Audio> audioList, BrowseIndex browseIndex) {
+        // The log belongs to the old snapshot. If the write below fails the edits in it are lost,
+        // the old snapshot alone is still a consistent queue.
+        getQueueLogFile().delete();
+        try {
+            PlaylistSnapshot.write(getSnapshotFile(), audioList, browseIndex);
+        } catch (IOException e) {
+            Log.e(TAG, "storeAudio Error: " + e.toString());
+        }
     }
 
-    public ArrayList<Audio> loadAudio() {
-        mPreferences = mContext.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
-        Gson gson = new Gson();
-        String json = mPreferences.getString("audioArrayList", null);
-        Type type = new TypeToken<ArrayList<Audio>>() {
-        }.getType();
-        return gson.fromJson(json, type);
+    /**
+     * Store edits of the queue by appending them to the log next to the snapshot, a full
+     * snapshot is only written when there is none yet or the log got too long
+     *
+     * @param queue the queue after the changes
+     */
+    public void storeQueueChanges(List<PlayQueue.Change> changes, PlayQueue queue, BrowseIndex browseIndex) {
+        File snapshot = getSnapshotFile();
+        if (!snapshot.exists()) {
+            storeAudio(queue.asList(), browseIndex);
+            return;
+        }
+        try {
+            long logSize = QueueChangeLog.append(getQueueLogFile(), changes);
+            if (logSize > Math.max(snapshot.length() / 2, MIN_COMPACT_SIZE)) {
+                storeAudio(queue.asList(), browseIndex);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "storeQueueChanges Error: " + e.toString());
+            storeAudio(queue.asList(), browseIndex);
+        }
+    }
+
+    public List<Audio> loadAudio() {
+        PlaylistSnapshot.Contents contents = loadLibrary();
+        return contents == null ? null : contents.getTracks();
+    }
+
+    /**
+     * @return the stored playlist and browse index, null if nothing was stored
+     */
+    public PlaylistSnapshot.Contents loadLibrary() {
+        File snapshot = getSnapshotFile();
+        if (!snapshot.exists()) {
+            List<Audio> audioList = migrateLegacyAudio();
+            return audioList == null ? null : new PlaylistSnapshot.Contents(audioList, null);
+        }
+        PlaylistSnapshot.Contents contents;
+        try {
+            contents = PlaylistSnapshot.readContents(snapshot);
+        } catch (IOException e) {
+            Log.e(TAG, "loadAudio Error: " + e.toString());
+            return null;
+        }
+        File log = getQueueLogFile();
+        if (!log.exists()) {
+            return contents;
+        }
+        try {
+            PlayQueue queue = QueueChangeLog.replay(log, PlayQueue.of(contents.getTracks()));
+            return new PlaylistSnapshot.Contents(queue.asList(), contents.getBrowseIndex());
+        } catch (IOException e) {
+            Log.e(TAG, "loadAudio Error: " + e.toString());
+            log.delete();
+            return contents;
+        }
+    }
+
+    /**
+     * @return the browse index stored with the playlist, null if there is none or it could not be read
+     */
+    public BrowseIndex loadBrowseIndex() {
+        File snapshot = getSnapshotFile();
+        if (!snapshot.exists()) {
+            return null;
+        }
+        try {
+            return PlaylistSnapshot.readContents(snapshot).getBrowseIndex();
+        } catch (IOException e) {
+            Log.e(TAG, "loadBrowseIndex Error: " + e.toString());
+            return null;
+        }
     }
 
-    public void storeAudioIndex(int index) {
+    /**
+     * Move a playlist stored as JSON in SharedPreferences by older versions into the snapshot file
+     *
+     * @return the migrated playlist, null if there was nothing to migrate
+     */
+    private ArrayList<Audio> migrateLegacyAudio() {
         mPreferences = mContext.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = mPreferences.edit();
-        editor.putInt("audioIndex", index);
-        editor.apply();
+        String json = mPreferences.getString(KEY_LEGACY_AUDIO_LIST, null);
+        if (json == null) {
+            return null;
+        }
+        ArrayList<Audio> audioList = null;
+        try {
+            Type type = new TypeToken<ArrayList<Audio>>() {
+            }.getType();
+            audioList = new Gson().fromJson(json, type);
+            if (audioList != null) {
+                storeAudio(audioList);
+            }
+        } catch (JsonParseException e) {
+            Log.e(TAG, "migrateLegacyAudio Error: " + e.toString());
+        }
+        mPreferences.edit().remove(KEY_LEGACY_AUDIO_LIST).apply();
+        return audioList;
+    }
+
+    public void storeAudioIndex(int index, long trackId) {
+        getPlaybackJournal().recordIndex(index, trackId);
+    }
+
+    /**
+     * Store the new index of the current audio after the queue was edited, keeps the resume position
+     */
+    public void storeShiftedAudioIndex(int index) {
+        getPlaybackJournal().recordIndexShift(index);
+    }
+
+    /**
+     * Store the resume position of the current audio in milliseconds
+     */
+    public void storeResumePosition(long position) {
+        getPlaybackJournal().recordPosition(position);
     }
 
     public int loadAudioIndex() {
+        int index = getPlaybackJournal().getState().getIndex();
+        if (index == -1) {
+            // Index stored in SharedPreferences by older versions
+            mPreferences = mContext.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
+            index = mPreferences.getInt("audioIndex", -1); // return -1 mean no data found
+        }
+        return index;
+    }
+
+    public long loadResumePosition() {
+        return getPlaybackJournal().getState().getPosition();
+    }
+
+    /**
+     * @return id of the audio the stored index and resume position belong to, 0 if unknown
+     */
+    public long loadAudioTrackId() {
+        return getPlaybackJournal().getState().getTrackId();
+    }
+
+    /**
+     * Write the recorded playback state now instead of after the usual delay, e.g. before the
+     * service goes away
+     */
+    public void flushPlaybackState() {
+        getPlaybackJournal().flushNow();
+    }
+
+    /**
+     * Store the state of the shuffle order, a few bytes in the playback journal. The picks of the
+     * cycle go to the preferences, they only change when the user picks a track.
+     *
+     * @param order null when shuffle is off
+     */
+    public void storeShuffleOrder(ShuffleOrder order) {
+        if (order == null) {
+            getPlaybackJournal().recordShuffle(0, -1, -1, -1);
+            return;
+        }
+        getPlaybackJournal().recordShuffle(order.getSeed(), order.getFirst(), order.getDealt(),
+                order.getPosition());
+        String picks = Arrays.toString(order.getPicks());
         mPreferences = mContext.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
-        return mPreferences.getInt("audioIndex", -1); // return -1 mean no data found
+        if (mPreferences.getLong(KEY_SHUFFLE_PICKS_SEED, 0) != order.getSeed()
+                || !picks.equals(mPreferences.getString(KEY_SHUFFLE_PICKS, null))) {
+            mPreferences.edit()
+                    .putLong(KEY_SHUFFLE_PICKS_SEED, order.getSeed())
+                    .putString(KEY_SHUFFLE_PICKS, picks)
+                    .apply();
+        }
+    }
+
+    /**
+     * @return whether shuffle was on
+     */
+    public boolean loadShuffle() {
+        return getPlaybackJournal().getState().isShuffle();
+    }
+
+    /**
+     * @param size    size of the restored queue
+     * @param current index of the current audio in the restored queue
+     * @return the stored shuffle order, null if shuffle was off
+     */
+    public ShuffleOrder loadShuffleOrder(int size, int current) {
+        PlaybackJournal.State state = getPlaybackJournal().getState();
+        if (!state.isShuffle()) {
+            return null;
+        }
+        return ShuffleOrder.restore(size, state.getShuffleSeed(), state.getShuffleFirst(),
+                state.getShuffleDealt(), state.getShufflePosition(), current, loadShufflePicks(state.getShuffleSeed()));
+    }
+
+    /**
+     * @return the picks stored for the cycle of {@code seed}, none if they belong to another cycle
+     */
+    private int[] loadShufflePicks(long seed) {
+        mPreferences = mContext.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
+        String picks = mPreferences.getString(KEY_SHUFFLE_PICKS, null);
+        if (picks == null || mPreferences.getLong(KEY_SHUFFLE_PICKS_SEED, 0) != seed) {
+            return new int[0];
+        }
+        // Written by Arrays.toString, "[2, 7, 5, 1]"
+        String[] values = picks.substring(1, picks.length() - 1).split(", ");
+        if (values.length < 2) {
+            return new int[0];
+        }
+        int[] pairs = new int[values.length & ~1];
+        try {
+            for (int i = 0; i < pairs.length; i++) {
+                pairs[i] = Integer.parseInt(values[i]);
+            }
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "loadShufflePicks Error: " + e.toString());
+            return new int[0];
+        }
+        return pairs;
     }
 
     public void clearCachedAudioPlaylist() {
@@ -56,5 +286,20 @@ public class StorageUtil {
         SharedPreferences.Editor editor = mPreferences.edit();
         editor.clear();
         editor.commit();
+        getSnapshotFile().delete();
+        getQueueLogFile().delete();
+        getPlaybackJournal().clear();
+    }
+
+    private PlaybackJournal getPlaybackJournal() {
+        return PlaybackJournal.getInstance(mContext.getFilesDir());
+    }
+
+    private File getSnapshotFile() {
+        return new File(mContext.getFilesDir(), PLAYLIST_SNAPSHOT);
+    }
+
+    private File getQueueLogFile() {
+        return new File(mContext.getFilesDir(), QUEUE_LOG);
     }
 }
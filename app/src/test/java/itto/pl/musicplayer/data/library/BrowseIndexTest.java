@@ -0,0 +1,183 @@
+package itto.pl.musicplayer.data.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BrowseIndexTest {
+
+    private static Audio audio(long id, String data, String album, String artist) {
+        return new Audio(id, data, "Title " + id, album, artist, 0, 0);
+    }
+
+    private static List<Audio> library() {
+        List<Audio> tracks = new ArrayList<>();
+        tracks.add(audio(1, "/music/Zed/Last/02.mp3", "Last", "Zed"));
+        tracks.add(audio(2, "/music/abba/Gold/01.mp3", "Gold", "abba"));
+        tracks.add(audio(3, "/music/Zed/Last/01.mp3", "Last", "Zed"));
+        tracks.add(audio(4, "/music/Zed/First/01.mp3", "First", "Zed"));
+        tracks.add(audio(5, "/music/\u00c9mile/Un/01.mp3", "Un", "\u00c9mile"));
+        tracks.add(audio(6, "/podcasts/episode.mp3", null, null));
+        return tracks;
+    }
+
+    private static List<Long> ids(List<Audio> tracks) {
+        List<Long> ids = new ArrayList<>();
+        for (Audio audio : tracks) {
+            ids.add(audio.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void build_groupsAndSortsArtistsAlbumsAndTracks() {
+        BrowseIndex index = new BrowseIndex.Builder().addAll(library()).build();
+
+        assertEquals(6, index.getTrackCount());
+        assertEquals(4, index.getArtistCount());
+        // Unknown artist first, then by collation, not by code point
+        assertNull(index.getArtistName(0));
+        assertEquals("abba", index.getArtistName(1));
+        assertEquals("\u00c9mile", index.getArtistName(2));
+        assertEquals("Zed", index.getArtistName(3));
+
+        assertEquals(2, index.getArtistAlbumCount(3));
+        int first = index.getArtistAlbum(3, 0);
+        int last = index.getArtistAlbum(3, 1);
+        assertEquals("First", index.getAlbumName(first));
+        assertEquals("Last", index.getAlbumName(last));
+        assertEquals(3, index.getAlbumArtist(last));
+        assertEquals(listOf(3L, 1L), ids(index.getAlbumTracks(last, 0, 10)));
+        assertEquals(listOf(4L, 3L, 1L), ids(index.getArtistTracks(3, 0, 10)));
+        assertEquals(listOf(3L), ids(index.getArtistTracks(3, 1, 1)));
+        assertEquals(0, index.getArtistTracks(3, 5, 10).size());
+
+        assertEquals(2, index.findArtist("emi"));
+        assertEquals(4, index.findArtist("zzz"));
+    }
+
+    @Test
+    public void build_numbersFoldersBreadthFirst() {
+        BrowseIndex index = new BrowseIndex.Builder().addAll(library()).build();
+
+        int root = BrowseIndex.ROOT_FOLDER;
+        assertEquals(2, index.getChildFolderCount(root));
+        int music = index.getChildFolder(root, 0);
+        int podcasts = index.getChildFolder(root, 1);
+        assertEquals("music", index.getFolderName(music));
+        assertEquals(listOf(6L), ids(index.getFolderTracks(podcasts, 0, 10)));
+        assertEquals(0, index.getFolderTrackCount(music));
+
+        assertEquals(3, index.getChildFolderCount(music));
+        int zed = index.getChildFolder(music, 2);
+        assertEquals("/music/Zed", index.getFolderPath(zed));
+        assertEquals(music, index.getFolderParent(zed));
+        int zedLast = index.getChildFolder(zed, 1);
+        assertEquals("/music/Zed/Last", index.getFolderPath(zedLast));
+        assertEquals(listOf(3L, 1L), ids(index.getFolderTracks(zedLast, 0, 10)));
+    }
+
+    @Test
+    public void builder_replacesAndRemovesTracks() {
+        BrowseIndex.Builder builder = new BrowseIndex.Builder().addAll(library());
+        builder.add(audio(2, "/music/Zed/Last/03.mp3", "Last", "Zed"));
+        builder.retainAll(new long[]{1, 2, 3, 6});
+        BrowseIndex index = builder.build();
+
+        assertEquals(4, builder.size());
+        assertEquals(4, index.getTrackCount());
+        // abba and Emile lost their only tracks
+        assertEquals(2, index.getArtistCount());
+        assertEquals(1, index.getArtistAlbumCount(1));
+        assertEquals(listOf(3L, 1L, 2L), ids(index.getArtistTracks(1, 0, 10)));
+        int music = index.getChildFolder(BrowseIndex.ROOT_FOLDER, 0);
+        assertEquals(1, index.getChildFolderCount(music));
+    }
+
+    @Test
+    public void builder_seededFromAnIndexKeepsItsOrder() {
+        BrowseIndex index = new BrowseIndex.Builder().addAll(library()).build();
+        BrowseIndex.Builder seeded = new BrowseIndex.Builder(index);
+
+        assertEquals(6, seeded.size());
+        assertTrue(seeded.contains(audio(3, "/music/Zed/Last/01.mp3", "Last", "Zed")));
+        // Edits land where a builder that never stopped would put them
+        Audio moved = new Audio(2, "/music/Zed/Last/00.mp3", "Title 2", "Last", "Zed", 0, 1);
+        assertFalse(seeded.contains(moved));
+        seeded.add(moved).add(audio(7, "/music/abba/Gold/02.mp3", "Gold", "abba"));
+        seeded.remove(6);
+        BrowseIndex expected = new BrowseIndex.Builder().addAll(library())
+                .add(moved).add(audio(7, "/music/abba/Gold/02.mp3", "Gold", "abba"))
+                .retainAll(new long[]{1, 2, 3, 4, 5, 7}).build();
+        BrowseIndex rebuilt = seeded.build();
+
+        assertEquals(expected.getArtistCount(), rebuilt.getArtistCount());
+        for (int artist = 0; artist < expected.getArtistCount(); artist++) {
+            assertEquals(expected.getArtistName(artist), rebuilt.getArtistName(artist));
+            assertEquals(ids(expected.getArtistTracks(artist, 0, 10)), ids(rebuilt.getArtistTracks(artist, 0, 10)));
+        }
+        assertEquals(expected.getFolderCount(), rebuilt.getFolderCount());
+        for (int folder = 0; folder < expected.getFolderCount(); folder++) {
+            assertEquals(expected.getFolderPath(folder), rebuilt.getFolderPath(folder));
+            assertEquals(ids(expected.getFolderTracks(folder, 0, 10)), ids(rebuilt.getFolderTracks(folder, 0, 10)));
+        }
+    }
+
+    @Test
+    public void builder_seededFromAQueueHoldingMoreTracks() throws Exception {
+        List<Audio> library = library();
+        BrowseIndex index = new BrowseIndex.Builder().addAll(library.subList(0, 4)).build();
+        // Tracks 5 and 6 stayed queued after they left the library
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bytes), index.positionsIn(library));
+
+        BrowseIndex read = BrowseIndex.read(ByteBuffer.wrap(bytes.toByteArray()), library);
+        BrowseIndex.Builder seeded = new BrowseIndex.Builder(read);
+        seeded.retainAll(new long[]{1, 3, 4});
+        BrowseIndex rebuilt = seeded.build();
+
+        assertEquals(4, read.getTrackCount());
+        assertEquals(3, seeded.size());
+        assertEquals(1, rebuilt.getArtistCount());
+        assertEquals(listOf(4L, 3L, 1L), ids(rebuilt.getArtistTracks(0, 0, 10)));
+        assertFalse(seeded.remove(6));
+    }
+
+    @Test
+    public void write_readsBackAgainstOtherTracks() throws Exception {
+        List<Audio> library = library();
+        BrowseIndex index = new BrowseIndex.Builder().addAll(library).build();
+        List<Audio> saved = new ArrayList<>(library);
+        Collections.reverse(saved);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bytes), index.positionsIn(saved));
+
+        BrowseIndex read = BrowseIndex.read(ByteBuffer.wrap(bytes.toByteArray()), saved);
+
+        assertEquals(index.getArtistCount(), read.getArtistCount());
+        assertEquals(index.getFolderCount(), read.getFolderCount());
+        assertEquals(ids(index.getArtistTracks(3, 0, 10)), ids(read.getArtistTracks(3, 0, 10)));
+        assertSame(saved.get(0), read.getFolderTracks(index.getChildFolder(BrowseIndex.ROOT_FOLDER, 1), 0, 1).get(0));
+        assertEquals(2, read.findArtist("\u00e9mile"));
+        assertNull(index.positionsIn(library.subList(0, 3)));
+    }
+
+    private static List<Long> listOf(Long... values) {
+        List<Long> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
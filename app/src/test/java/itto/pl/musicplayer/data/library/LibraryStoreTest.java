@@ -0,0 +1,117 @@
+package itto.pl.musicplayer.data.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LibraryStoreTest {
+
+    @Test
+    public void track_readsBackEveryField() {
+        LibraryStore store = new LibraryStore.Builder()
+                .add(7, "/music/Artist/Album/01 - Intro.mp3", "Intro", "Album", "Artist", 3, 1500)
+                .add(8, "no_folder.ogg", "Caf\u00e9 \u266b", null, null, 0, 0)
+                .add(9, null, null, "Album", "Artist", 3, 0)
+                .build();
+
+        assertEquals(3, store.size());
+        Audio first = store.get(0);
+        assertEquals(7, first.getId());
+        assertEquals("/music/Artist/Album/01 - Intro.mp3", first.getData());
+        assertEquals("Intro", first.getTitle());
+        assertEquals("Album", first.getAlbum());
+        assertEquals("Artist", first.getArtist());
+        assertEquals(3, first.getAlbumId());
+        assertEquals(1500, first.getDateModified());
+        assertEquals("/music/Artist/Album", store.getFolder(0));
+        assertEquals("01 - Intro.mp3", store.getFileName(0));
+
+        Audio second = store.get(1);
+        assertEquals("no_folder.ogg", second.getData());
+        assertEquals("Caf\u00e9 \u266b", second.getTitle());
+        assertNull(second.getAlbum());
+        assertNull(second.getArtist());
+        assertEquals(-1, store.getFolderRef(1));
+
+        Audio third = store.get(2);
+        assertNull(third.getData());
+        assertNull(third.getTitle());
+        assertEquals("Album", third.getAlbum());
+    }
+
+    @Test
+    public void builder_sharesDictionaryAcrossPages() {
+        LibraryStore.Builder builder = new LibraryStore.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.add(i, "/music/Band/Record/" + i + ".mp3", "Song " + i, "Record", "Band", 1, 0);
+        }
+        LibraryStore first = builder.build();
+        assertEquals(0, builder.size());
+        for (int i = 100; i < 150; i++) {
+            builder.add(i, "/music/Band/Record/" + i + ".mp3", "Song " + i, "Record", "Band", 1, 0);
+        }
+        LibraryStore second = builder.build();
+
+        assertEquals(100, first.size());
+        assertEquals(50, second.size());
+        assertEquals(first.getArtistRef(0), second.getArtistRef(0));
+        assertEquals(first.getFolderRef(99), second.getFolderRef(0));
+        assertSame(first.getArtist(0), second.getArtist(49));
+        assertEquals("Song 149", second.get(49).getTitle());
+        assertEquals("/music/Band/Record/99.mp3", first.get(99).getData());
+    }
+
+    @Test
+    public void asList_isReadOnlyView() {
+        LibraryStore store = new LibraryStore.Builder()
+                .add(1, "/a/1.mp3", "One", "A", "X", 1, 0)
+                .add(2, "/a/2.mp3", "Two", "A", "X", 1, 0)
+                .build();
+        List<Audio> list = store.asList();
+
+        assertEquals(2, list.size());
+        assertEquals("Two", list.get(1).getTitle());
+        try {
+            list.get(0).setTitle("Changed");
+            throw new AssertionError("tracks must be immutable");
+        } catch (UnsupportedOperationException expected) {
+            assertEquals("One", store.getTitle(0));
+        }
+        try {
+            list.add(new Audio("/b", "b", "b", "b"));
+            throw new AssertionError("list must be read only");
+        } catch (UnsupportedOperationException expected) {
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    public void track_serializesAsPlainAudio() throws Exception {
+        LibraryStore store = new LibraryStore.Builder()
+                .add(5, "/a/5.mp3", "Five", "A", "X", 2, 10)
+                .build();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(store.get(0));
+        out.close();
+
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertTrue(copy.getClass() == Audio.class);
+        Audio audio = (Audio) copy;
+        assertEquals(5, audio.getId());
+        assertEquals("/a/5.mp3", audio.getData());
+        assertEquals("Five", audio.getTitle());
+        assertEquals(10, audio.getDateModified());
+    }
+}
@@ -0,0 +1,153 @@
+package itto.pl.musicplayer.data.library;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    private static Audio audio(long id, String title, String artist, String album) {
+        return new Audio(id, "/music/" + id + ".mp3", title, album, artist, id, 0);
+    }
+
+    private static List<Long> ids(List<Audio> result) {
+        List<Long> ids = new ArrayList<>();
+        for (Audio audio : result) {
+            ids.add(audio.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void normalize_foldsCaseDiacriticsAndPunctuation() {
+        assertEquals(" beyonce deja vu", SearchIndex.normalize("Beyonc\u00e9 \u2013 D\u00e9j\u00e0 Vu!"));
+        assertEquals(" strasse", SearchIndex.normalize("STRA\u00dfE"));
+        assertEquals(" sigur ros", SearchIndex.normalize("  Sigur R\u00f3s  "));
+        assertEquals("", SearchIndex.normalize(" - "));
+        assertEquals("", SearchIndex.normalize(null));
+    }
+
+    @Test
+    public void search_matchesPrefixesInfixesAndDiacritics() {
+        SearchIndex index = new SearchIndex();
+        index.add(audio(1, "D\u00e9j\u00e0 Vu", "Beyonc\u00e9", "B'Day"));
+        index.add(audio(2, "Hopp\u00edpolla", "Sigur R\u00f3s", "Takk..."));
+        index.add(audio(3, "Yellow", "Coldplay", "Parachutes"));
+
+        assertEquals("[1]", ids(index.search("deja", 10)).toString());
+        assertEquals("[1]", ids(index.search("BEYON", 10)).toString());
+        assertEquals("[2]", ids(index.search("ros", 10)).toString());
+        assertEquals("[2]", ids(index.search("ipol", 10)).toString());
+        assertEquals("[3]", ids(index.search("y", 10)).toString());
+        assertEquals("[3]", ids(index.search("co", 10)).toString());
+        // Two characters only match the start of a token
+        assertTrue(index.search("ol", 10).isEmpty());
+        assertTrue(index.search("zzz", 10).isEmpty());
+        assertTrue(index.search("  ", 10).isEmpty());
+    }
+
+    @Test
+    public void search_requiresEveryToken() {
+        SearchIndex index = new SearchIndex();
+        index.add(audio(1, "Yellow", "Coldplay", "Parachutes"));
+        index.add(audio(2, "Yellow Submarine", "The Beatles", "Revolver"));
+
+        assertEquals("[2]", ids(index.search("yellow beat", 10)).toString());
+        assertEquals("[1]", ids(index.search("cold yel", 10)).toString());
+    }
+
+    @Test
+    public void search_ranksByFieldThenMatchThenInsertionOrder() {
+        SearchIndex index = new SearchIndex();
+        index.add(audio(1, "Intro", "Some Band", "Love Songs"));
+        index.add(audio(2, "Intro", "Love Inc", "Hits"));
+        index.add(audio(3, "Lovely Day", "Bill Withers", "Menagerie"));
+        index.add(audio(4, "Love", "John Lennon", "Imagine"));
+        index.add(audio(5, "Glove", "Nobody", "Nothing"));
+        index.add(audio(6, "Love Me Do", "The Beatles", "Please Please Me"));
+
+        // Whole title token, title prefix, artist token, title infix, album token
+        assertEquals("[4, 6, 3, 2, 5, 1]", ids(index.search("love", 10)).toString());
+        assertEquals("[4, 6]", ids(index.search("love", 2)).toString());
+    }
+
+    @Test
+    public void add_replacesTrackWithSameId() {
+        SearchIndex index = new SearchIndex();
+        index.add(audio(1, "Old Title", "Artist", "Album"));
+        index.add(audio(1, "New Title", "Artist", "Album"));
+
+        assertEquals(1, index.size());
+        assertTrue(index.search("old", 10).isEmpty());
+        assertEquals("[1]", ids(index.search("new", 10)).toString());
+    }
+
+    @Test
+    public void removeAndRetainAll_dropTracks() {
+        SearchIndex index = new SearchIndex();
+        for (long id = 1; id <= 5; id++) {
+            index.add(audio(id, "Song " + id, "Artist", "Album"));
+        }
+        assertTrue(index.remove(2));
+        assertFalse(index.remove(2));
+        index.retainAll(new long[]{1, 3, 5});
+
+        assertEquals(3, index.size());
+        assertEquals("[1, 3, 5]", ids(index.search("song", 10)).toString());
+    }
+
+    @Test
+    public void compaction_keepsResults() {
+        SearchIndex index = new SearchIndex();
+        for (long id = 0; id < 5000; id++) {
+            index.add(audio(id, "Track " + id, id % 2 == 0 ? "Even" : "Odd", "Album"));
+        }
+        long[] live = new long[100];
+        for (int i = 0; i < live.length; i++) {
+            live[i] = i * 2;
+        }
+        index.retainAll(live);
+
+        assertEquals(100, index.size());
+        assertEquals(100, index.search("even", 1000).size());
+        assertTrue(index.search("odd", 1000).isEmpty());
+        assertEquals("[42]", ids(index.search("track 42", 1)).toString());
+    }
+
+    @Test
+    public void search_agreesWithLinearScan() {
+        String[] words = {"love", "night", "dream", "fire", "heart", "rain", "dance", "blue", "gold", "river"};
+        Random random = new Random(7);
+        SearchIndex index = new SearchIndex();
+        List<Audio> library = new ArrayList<>();
+        for (long id = 0; id < 2000; id++) {
+            Audio audio = audio(id, words[random.nextInt(10)] + " " + words[random.nextInt(10)],
+                    words[random.nextInt(10)], words[random.nextInt(10)] + " " + id);
+            library.add(audio);
+            index.add(audio);
+        }
+        for (String query : new String[]{"hea", "dream", "ive", "ni", "gold rain"}) {
+            int expected = 0;
+            for (Audio audio : library) {
+                String text = SearchIndex.normalize(audio.getTitle() + " " + audio.getArtist() + " "
+                        + audio.getAlbum());
+                boolean all = true;
+                for (String token : query.split(" ")) {
+                    all &= token.length() < 3 ? text.contains(" " + token) : text.contains(token);
+                }
+                if (all) {
+                    expected++;
+                }
+            }
+            assertEquals(query, expected, index.search(query, library.size()).size());
+        }
+    }
+}
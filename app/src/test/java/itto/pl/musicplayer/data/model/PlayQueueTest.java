@@ -0,0 +1,102 @@
+package itto.pl.musicplayer.data.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PlayQueueTest {
+
+    private static List<Audio> tracks(int from, int count) {
+        List<Audio> tracks = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            tracks.add(new Audio(i, "/music/" + i + ".mp3", "Track " + i, null, null, 0, 0));
+        }
+        return tracks;
+    }
+
+    @Test
+    public void editsMatchAList() {
+        Random random = new Random(11);
+        List<Audio> expected = new ArrayList<>(tracks(0, 300));
+        PlayQueue queue = PlayQueue.of(expected);
+        PlayQueue first = queue;
+        int nextId = 300;
+        for (int step = 0; step < 3000; step++) {
+            int size = expected.size();
+            int op = size == 0 ? 0 : random.nextInt(3);
+            PlayQueue.Change change;
+            if (op == 0) {
+                List<Audio> inserted = tracks(nextId, 1 + random.nextInt(4));
+                nextId += inserted.size();
+                int index = random.nextInt(size + 1);
+                expected.addAll(index, inserted);
+                change = PlayQueue.Change.insert(index, inserted);
+            } else if (op == 1) {
+                int index = random.nextInt(size);
+                expected.remove(index);
+                change = PlayQueue.Change.remove(index);
+            } else {
+                int from = random.nextInt(size);
+                int to = random.nextInt(size);
+                expected.add(to, expected.remove(from));
+                change = PlayQueue.Change.move(from, to);
+            }
+            queue = queue.apply(change);
+            assertEquals(expected.size(), queue.size());
+            if (step % 100 == 0) {
+                assertEquals(expected, new ArrayList<>(queue.asList()));
+            }
+        }
+        assertEquals(expected, new ArrayList<>(queue.asList()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), queue.get(i));
+        }
+        // Edits never touch the queue they were made from
+        assertEquals(300, first.size());
+        assertEquals(299, first.get(299).getId());
+    }
+
+    @Test
+    public void changesFollowTheCurrentItem() {
+        PlayQueue queue = PlayQueue.of(tracks(0, 10));
+        Audio current = queue.get(4);
+        int index = 4;
+        PlayQueue.Change[] changes = {
+                PlayQueue.Change.insert(0, tracks(10, 3)),
+                PlayQueue.Change.move(index + 3, 0),
+                PlayQueue.Change.move(5, 0),
+                PlayQueue.Change.remove(12),
+                PlayQueue.Change.insert(12, tracks(20, 2)),
+        };
+        for (PlayQueue.Change change : changes) {
+            queue = queue.apply(change);
+            index = change.mapIndex(index);
+            assertSame(current, queue.get(index));
+        }
+        assertEquals(-1, PlayQueue.Change.remove(index).mapIndex(index));
+        assertEquals(-1, PlayQueue.Change.insert(0, tracks(0, 1)).mapIndex(-1));
+    }
+
+    @Test
+    public void largeQueueStaysBalanced() {
+        PlayQueue queue = PlayQueue.EMPTY;
+        for (int i = 0; i < 20000; i++) {
+            // Always at the front, the worst case for an unbalanced tree
+            queue = queue.withInserted(0, new Audio(i, null, null, null, null, 0, 0));
+        }
+        assertEquals(20000, queue.size());
+        assertEquals(19999, queue.get(0).getId());
+        assertEquals(0, queue.get(19999).getId());
+        int count = 0;
+        for (Audio audio : queue.asList()) {
+            assertEquals(19999 - count++, audio.getId());
+        }
+        // The first item after the removal moved to the end
+        assertEquals(19998, queue.withRemoved(0).withMoved(0, 19998).get(19998).getId());
+    }
+}
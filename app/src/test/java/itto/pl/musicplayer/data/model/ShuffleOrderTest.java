@@ -0,0 +1,205 @@
+package itto.pl.musicplayer.data.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+public class ShuffleOrderTest {
+
+    private static List<Integer> cycle(ShuffleOrder order) {
+        List<Integer> played = new ArrayList<>();
+        played.add(order.current());
+        while (order.peekNext() != -1) {
+            played.add(order.next());
+        }
+        return played;
+    }
+
+    @Test
+    public void cyclePlaysEveryTrackOnce() {
+        ShuffleOrder order = new ShuffleOrder(50, 42);
+        order.start(7);
+        List<Integer> played = cycle(order);
+        assertEquals(50, played.size());
+        assertEquals(50, new HashSet<>(played).size());
+        assertEquals(7, (int) played.get(0));
+
+        // Past the end a new cycle starts, never with the track that just played
+        int last = order.current();
+        int first = order.next();
+        assertNotEquals(last, first);
+        assertEquals(1, order.getDealt());
+        assertEquals(50, new HashSet<>(cycle(order)).size());
+    }
+
+    @Test
+    public void previousWalksTheHistory() {
+        ShuffleOrder order = new ShuffleOrder(20, 1);
+        order.start(3);
+        int a = order.next();
+        int b = order.next();
+        int c = order.next();
+        assertEquals(b, order.previous());
+        assertEquals(a, order.previous());
+        assertEquals(3, order.previous());
+        // Stays on the first track of the cycle
+        assertEquals(3, order.previous());
+        assertEquals(a, order.next());
+        assertEquals(b, order.next());
+        assertEquals(c, order.next());
+        assertEquals(a, order.skip(-2));
+        assertEquals(c, order.skip(2));
+    }
+
+    @Test
+    public void jumpIntoTheHistoryKeepsIt() {
+        ShuffleOrder order = new ShuffleOrder(10, 5);
+        order.start(0);
+        int a = order.next();
+        int b = order.next();
+        order.jumpTo(a);
+        assertEquals(a, order.current());
+        assertEquals(0, order.previous());
+        assertEquals(a, order.next());
+        assertEquals(b, order.next());
+        assertEquals(3, order.getDealt());
+    }
+
+    @Test
+    public void jumpOutsideTheHistoryDealsIt() {
+        ShuffleOrder order = new ShuffleOrder(10, 5);
+        order.start(0);
+        int a = order.next();
+        int picked = firstNotDealt(order);
+        order.jumpTo(picked);
+        assertEquals(picked, order.current());
+        assertEquals(0, order.getFirst());
+        assertEquals(3, order.getDealt());
+        assertArrayEquals(new int[]{2, picked}, order.getPicks());
+        // The history is kept and nothing of it comes again in the rest of the cycle
+        List<Integer> played = dealt(order);
+        assertEquals(listOf(0, a, picked), played);
+        played.addAll(cycle(order).subList(1, 8));
+        assertEquals(10, played.size());
+        assertEquals(10, new HashSet<>(played).size());
+    }
+
+    @Test
+    public void restoreAfterJumpDealsTheSameOrder() {
+        for (long seed = 0; seed < 200; seed++) {
+            ShuffleOrder order = new ShuffleOrder(25, seed);
+            order.start(3);
+            order.skip(4);
+            order.jumpTo(firstNotDealt(order));
+            order.skip(5);
+            order.jumpTo(firstNotDealt(order));
+            order.skip(2);
+            order.previous();
+            order.peekNext();
+            ShuffleOrder restored = ShuffleOrder.restore(25, order.getSeed(), order.getFirst(), order.getDealt(),
+                    order.getPosition(), order.current(), order.getPicks());
+            assertEquals("seed " + seed, dealt(order), dealt(restored));
+            // Nothing of the history comes again in the rest of the cycle
+            List<Integer> played = new ArrayList<>(dealt(restored).subList(0, restored.getPosition()));
+            List<Integer> rest = cycle(restored);
+            assertEquals("seed " + seed, cycle(order), rest);
+            played.addAll(rest);
+            assertEquals("seed " + seed, 25, played.size());
+            assertEquals("seed " + seed, 25, new HashSet<>(played).size());
+        }
+    }
+
+    // Every dealt track in play order, the position is left where it was
+    private static List<Integer> dealt(ShuffleOrder order) {
+        int position = order.getPosition();
+        List<Integer> dealt = new ArrayList<>();
+        dealt.add(order.skip(-position));
+        // Stays within the dealt tracks, nothing new is dealt
+        for (int i = 1; i < order.getDealt(); i++) {
+            dealt.add(order.next());
+        }
+        order.skip(position - (order.getDealt() - 1));
+        return dealt;
+    }
+
+    private static List<Integer> listOf(Integer... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    private static int firstNotDealt(ShuffleOrder order) {
+        List<Integer> dealt = dealt(order);
+        for (int i = 0; i < order.size(); i++) {
+            if (!dealt.contains(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void restoreDealsTheSameOrder() {
+        ShuffleOrder order = new ShuffleOrder(30, 99);
+        order.start(12);
+        order.skip(8);
+        order.previous();
+        order.peekNext();
+        ShuffleOrder restored = ShuffleOrder.restore(30, order.getSeed(), order.getFirst(), order.getDealt(),
+                order.getPosition(), order.current());
+        assertEquals(order.current(), restored.current());
+        assertEquals(cycle(order), cycle(restored));
+    }
+
+    @Test
+    public void restoreAfterEditKeepsCurrent() {
+        ShuffleOrder order = new ShuffleOrder(30, 99);
+        order.start(12);
+        order.skip(5);
+        order.onAppended(10);
+        order.onMoved(order.current(), 0);
+        assertEquals(0, order.current());
+
+        ShuffleOrder restored = ShuffleOrder.restore(40, order.getSeed(), order.getFirst(), order.getDealt(),
+                order.getPosition(), 0);
+        assertEquals(0, restored.current());
+        assertEquals(order.getPosition(), restored.getPosition());
+        assertEquals(40 - order.getPosition(), new HashSet<>(cycle(restored)).size());
+    }
+
+    @Test
+    public void editsKeepTheOrder() {
+        ShuffleOrder order = new ShuffleOrder(8, 3);
+        order.start(2);
+        int a = order.next();
+        int b = order.next();
+
+        order.onInserted(0);
+        assertEquals(b + 1, order.current());
+        assertEquals(a + 1, order.previous());
+        assertEquals(b + 1, order.next());
+
+        order.onMoved(b + 1, 0);
+        assertEquals(0, order.current());
+
+        // Removing the current track makes the following one next
+        int following = order.peekNext();
+        order.onRemoved(0);
+        assertEquals(following - 1, order.next());
+
+        order.onAppended(3);
+        assertEquals(11, order.size());
+        order.skip(-order.size());
+        List<Integer> whole = cycle(order);
+        assertEquals(11, whole.size());
+        assertEquals(11, new HashSet<>(whole).size());
+        assertFalse(whole.contains(-1));
+    }
+}
@@ -0,0 +1,161 @@
+package itto.pl.musicplayer.data.storage;
+
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Insert and query throughput of the {@link LibraryDatabase} at 50k tracks, run by Robolectric on
+ * the host SQLite. Absolute numbers differ from a device, the ratios between batch sizes and
+ * between indexed and unindexed reads carry over. Results are printed, the test only checks that
+ * every operation returns the right rows. Excluded from the unit tests, run it with
+ * {@code ./gradlew :app:testDebugUnitTest -Pbenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LibraryDatabaseBenchmark {
+    private static final int TRACK_COUNT = 50000;
+    private static final int ARTISTS = 800;
+    private static final int TRACKS_PER_ALBUM = 12;
+    // Same as LibraryScanner.PAGE_SIZE, one transaction per scanned page
+    private static final int PAGE_SIZE = 500;
+    private static final int QUERY_PAGE_SIZE = 100;
+    private static final int QUERY_RUNS = 200;
+
+    private LibraryDatabase mDatabase;
+    private List<Audio> mTracks;
+
+    @Before
+    public void setUp() {
+        mDatabase = new LibraryDatabase(RuntimeEnvironment.application, "benchmark.db");
+        mDatabase.clear();
+        mTracks = new ArrayList<>(TRACK_COUNT);
+        for (int i = 0; i < TRACK_COUNT; i++) {
+            mTracks.add(track(i, 1500000000L + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+        RuntimeEnvironment.application.deleteDatabase("benchmark.db");
+    }
+
+    @Test
+    public void insert() {
+        long start = System.nanoTime();
+        for (int from = 0; from < TRACK_COUNT; from += PAGE_SIZE) {
+            mDatabase.upsert(mTracks.subList(from, Math.min(from + PAGE_SIZE, TRACK_COUNT)));
+        }
+        report("insert, " + PAGE_SIZE + " per transaction", TRACK_COUNT, System.nanoTime() - start);
+        assertEquals(TRACK_COUNT, mDatabase.count());
+
+        // Every row replaced, as a rescan after a metadata change does
+        List<Audio> changed = new ArrayList<>(TRACK_COUNT);
+        for (int i = 0; i < TRACK_COUNT; i++) {
+            changed.add(track(i, 1600000000L + i));
+        }
+        start = System.nanoTime();
+        mDatabase.upsert(changed);
+        report("upsert, one transaction", TRACK_COUNT, System.nanoTime() - start);
+        assertEquals(TRACK_COUNT, mDatabase.count());
+        assertEquals(1600000000L + TRACK_COUNT - 1, mDatabase.getMaxDateModified());
+
+        long[] liveIds = new long[TRACK_COUNT / 2];
+        for (int i = 0; i < liveIds.length; i++) {
+            liveIds[i] = i * 2;
+        }
+        start = System.nanoTime();
+        int deleted = mDatabase.retainAll(liveIds);
+        report("retainAll, half deleted", TRACK_COUNT, System.nanoTime() - start);
+        assertEquals(TRACK_COUNT / 2, deleted);
+        assertEquals(TRACK_COUNT / 2, mDatabase.count());
+    }
+
+    @Test
+    public void query() {
+        mDatabase.upsert(mTracks);
+
+        String[] names = {"title", "artist", "album", "path"};
+        for (int order = LibraryDatabase.ORDER_TITLE; order <= LibraryDatabase.ORDER_PATH; order++) {
+            long start = System.nanoTime();
+            int rows = 0;
+            for (int run = 0; run < QUERY_RUNS; run++) {
+                // Pages spread over the whole table, deeper offsets cost more index steps
+                int offset = (int) ((long) run * (TRACK_COUNT - QUERY_PAGE_SIZE) / QUERY_RUNS);
+                rows += mDatabase.load(order, offset, QUERY_PAGE_SIZE).size();
+            }
+            report("page of " + QUERY_PAGE_SIZE + " by " + names[order], rows, System.nanoTime() - start);
+            assertEquals(QUERY_RUNS * QUERY_PAGE_SIZE, rows);
+        }
+
+        long start = System.nanoTime();
+        int rows = 0;
+        for (int run = 0; run < QUERY_RUNS; run++) {
+            rows += count(mDatabase.queryArtist(artist(run * TRACKS_PER_ALBUM * 4), 0, -1));
+        }
+        report("tracks of an artist", rows, System.nanoTime() - start);
+        assertTrue(rows > 0);
+
+        start = System.nanoTime();
+        rows = 0;
+        for (int run = 0; run < QUERY_RUNS; run++) {
+            rows += count(mDatabase.queryFolder(folder(run * TRACKS_PER_ALBUM), 0, -1));
+        }
+        report("tracks of a folder", rows, System.nanoTime() - start);
+        assertEquals(QUERY_RUNS * TRACKS_PER_ALBUM, rows);
+
+        start = System.nanoTime();
+        List<Audio> all = mDatabase.load(LibraryDatabase.ORDER_TITLE, 0, -1);
+        report("whole library by title", all.size(), System.nanoTime() - start);
+        assertEquals(TRACK_COUNT, all.size());
+    }
+
+    private static int count(Cursor cursor) {
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void report(String name, int rows, long nanos) {
+        System.out.println(String.format("%-36s %8d rows %8.1f ms %10.0f rows/s", name, rows, nanos / 1e6,
+                rows * 1e9 / nanos));
+    }
+
+    private static Audio track(int i, long dateModified) {
+        return new Audio(i, folder(i) + "/" + (i % TRACKS_PER_ALBUM + 1) + " - Track " + i + ".mp3",
+                "Track Title Number " + i, album(i), artist(i), i / TRACKS_PER_ALBUM, dateModified);
+    }
+
+    private static String artist(int i) {
+        return "Artist Name " + (i / (4 * TRACKS_PER_ALBUM)) % ARTISTS;
+    }
+
+    private static String album(int i) {
+        return "Album Title " + i / TRACKS_PER_ALBUM;
+    }
+
+    private static String folder(int i) {
+        return "/storage/emulated/0/Music/" + artist(i) + "/" + album(i);
+    }
+}
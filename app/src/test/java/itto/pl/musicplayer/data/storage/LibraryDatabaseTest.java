@@ -0,0 +1,62 @@
+package itto.pl.musicplayer.data.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LibraryDatabaseTest {
+    private LibraryDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new LibraryDatabase(RuntimeEnvironment.application, "test.db");
+        List<Audio> tracks = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            tracks.add(new Audio(i, "/music/" + i + ".mp3", "Track " + i, "Album", "Artist", 1, 1500000000L + i));
+        }
+        mDatabase.upsert(tracks);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+        RuntimeEnvironment.application.deleteDatabase("test.db");
+    }
+
+    @Test
+    public void retainAllDeletesMissingTracks() {
+        assertEquals(7, mDatabase.retainAll(new long[]{2, 5, 9}));
+        assertEquals(3, mDatabase.count());
+        assertEquals(1500000009L, mDatabase.getMaxDateModified());
+    }
+
+    @Test
+    public void missingIdsFindsTracksNotStored() {
+        assertArrayEquals(new long[]{0, 12, 40}, mDatabase.missingIds(new long[]{0, 3, 10, 12, 40}));
+        assertArrayEquals(new long[0], mDatabase.missingIds(new long[]{1, 2, 3}));
+    }
+
+    @Test
+    public void retainAllKeepsEverythingForAnEmptySet() {
+        // An empty live set is unknown, e.g. MediaStore could not be queried
+        assertEquals(0, mDatabase.retainAll(new long[0]));
+        assertEquals(10, mDatabase.count());
+
+        mDatabase.clear();
+        assertEquals(0, mDatabase.count());
+    }
+}
@@ -0,0 +1,94 @@
+package itto.pl.musicplayer.data.storage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import itto.pl.musicplayer.data.library.BrowseIndex;
+import itto.pl.musicplayer.data.model.Audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class PlaylistSnapshotTest {
+
+    private static List<Audio> tracks() {
+        List<Audio> tracks = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            tracks.add(new Audio(i, "/music/Artist " + i % 4 + "/Album " + i % 7 + "/" + i + ".mp3",
+                    "Title " + i, "Album " + i % 7, "Artist " + i % 4, i % 7, 1500000000L + i));
+        }
+        return tracks;
+    }
+
+    private static byte[] snapshot() throws IOException {
+        List<Audio> tracks = tracks();
+        File file = File.createTempFile("snapshot", null);
+        try {
+            PlaylistSnapshot.write(file, tracks, new BrowseIndex.Builder().addAll(tracks).build());
+            byte[] bytes = new byte[(int) file.length()];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.readFully(bytes);
+            } finally {
+                raf.close();
+            }
+            return bytes;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writeReadsBack() throws Exception {
+        PlaylistSnapshot.Contents contents = PlaylistSnapshot.read(ByteBuffer.wrap(snapshot()));
+
+        List<Audio> tracks = tracks();
+        assertEquals(tracks.size(), contents.getTracks().size());
+        for (int i = 0; i < tracks.size(); i++) {
+            assertEquals(tracks.get(i).getId(), contents.getTracks().get(i).getId());
+            assertEquals(tracks.get(i).getData(), contents.getTracks().get(i).getData());
+        }
+        assertNotNull(contents.getBrowseIndex());
+        assertEquals(40, contents.getBrowseIndex().getTrackCount());
+        assertEquals(4, contents.getBrowseIndex().getArtistCount());
+    }
+
+    @Test
+    public void truncatedSnapshotFailsWithIOException() throws Exception {
+        byte[] bytes = snapshot();
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                PlaylistSnapshot.read(ByteBuffer.wrap(bytes, 0, length));
+                fail("Read a snapshot truncated to " + length + " bytes");
+            } catch (IOException expected) {
+                // Falls back to an empty queue
+            }
+        }
+    }
+
+    @Test
+    public void garbledSnapshotFailsWithIOException() throws Exception {
+        byte[] original = snapshot();
+        Random random = new Random(7);
+        for (int run = 0; run < 3000; run++) {
+            byte[] bytes = original.clone();
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                bytes[random.nextInt(bytes.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                // Either reads something or reports the damage, nothing else escapes
+                PlaylistSnapshot.read(ByteBuffer.wrap(bytes));
+            } catch (IOException expected) {
+                // Falls back to an empty queue
+            }
+        }
+    }
+}
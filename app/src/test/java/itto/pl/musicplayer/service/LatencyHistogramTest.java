@@ -0,0 +1,66 @@
+package itto.pl.musicplayer.service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        // Each bucket starts right after the previous one ends
+        for (int index = 1; index < 400; index++) {
+            long lower = LatencyHistogram.bucketUpperBound(index - 1) + 1;
+            assertEquals(index, LatencyHistogram.bucketIndex(lower));
+            assertEquals(index, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(index)));
+        }
+        assertEquals(0, LatencyHistogram.bucketIndex(-5));
+        assertEquals(LatencyHistogram.bucketIndex(Long.MAX_VALUE),
+                LatencyHistogram.bucketIndex(1L << 40));
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(7);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // 1ms to 2s, skewed towards the low end like prepare times
+            values[i] = 1000 + (long) (Math.pow(random.nextDouble(), 3) * 2000000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + estimate + " < " + exact, estimate >= exact);
+            assertTrue(percentile + ": " + estimate + " > " + exact, estimate <= exact * 1.07);
+        }
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void exactStatistics() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(0, histogram.getMin());
+        histogram.record(100);
+        histogram.record(300);
+        histogram.record(5000000000L);
+        assertEquals(100, histogram.getMin());
+        assertEquals(5000000000L, histogram.getMax());
+        assertEquals((100 + 300 + 5000000000L) / 3.0, histogram.getMean(), 1e-6);
+        assertEquals(5000000000L, histogram.getValueAtPercentile(99));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+}
@@ -0,0 +1,66 @@
+package itto.pl.music_visualizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the {@link VerticalBarVisualizer} math per frame: mapping a waveform capture or spectrum
+ * levels to bar tops, and recomputing the layout after a size change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BarLayoutBenchmark {
+    @Param({"128", "1024"})
+    public int captureSize;
+
+    @Param({"32", "128"})
+    public int barCount;
+
+    private byte[] mSamples;
+    private float[] mLevels;
+    private BarLayout mLayout;
+    private int mWidth = 1080;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mSamples = new byte[captureSize];
+        random.nextBytes(mSamples);
+        mLevels = new float[barCount];
+        for (int i = 0; i < barCount; i++) {
+            mLevels[i] = random.nextFloat();
+        }
+        mLayout = new BarLayout();
+        mLayout.update(mWidth, 400, barCount, captureSize, 4);
+    }
+
+    @Benchmark
+    public float[] fillWaveform() {
+        mLayout.fill(mSamples);
+        return mLayout.getPoints();
+    }
+
+    @Benchmark
+    public float[] fillSpectrum() {
+        mLayout.fill(mLevels);
+        return mLayout.getPoints();
+    }
+
+    @Benchmark
+    public float[] resize() {
+        // Alternate between two widths so every call recomputes
+        mWidth = mWidth == 1080 ? 2340 : 1080;
+        mLayout.update(mWidth, 400, barCount, captureSize, 4);
+        return mLayout.getPoints();
+    }
+}
@@ -0,0 +1,59 @@
+package itto.pl.music_visualizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping one FFT capture to smoothed band levels in {@link SpectrumAnalyzer}, and of
+ * recomputing the band edges when the capture size changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpectrumAnalyzerBenchmark {
+    private static final int SAMPLING_RATE = 44100;
+
+    @Param({"128", "1024"})
+    public int captureSize;
+
+    @Param({"16", "64"})
+    public int bandCount;
+
+    private byte[] mFft;
+    private byte[] mOtherFft;
+    private SpectrumAnalyzer mAnalyzer;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mFft = new byte[captureSize];
+        random.nextBytes(mFft);
+        mOtherFft = new byte[captureSize * 2];
+        random.nextBytes(mOtherFft);
+        mAnalyzer = new SpectrumAnalyzer(bandCount);
+        mAnalyzer.process(mFft, SAMPLING_RATE);
+    }
+
+    @Benchmark
+    public float[] process() {
+        mAnalyzer.process(mFft, SAMPLING_RATE);
+        return mAnalyzer.getLevels();
+    }
+
+    @Benchmark
+    public float[] reconfigure() {
+        // Every call switches capture size, so the band edges and bin buffer are rebuilt
+        mAnalyzer.process(mOtherFft, SAMPLING_RATE);
+        mAnalyzer.process(mFft, SAMPLING_RATE);
+        return mAnalyzer.getLevels();
+    }
+}
@@ -0,0 +1,57 @@
+package itto.pl.music_visualizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one {@link LineVisualizer} frame: decimating a capture to the view width and building the
+ * line coordinates. Capture size reaches 1024 samples at the maximum capture rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WaveformDecimatorBenchmark {
+    @Param({"128", "512", "1024"})
+    public int captureSize;
+
+    // Narrow widget, phone portrait and landscape widths
+    @Param({"360", "1080", "2340"})
+    public int columns;
+
+    private byte[] mSamples;
+    private float[] mMin;
+    private float[] mMax;
+    private float[] mLines;
+
+    @Setup
+    public void setUp() {
+        mSamples = new byte[captureSize];
+        new Random(42).nextBytes(mSamples);
+        mMin = new float[columns];
+        mMax = new float[columns];
+        mLines = new float[WaveformDecimator.lineBufferSize(columns)];
+    }
+
+    @Benchmark
+    public float[] decimate() {
+        WaveformDecimator.decimate(mSamples, captureSize, columns, mMin, mMax);
+        return mMax;
+    }
+
+    @Benchmark
+    public float[] frame() {
+        WaveformDecimator.decimate(mSamples, captureSize, columns, mMin, mMax);
+        WaveformDecimator.mirror(mMin, mMax, columns);
+        WaveformDecimator.buildLines(mMin, mMax, columns, columns, 400, mLines);
+        return mLines;
+    }
+}
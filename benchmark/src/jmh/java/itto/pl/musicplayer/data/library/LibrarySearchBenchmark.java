@@ -0,0 +1,61 @@
+package itto.pl.musicplayer.data.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * {@link SearchIndex} queries against the linear scan a search box does without an index
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LibrarySearchBenchmark {
+    @Param({"10000", "50000"})
+    public int trackCount;
+
+    // One character, a token prefix, an infix and two tokens
+    @Param({"a", "arti", "tle nu", "artist 7"})
+    public String query;
+
+    private List<Audio> mTracks;
+    private SearchIndex mSearchIndex;
+
+    @Setup
+    public void setUp() {
+        mTracks = LibrarySortBenchmark.library(trackCount);
+        mSearchIndex = new SearchIndex();
+        mSearchIndex.addAll(mTracks);
+    }
+
+    @Benchmark
+    public List<Audio> search() {
+        return mSearchIndex.search(query, 50);
+    }
+
+    @Benchmark
+    public List<Audio> searchLinearScan() {
+        String needle = query.toLowerCase();
+        List<Audio> result = new ArrayList<>();
+        for (int i = 0; i < mTracks.size() && result.size() < 50; i++) {
+            Audio audio = mTracks.get(i);
+            if (audio.getTitle().toLowerCase().contains(needle)
+                    || audio.getArtist().toLowerCase().contains(needle)
+                    || audio.getAlbum().toLowerCase().contains(needle)) {
+                result.add(audio);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+package itto.pl.musicplayer.data.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * Grouping and sorting the library: {@link BrowseIndex} full and incremental builds against sorting
+ * the list with a {@link Collator}, and building the {@link LibraryStore} a scan delivers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LibrarySortBenchmark {
+    @Param({"10000", "50000"})
+    public int trackCount;
+
+    private List<Audio> mTracks;
+    private BrowseIndex.Builder mBrowseBuilder;
+    private Audio[] mChanged;
+    private int mNextChanged;
+
+    @Setup
+    public void setUp() {
+        mTracks = library(trackCount);
+        mBrowseBuilder = new BrowseIndex.Builder().addAll(mTracks);
+        mChanged = new Audio[64];
+        for (int i = 0; i < mChanged.length; i++) {
+            int id = i * (trackCount / mChanged.length);
+            mChanged[i] = track(id, "Retitled " + id);
+        }
+    }
+
+    /**
+     * 12 tracks per album, 4 albums per artist, 800 artists
+     */
+    static List<Audio> library(int trackCount) {
+        List<Audio> tracks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            tracks.add(track(i, "Track Title Number " + i));
+        }
+        return tracks;
+    }
+
+    private static Audio track(int i, String title) {
+        String artist = "Artist Name " + (i / 48) % 800;
+        String album = "Album Title " + i / 12;
+        return new Audio(i, "/storage/emulated/0/Music/" + artist + "/" + album + "/" + i + ".mp3",
+                title, album, artist, i / 12, 1500000000L + i);
+    }
+    @Benchmark
+    public BrowseIndex browseBuild() {
+        return new BrowseIndex.Builder().addAll(mTracks).build();
+    }
+
+    @Benchmark
+    public BrowseIndex browseRescan() {
+        // A rescan that changed one track
+        mBrowseBuilder.add(mChanged[mNextChanged++ & (mChanged.length - 1)]);
+        return mBrowseBuilder.build();
+    }
+
+    @Benchmark
+    public List<Audio> sortWithCollator() {
+        final Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.SECONDARY);
+        List<Audio> sorted = new ArrayList<>(mTracks);
+        Collections.sort(sorted, new Comparator<Audio>() {
+            @Override
+            public int compare(Audio a, Audio b) {
+                int byArtist = collator.compare(a.getArtist(), b.getArtist());
+                if (byArtist != 0) {
+                    return byArtist;
+                }
+                int byAlbum = collator.compare(a.getAlbum(), b.getAlbum());
+                return byAlbum != 0 ? byAlbum : a.getData().compareToIgnoreCase(b.getData());
+            }
+        });
+        return sorted;
+    }
+
+    @Benchmark
+    public LibraryStore storeBuild() {
+        LibraryStore.Builder builder = new LibraryStore.Builder();
+        for (int i = 0; i < mTracks.size(); i++) {
+            Audio audio = mTracks.get(i);
+            builder.add(audio.getId(), audio.getData(), audio.getTitle(), audio.getAlbum(), audio.getArtist(),
+                    audio.getAlbumId(), audio.getDateModified());
+        }
+        return builder.build();
+    }
+}
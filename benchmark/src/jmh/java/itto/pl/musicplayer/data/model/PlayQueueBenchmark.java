@@ -0,0 +1,82 @@
+package itto.pl.musicplayer.data.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Editing a large queue: {@link PlayQueue} edits against copying an array list, which is what an
+ * immutable queue shared between threads costs without structural sharing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlayQueueBenchmark {
+    @Param({"1000", "20000"})
+    public int trackCount;
+
+    private List<Audio> mTracks;
+    private PlayQueue mQueue;
+    private Audio mInserted;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mTracks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            mTracks.add(new Audio(i, "/storage/emulated/0/Music/" + i + ".mp3", "Track Title Number " + i,
+                    "Album Title " + i / 12, "Artist Name " + i / 48, i / 12, 1500000000L + i));
+        }
+        mQueue = PlayQueue.of(mTracks);
+        mInserted = new Audio(-1, "/storage/emulated/0/Music/next.mp3", "Play Next", null, null, -1, 0);
+    }
+
+    // Spreads the edits over the queue
+    private int nextIndex() {
+        mNext = (mNext + 7919) % trackCount;
+        return mNext;
+    }
+
+    @Benchmark
+    public List<Audio> copyInsert() {
+        List<Audio> copy = new ArrayList<>(mTracks);
+        copy.add(nextIndex(), mInserted);
+        return copy;
+    }
+
+    @Benchmark
+    public PlayQueue queueInsert() {
+        return mQueue.withInserted(nextIndex(), mInserted);
+    }
+
+    @Benchmark
+    public List<Audio> copyMove() {
+        List<Audio> copy = new ArrayList<>(mTracks);
+        copy.add(nextIndex(), copy.remove(nextIndex()));
+        return copy;
+    }
+
+    @Benchmark
+    public PlayQueue queueMove() {
+        return mQueue.withMoved(nextIndex(), nextIndex());
+    }
+
+    @Benchmark
+    public PlayQueue queueRemove() {
+        return mQueue.withRemoved(nextIndex());
+    }
+
+    @Benchmark
+    public Audio queueGet() {
+        return mQueue.get(nextIndex());
+    }
+}
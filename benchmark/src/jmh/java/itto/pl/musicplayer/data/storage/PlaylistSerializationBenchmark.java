@@ -0,0 +1,100 @@
+package itto.pl.musicplayer.data.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * Saving and restoring the play queue: the Gson JSON that older versions kept in SharedPreferences,
+ * still read once by StorageUtil to migrate, against the {@link PlaylistSnapshot} file that replaced it.
+ * The snapshot write includes its fsync, the JSON figures leave out the SharedPreferences commit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PlaylistSerializationBenchmark {
+    private static final Type AUDIO_LIST_TYPE = new TypeToken<ArrayList<Audio>>() {
+    }.getType();
+
+    @Param({"1000", "10000"})
+    public int trackCount;
+
+    private List<Audio> mTracks;
+    private final Gson mGson = new Gson();
+    private String mJson;
+    private File mSnapshot;
+    private File mWritten;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mTracks = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            String artist = "Artist Name " + i / 48;
+            String album = "Album Title " + i / 12;
+            mTracks.add(new Audio(i, "/storage/emulated/0/Music/" + artist + "/" + album + "/" + i + ".mp3",
+                    "Track Title Number " + i, album, artist, i / 12, 1500000000L + i));
+        }
+        mJson = mGson.toJson(mTracks);
+        mSnapshot = File.createTempFile("playlist", ".snapshot");
+        PlaylistSnapshot.write(mSnapshot, mTracks);
+        mWritten = File.createTempFile("written", ".snapshot");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSnapshot.delete();
+        mWritten.delete();
+    }
+
+    @Benchmark
+    public String gsonWrite() {
+        return mGson.toJson(mTracks);
+    }
+
+    @Benchmark
+    public List<Audio> gsonRead() {
+        return mGson.fromJson(mJson, AUDIO_LIST_TYPE);
+    }
+
+    @Benchmark
+    public File snapshotWrite() throws IOException {
+        PlaylistSnapshot.write(mWritten, mTracks);
+        return mWritten;
+    }
+
+    @Benchmark
+    public List<Audio> snapshotRead() throws IOException {
+        return PlaylistSnapshot.read(mSnapshot);
+    }
+
+    @Benchmark
+    public String snapshotReadAll() throws IOException {
+        // Views read lazily, touch every field as restoring the queue eventually does
+        List<Audio> tracks = PlaylistSnapshot.read(mSnapshot);
+        String last = null;
+        for (int i = 0; i < tracks.size(); i++) {
+            Audio audio = tracks.get(i);
+            last = audio.getData() + audio.getTitle() + audio.getArtist() + audio.getAlbum();
+        }
+        return last;
+    }
+}
@@ -0,0 +1,105 @@
+package itto.pl.musicplayer.data.library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import itto.pl.musicplayer.data.model.Audio;
+
+/**
+ * Retained heap of the scanned library held as {@code ArrayList<Audio>} against a {@link LibraryStore},
+ * with and without one {@link LibraryStore.Track} view per track as a play queue holds them.
+ * <p>
+ * Strings are created per row like a MediaStore cursor does, so equal artist names are not shared
+ * in the list. Heap readings depend on the JVM and the collector, so this is not a JMH benchmark or a
+ * unit test, run it with {@code ./gradlew :benchmark:memoryBenchmark} and compare the printed figures.
+ */
+public class LibraryStoreMemoryBenchmark {
+    private static final int[] TRACK_COUNTS = {10000, 50000, 100000};
+    private static final int ARTISTS = 800;
+    private static final int ALBUMS_PER_ARTIST = 4;
+    private static final int TRACKS_PER_ALBUM = 12;
+    private static final int MODE_LIST = 0;
+    private static final int MODE_STORE = 1;
+    private static final int MODE_VIEWS = 2;
+
+    // Keeps what is measured reachable, escape analysis would otherwise let the collector take it
+    private static Object sRetained;
+
+    public static void main(String[] args) {
+        System.out.println("tracks   ArrayList<Audio>   LibraryStore   LibraryStore+views   (bytes per track)");
+        for (int count : TRACK_COUNTS) {
+            long list = median(MODE_LIST, count);
+            long store = median(MODE_STORE, count);
+            long views = median(MODE_VIEWS, count);
+            System.out.println(String.format("%6d   %16d   %12d   %18d", count, list / count, store / count,
+                    views / count));
+        }
+    }
+
+    // Single heap readings pick up class loading and other one-off allocations, take the median of a few
+    private static long median(int mode, int count) {
+        long[] runs = new long[5];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = mode == MODE_LIST ? measureList(count) : measureStore(count, mode == MODE_VIEWS);
+        }
+        Arrays.sort(runs);
+        return runs[runs.length / 2];
+    }
+
+    private static long measureList(int count) {
+        long before = usedHeap();
+        List<Audio> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(new Audio(i, data(i), title(i), album(i), artist(i), i / TRACKS_PER_ALBUM, 1500000000L + i));
+        }
+        sRetained = list;
+        long used = usedHeap() - before;
+        sRetained = null;
+        return used;
+    }
+
+    private static long measureStore(int count, boolean views) {
+        long before = usedHeap();
+        LibraryStore.Builder builder = new LibraryStore.Builder();
+        for (int i = 0; i < count; i++) {
+            builder.add(i, data(i), title(i), album(i), artist(i), i / TRACKS_PER_ALBUM, 1500000000L + i);
+        }
+        LibraryStore store = builder.build();
+        builder = null;
+        Audio[] queue = views ? store.asList().toArray(new Audio[0]) : null;
+        sRetained = new Object[]{store, queue};
+        long used = usedHeap() - before;
+        sRetained = null;
+        return used;
+    }
+
+    // New instances on every call, as read from a cursor
+    private static String artist(int i) {
+        return new String("Artist Name " + (i / (ALBUMS_PER_ARTIST * TRACKS_PER_ALBUM)) % ARTISTS);
+    }
+
+    private static String album(int i) {
+        return new String("Album Title " + i / TRACKS_PER_ALBUM);
+    }
+
+    private static String title(int i) {
+        return "Track Title Number " + i;
+    }
+
+    private static String data(int i) {
+        return "/storage/emulated/0/Music/" + artist(i) + "/" + album(i) + "/"
+                + (i % TRACKS_PER_ALBUM + 1) + " - " + title(i) + ".mp3";
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // A single collection does not always give back everything that is unreachable
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
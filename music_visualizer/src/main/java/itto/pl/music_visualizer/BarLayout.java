@@ -0,0 +1,101 @@
+package itto.pl.music_visualizer;
+
+/**
+ * Precomputed geometry of {@link VerticalBarVisualizer}.
+ * <p>
+ * Bar positions and the sample each bar reads are computed once per size, density or capture size
+ * change. {@link #fill(byte[])} then only writes the bar tops into a reused line array that can be
+ * drawn with a single {@link android.graphics.Canvas#drawLines(float[], int, int, android.graphics.Paint)}.
+ * Plain Java so the per frame path can be checked for allocations on the JVM.
+ */
+class BarLayout {
+    private int mWidth;
+    private int mHeight;
+    private int mBarCount;
+    private int mSampleCount;
+    private int mGap;
+
+    private float mStrokeWidth;
+    private int[] mSampleIndex = new int[0];
+    // x0, y0, x1, y1 per bar, only y1 changes between frames
+    private float[] mPoints = new float[0];
+
+    /**
+     * Recompute the layout, a no-op if nothing changed
+     */
+    void update(int width, int height, int barCount, int sampleCount, int gap) {
+        if (width == mWidth && height == mHeight && barCount == mBarCount
+                && sampleCount == mSampleCount && gap == mGap) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        mBarCount = barCount;
+        mSampleCount = sampleCount;
+        mGap = gap;
+
+        float barWidth = (float) width / barCount;
+        float div = (float) sampleCount / barCount;
+        mStrokeWidth = barWidth - gap;
+        if (mSampleIndex.length != barCount) {
+            mSampleIndex = new int[barCount];
+            mPoints = new float[barCount * 4];
+        }
+        for (int i = 0; i < barCount; i++) {
+            mSampleIndex[i] = Math.min((int) Math.ceil(i * div), sampleCount - 1);
+            float barX = (i * barWidth) + (barWidth / 2);
+            int offset = i * 4;
+            mPoints[offset] = barX;
+            mPoints[offset + 1] = height;
+            mPoints[offset + 2] = barX;
+            mPoints[offset + 3] = height;
+        }
+    }
+
+    /**
+     * Write the bar tops for {@code bytes} into {@link #getPoints()}
+     *
+     * @return number of floats to draw
+     */
+    int fill(byte[] bytes) {
+        int height = mHeight;
+        float[] points = mPoints;
+        int[] sampleIndex = mSampleIndex;
+        for (int i = 0; i < mBarCount; i++) {
+            int top = height + ((byte) (Math.abs(bytes[sampleIndex[i]]) + 128)) * height / 128;
+            points[i * 4 + 3] = top;
+        }
+        return mBarCount * 4;
+    }
+
+    /**
+     * Write the bar tops for spectrum band {@code levels} in [0, 1], one band per bar
+     *
+     * @return number of floats to draw
+     */
+    int fill(float[] levels) {
+        int height = mHeight;
+        float[] points = mPoints;
+        int count = Math.min(mBarCount, levels.length);
+        for (int i = 0; i < count; i++) {
+            points[i * 4 + 3] = height - levels[i] * height;
+        }
+        return count * 4;
+    }
+
+    float[] getPoints() {
+        return mPoints;
+    }
+
+    float getStrokeWidth() {
+        return mStrokeWidth;
+    }
+
+    int getBarCount() {
+        return mBarCount;
+    }
+
+    int getSampleIndex(int bar) {
+        return mSampleIndex[bar];
+    }
+}
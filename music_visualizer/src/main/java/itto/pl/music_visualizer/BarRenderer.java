@@ -0,0 +1,36 @@
+package itto.pl.music_visualizer;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Draws the bars of {@link VerticalBarVisualizer} and {@link TextureBarVisualizer} with a
+ * {@link BarLayout}, whichever thread they draw on
+ */
+class BarRenderer {
+    static final int DEFAULT_DENSITY = 50;
+    static final int MIN_DENSITY = 10;
+    static final int MAX_DENSITY = 256;
+    static final int GAP = 4;
+
+    private final BarLayout mLayout = new BarLayout();
+
+    /**
+     * @return {@code density} limited to the number of bars that can be drawn
+     */
+    static int clampDensity(int density) {
+        return Math.max(MIN_DENSITY, Math.min(MAX_DENSITY, density));
+    }
+
+    /**
+     * @param frame  newest capture, its size picks the samples of the bars
+     * @param levels band levels of {@code frame} in spectrum mode, one per bar, null to draw the waveform
+     */
+    void draw(Canvas canvas, Paint paint, int width, int height, int density, byte[] frame, float[] levels) {
+        // No-op unless the size, density or capture size changed
+        mLayout.update(width, height, density, frame.length, GAP);
+        paint.setStrokeWidth(mLayout.getStrokeWidth());
+        int count = levels != null ? mLayout.fill(levels) : mLayout.fill(frame);
+        canvas.drawLines(mLayout.getPoints(), 0, count, paint);
+    }
+}
@@ -5,15 +5,19 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.media.audiofx.Visualizer;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.View;
 
-public abstract class BaseVisualizer extends View {
+public abstract class BaseVisualizer extends View implements VisualizerCapture.FrameListener {
     private static final String TAG = "PL_itto." + BaseVisualizer.class.getSimpleName();
     protected Paint mPaint;
+    // Frame being drawn, taken from mCapture by acquireFrame()
     protected byte[] mBytes;
-    protected Visualizer mVisualizer;
+    private final VisualizerCapture mCapture = new VisualizerCapture(this);
     protected int mColor = Color.BLUE;
+    // Turns FFT frames into band levels in spectrum mode
+    private final SpectrumLevels mSpectrum = new SpectrumLevels();
+    private boolean mAttached;
+    private boolean mPlaying = true;
 
     public BaseVisualizer(Context context) {
         this(context, null);
@@ -55,34 +59,124 @@ public abstract class BaseVisualizer extends View {
      * @param sessionId
      */
     public void setPlayer(int sessionId) {
-        try {
-            mVisualizer = new Visualizer(sessionId);
-            mVisualizer.setCaptureSize(Visualizer.getCaptureSizeRange()[1]);
-            mVisualizer.setDataCaptureListener(new Visualizer.OnDataCaptureListener() {
-                @Override
-                public void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate) {
-                    Log.d(TAG, "onWaveFormDataCapture: " + waveform.length);
-                    mBytes = waveform;
-                    invalidate();
-                }
-
-                @Override
-                public void onFftDataCapture(Visualizer visualizer, byte[] fft, int samplingRate) {
-                }
-            }, Visualizer.getMaxCaptureRate() / 2, true, false);
-            mVisualizer.setEnabled(true);
-        } catch (Exception e) {
-            Log.e(TAG, "setPlayer Error: " + e.toString());
+        mCapture.setPlayer(sessionId);
+    }
+
+    /**
+     * Stop capturing while playback is paused
+     */
+    public void setPlaying(boolean playing) {
+        mPlaying = playing;
+        updateCapture();
+    }
+
+    /**
+     * Draw the frequency spectrum instead of the waveform
+     *
+     * @param spectrum true to capture the FFT and draw band levels
+     */
+    public void setSpectrumMode(boolean spectrum) {
+        mCapture.setSpectrumMode(spectrum);
+    }
+
+    public boolean isSpectrumMode() {
+        return mCapture.isSpectrumMode();
+    }
+
+    /**
+     * @return number of frequency bands drawn in spectrum mode
+     */
+    protected int spectrumBandCount() {
+        return 32;
+    }
+
+    /**
+     * Turn an FFT frame from {@link #acquireFrame()} into band levels, called from onDraw in spectrum mode.
+     * A redraw without a new capture gets the levels of the last one.
+     *
+     * @return smoothed level of every band in [0, 1]
+     */
+    protected float[] analyzeSpectrum(byte[] fft) {
+        return mSpectrum.analyze(fft, mCapture.getSamplingRate(), spectrumBandCount(), mCapture.isNewFrame());
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        updateCapture();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mAttached = false;
+        updateCapture();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateCapture();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateCapture();
+    }
+
+    // Capture only while somebody can see the frames
+    private void updateCapture() {
+        if (mCapture != null) {
+            mCapture.setActive(mAttached && mPlaying && isShown() && getWindowVisibility() == VISIBLE);
         }
+    }
+
+    @Override
+    public void onFrameAvailable() {
+        postInvalidateOnAnimation();
+    }
+
+    /**
+     * Take the newest captured frame for drawing, called from onDraw
+     *
+     * @return the frame to draw, null if nothing was captured yet
+     */
+    protected byte[] acquireFrame() {
+        mBytes = mCapture.acquire();
+        return mBytes;
+    }
+
+    /**
+     * @return number of frames delivered by the Visualizer
+     */
+    public long getFramesCaptured() {
+        return mCapture.getFrames().getCaptured();
+    }
 
+    /**
+     * @return number of captured frames that were drawn
+     */
+    public long getFramesRendered() {
+        return mCapture.getFrames().getRendered();
+    }
 
+    /**
+     * @return number of captured frames replaced by a newer one before they could be drawn
+     */
+    public long getFramesDropped() {
+        return mCapture.getFrames().getDropped();
     }
 
+    /**
+     * Release the native Visualizer, safe to call if {@link #setPlayer(int)} failed or never ran
+     */
     public void release() {
-        mVisualizer.release();
+        mCapture.release();
     }
 
     public Visualizer getVisualizer() {
-        return mVisualizer;
+        return mCapture.getVisualizer();
     }
 }
@@ -0,0 +1,107 @@
+package itto.pl.music_visualizer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer handing captured frames from one writer thread to one reader thread.
+ * <p>
+ * The writer copies into its back buffer and swaps it with the middle one. The reader swaps the
+ * middle buffer with its front buffer only when a new frame was published, so it always gets the
+ * newest complete frame and never sees a buffer being written. A frame published while the previous
+ * one was still unread replaces it and is counted as dropped.
+ */
+class FrameExchange {
+    // Index of the middle buffer in the low bits, set when it holds a frame the reader has not taken
+    private static final int INDEX_MASK = 0x3;
+    private static final int DIRTY = 0x4;
+
+    private final byte[][] mBuffers = new byte[3][];
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // Only touched by the writer
+    private int mBack = 0;
+    // Only touched by the reader
+    private int mFront = 2;
+    private boolean mHasFrame;
+    private boolean mNewFrame;
+
+    // Single writer each, volatile so any thread can read them
+    private volatile long mCaptured;
+    private volatile long mRendered;
+    private volatile long mDropped;
+
+    FrameExchange() {
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = new byte[0];
+        }
+    }
+
+    /**
+     * Writer side: copy {@code frame} and publish it
+     *
+     * @return true if the reader had taken the previous frame, i.e. a redraw has to be requested
+     */
+    boolean publish(byte[] frame) {
+        byte[] back = mBuffers[mBack];
+        if (back.length != frame.length) {
+            // Capture size changed, the back buffer belongs to the writer until it is published
+            back = mBuffers[mBack] = new byte[frame.length];
+        }
+        System.arraycopy(frame, 0, back, 0, frame.length);
+        int previous = mMiddle.getAndSet(mBack | DIRTY);
+        mBack = previous & INDEX_MASK;
+        mCaptured++;
+        if ((previous & DIRTY) != 0) {
+            mDropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reader side: take the newest published frame
+     *
+     * @return the newest frame, the last one again if nothing new was published, null before the first
+     * frame. The array stays valid until the next call.
+     */
+    byte[] acquire() {
+        mNewFrame = (mMiddle.get() & DIRTY) != 0;
+        if (mNewFrame) {
+            int previous = mMiddle.getAndSet(mFront);
+            mFront = previous & INDEX_MASK;
+            mHasFrame = true;
+            mRendered++;
+        }
+        return mHasFrame ? mBuffers[mFront] : null;
+    }
+
+    /**
+     * Reader side
+     *
+     * @return true if the last {@link #acquire()} took a newly published frame, false if it returned
+     * the same frame again
+     */
+    boolean isNewFrame() {
+        return mNewFrame;
+    }
+
+    /**
+     * @return frames published by the writer
+     */
+    long getCaptured() {
+        return mCaptured;
+    }
+
+    /**
+     * @return frames taken by the reader
+     */
+    long getRendered() {
+        return mRendered;
+    }
+
+    /**
+     * @return frames replaced by a newer one before the reader took them
+     */
+    long getDropped() {
+        return mDropped;
+    }
+}
@@ -1,9 +1,22 @@
 package itto.pl.music_visualizer;
 
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.util.AttributeSet;
 
+/**
+ * Oscilloscope view of the waveform. Each pixel column shows the lowest and highest sample of the
+ * capture it covers, so no peak is lost when a large capture is drawn on a narrow view. In spectrum
+ * mode the band levels are drawn as a line instead.
+ */
 public class LineVisualizer extends BaseVisualizer {
+    private float mSmoothing = 1f;
+    private boolean mMirrored;
+
+    // One per mode so toggling keeps the buffers and the smoothed line of each, reused every frame
+    private final Envelope mWaveform = new Envelope();
+    private final Envelope mSpectrum = new Envelope();
 
     public LineVisualizer(Context context) {
         super(context);
@@ -23,6 +36,94 @@ public class LineVisualizer extends BaseVisualizer {
 
     @Override
     public void init() {
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeWidth(2f);
+        mPaint.setAntiAlias(true);
+    }
+
+    /**
+     * Set the width of the line in pixels, 2 by default
+     */
+    public void setStrokeWidth(float strokeWidth) {
+        mPaint.setStrokeWidth(strokeWidth);
+    }
+
+    /**
+     * Draw the envelope symmetric around the center line
+     */
+    public void setMirrored(boolean mirrored) {
+        mMirrored = mirrored;
+    }
+
+    /**
+     * Smooth the line over time
+     *
+     * @param smoothing 0 for none, up to 1 for a line that barely moves
+     */
+    public void setSmoothing(float smoothing) {
+        mSmoothing = 1f - Math.max(0f, Math.min(0.95f, smoothing));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mWaveform.resize(w);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        byte[] bytes = acquireFrame();
+        if (bytes != null) {
+            Envelope envelope;
+            if (isSpectrumMode()) {
+                float[] levels = analyzeSpectrum(bytes);
+                envelope = mSpectrum;
+                // Only reallocates when the band count changes
+                envelope.resize(levels.length);
+                for (int i = 0; i < levels.length; i++) {
+                    // Band level 0 on the bottom edge, 1 on the top edge
+                    envelope.mTargetMin[i] = envelope.mTargetMax[i] = levels[i] * 2 - 1;
+                }
+            } else {
+                envelope = mWaveform;
+                envelope.resize(getWidth());
+                WaveformDecimator.decimate(bytes, bytes.length, envelope.mColumns, envelope.mTargetMin,
+                        envelope.mTargetMax);
+                if (mMirrored) {
+                    WaveformDecimator.mirror(envelope.mTargetMin, envelope.mTargetMax, envelope.mColumns);
+                }
+            }
+            int columns = envelope.mColumns;
+            WaveformDecimator.smooth(envelope.mMin, envelope.mTargetMin, columns, mSmoothing);
+            WaveformDecimator.smooth(envelope.mMax, envelope.mTargetMax, columns, mSmoothing);
+            int count = WaveformDecimator.buildLines(envelope.mMin, envelope.mMax, columns, getWidth(), getHeight(),
+                    envelope.mLines);
+            canvas.drawLines(envelope.mLines, 0, count, mPaint);
+        }
+        super.onDraw(canvas);
+    }
+
+    /**
+     * Lowest and highest value of every column, as captured and as smoothed over time
+     */
+    private static class Envelope {
+        private int mColumns;
+        private float[] mTargetMin = new float[0];
+        private float[] mTargetMax = new float[0];
+        private float[] mMin = new float[0];
+        private float[] mMax = new float[0];
+        private float[] mLines = new float[0];
 
+        void resize(int columns) {
+            if (columns == mColumns) {
+                return;
+            }
+            mColumns = columns;
+            mTargetMin = new float[columns];
+            mTargetMax = new float[columns];
+            mMin = new float[columns];
+            mMax = new float[columns];
+            mLines = new float[WaveformDecimator.lineBufferSize(columns)];
+        }
     }
 }
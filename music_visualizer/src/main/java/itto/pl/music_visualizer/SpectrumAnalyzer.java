@@ -0,0 +1,199 @@
+package itto.pl.music_visualizer;
+
+/**
+ * Turns the FFT capture of {@link android.media.audiofx.Visualizer} into smoothed levels of log
+ * spaced frequency bands.
+ * <p>
+ * Band edges are computed once per capture size, sampling rate or band count. Every frame then only
+ * computes the bin magnitudes, takes the loudest bin of each band and applies attack/decay smoothing
+ * and peak hold, all in preallocated float arrays. Plain Java so the math can be tested on the JVM.
+ */
+public class SpectrumAnalyzer {
+    public static final float DEFAULT_MIN_FREQUENCY = 40f;
+    // Largest magnitude of a bin, both parts at -128
+    private static final float MAX_MAGNITUDE = (float) Math.sqrt(2 * 128 * 128);
+    // Magnitudes this far below the maximum are drawn as silence
+    private static final float FLOOR_DB = -60f;
+
+    private final float mMinFrequency;
+    private float mAttack = 0.6f;
+    private float mDecay = 0.15f;
+    private float mPeakDecay = 0.01f;
+
+    private int mBandCount;
+    private int mCaptureSize;
+    private int mSamplingRate;
+
+    private int[] mBandStart = new int[0];
+    private int[] mBandEnd = new int[0];
+    private float[] mMagnitudes = new float[0];
+    private float[] mLevels = new float[0];
+    private float[] mPeaks = new float[0];
+
+    public SpectrumAnalyzer(int bandCount) {
+        this(bandCount, DEFAULT_MIN_FREQUENCY);
+    }
+
+    /**
+     * @param minFrequency lower edge of the first band in Hz, the last band ends at the Nyquist frequency
+     */
+    public SpectrumAnalyzer(int bandCount, float minFrequency) {
+        mMinFrequency = minFrequency;
+        setBandCount(bandCount);
+    }
+
+    /**
+     * @param attack    share of a rise applied per frame, 1 follows the input immediately
+     * @param decay     share of a fall applied per frame
+     * @param peakDecay level units a held peak falls per frame
+     */
+    public void setSmoothing(float attack, float decay, float peakDecay) {
+        mAttack = attack;
+        mDecay = decay;
+        mPeakDecay = peakDecay;
+    }
+
+    public void setBandCount(int bandCount) {
+        if (bandCount == mBandCount) {
+            return;
+        }
+        mBandCount = bandCount;
+        mBandStart = new int[bandCount];
+        mBandEnd = new int[bandCount];
+        mLevels = new float[bandCount];
+        mPeaks = new float[bandCount];
+        if (mCaptureSize != 0) {
+            computeBandEdges(binCount(mCaptureSize), binWidth(mCaptureSize, mSamplingRate),
+                    mMinFrequency, mBandStart, mBandEnd);
+        }
+    }
+
+    /**
+     * Process one FFT capture, as delivered by {@link android.media.audiofx.Visualizer.OnDataCaptureListener#onFftDataCapture}
+     *
+     * @param samplingRate sampling rate in Hz
+     */
+    public void process(byte[] fft, int samplingRate) {
+        if (fft.length != mCaptureSize || samplingRate != mSamplingRate) {
+            configure(fft.length, samplingRate);
+        }
+        computeMagnitudes(fft, mMagnitudes);
+        for (int band = 0; band < mBandCount; band++) {
+            float magnitude = 0;
+            for (int bin = mBandStart[band]; bin < mBandEnd[band]; bin++) {
+                magnitude = Math.max(magnitude, mMagnitudes[bin]);
+            }
+            float target = toLevel(magnitude);
+            float level = mLevels[band];
+            level += (target - level) * (target > level ? mAttack : mDecay);
+            mLevels[band] = level;
+            mPeaks[band] = level >= mPeaks[band] ? level : Math.max(level, mPeaks[band] - mPeakDecay);
+        }
+    }
+
+    /**
+     * @return smoothed level of every band in [0, 1], owned by the analyzer
+     */
+    public float[] getLevels() {
+        return mLevels;
+    }
+
+    /**
+     * @return held peak of every band in [0, 1], owned by the analyzer
+     */
+    public float[] getPeaks() {
+        return mPeaks;
+    }
+
+    public int getBandCount() {
+        return mBandCount;
+    }
+
+    /**
+     * @return first FFT bin of {@code band}
+     */
+    public int getBandStart(int band) {
+        return mBandStart[band];
+    }
+
+    /**
+     * @return FFT bin after the last one of {@code band}
+     */
+    public int getBandEnd(int band) {
+        return mBandEnd[band];
+    }
+
+    private void configure(int captureSize, int samplingRate) {
+        mCaptureSize = captureSize;
+        mSamplingRate = samplingRate;
+        mMagnitudes = new float[binCount(captureSize)];
+        computeBandEdges(binCount(captureSize), binWidth(captureSize, samplingRate),
+                mMinFrequency, mBandStart, mBandEnd);
+    }
+
+    /**
+     * Bins 0 (DC) to n/2 (Nyquist) of an n byte capture
+     */
+    static int binCount(int captureSize) {
+        return captureSize / 2 + 1;
+    }
+
+    static float binWidth(int captureSize, int samplingRate) {
+        return (float) samplingRate / captureSize;
+    }
+
+    /**
+     * Split the bins into {@code start.length} bands with log spaced edges from {@code minFrequency}
+     * up to the last bin. Bands are contiguous, in order and hold at least one bin each, as long as
+     * there are enough bins above {@code minFrequency}.
+     *
+     * @param start receives the first bin of every band
+     * @param end   receives the bin after the last one of every band
+     */
+    static void computeBandEdges(int binCount, float binWidth, float minFrequency, int[] start, int[] end) {
+        int bandCount = start.length;
+        if (bandCount == 0) {
+            return;
+        }
+        // The DC bin carries no pitch, start at bin 1 at least
+        float low = Math.max(minFrequency, binWidth);
+        float high = (binCount - 1) * binWidth;
+        double ratio = Math.log(high / low) / bandCount;
+        int previousEnd = Math.max(1, (int) (low / binWidth));
+        for (int band = 0; band < bandCount; band++) {
+            int first = Math.min(previousEnd, binCount - 1);
+            double upperFrequency = low * Math.exp(ratio * (band + 1));
+            int last = (int) Math.round(upperFrequency / binWidth);
+            int bandEnd = band == bandCount - 1 ? binCount : Math.min(Math.max(last, first + 1), binCount);
+            start[band] = first;
+            end[band] = bandEnd;
+            previousEnd = bandEnd;
+        }
+    }
+
+    /**
+     * Magnitude of every bin of a Visualizer FFT capture: byte 0 is the real DC part, byte 1 the real
+     * Nyquist part, then real and imaginary parts of bins 1 to n/2 - 1
+     */
+    static void computeMagnitudes(byte[] fft, float[] magnitudes) {
+        int n = fft.length;
+        magnitudes[0] = Math.abs(fft[0]);
+        magnitudes[n / 2] = Math.abs(fft[1]);
+        for (int bin = 1; bin < n / 2; bin++) {
+            float re = fft[bin * 2];
+            float im = fft[bin * 2 + 1];
+            magnitudes[bin] = (float) Math.sqrt(re * re + im * im);
+        }
+    }
+
+    /**
+     * Map a magnitude to [0, 1] on a dB scale
+     */
+    static float toLevel(float magnitude) {
+        if (magnitude <= 0) {
+            return 0;
+        }
+        float db = 20f * (float) Math.log10(magnitude / MAX_MAGNITUDE);
+        return Math.max(0f, Math.min(1f, 1f - db / FLOOR_DB));
+    }
+}
@@ -0,0 +1,32 @@
+package itto.pl.music_visualizer;
+
+/**
+ * Band levels of the FFT captures drawn by a visualizer, shared by {@link BaseVisualizer} and
+ * {@link TextureVisualizer}. Only used on the thread that draws.
+ * <p>
+ * The band count follows the view on every call. A capture is analyzed once, drawing it again
+ * returns the same levels.
+ */
+class SpectrumLevels {
+    private SpectrumAnalyzer mAnalyzer;
+
+    /**
+     * @param samplingRate sampling rate in Hz of the capture
+     * @param newFrame     false if {@code fft} was analyzed already
+     * @return smoothed level of every band in [0, 1], owned by the analyzer
+     */
+    float[] analyze(byte[] fft, int samplingRate, int bandCount, boolean newFrame) {
+        if (mAnalyzer == null) {
+            mAnalyzer = new SpectrumAnalyzer(bandCount);
+            newFrame = true;
+        } else if (bandCount != mAnalyzer.getBandCount()) {
+            // Levels start over at the new band count
+            mAnalyzer.setBandCount(bandCount);
+            newFrame = true;
+        }
+        if (newFrame) {
+            mAnalyzer.process(fft, samplingRate);
+        }
+        return mAnalyzer.getLevels();
+    }
+}
@@ -0,0 +1,69 @@
+package itto.pl.music_visualizer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+
+/**
+ * {@link VerticalBarVisualizer} drawn on the render thread of a {@link TextureVisualizer}
+ */
+public class TextureBarVisualizer extends TextureVisualizer {
+    private volatile int mDensity = BarRenderer.DEFAULT_DENSITY;
+    // Render thread only
+    private final BarRenderer mRenderer = new BarRenderer();
+    private int mWidth;
+    private int mHeight;
+
+    public TextureBarVisualizer(Context context) {
+        super(context);
+    }
+
+    public TextureBarVisualizer(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public TextureBarVisualizer(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public TextureBarVisualizer(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+    }
+
+    @Override
+    public void init() {
+        mDensity = BarRenderer.DEFAULT_DENSITY;
+        mPaint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * Sets the density to the Bar visualizer i.e the number of bars
+     * to be displayed. Density can vary from 10 to 256.
+     * by default the value is set to 50.
+     *
+     * @param density
+     */
+    public void setDensity(int density) {
+        // Picked up by the render thread with the next frame
+        mDensity = BarRenderer.clampDensity(density);
+    }
+
+    @Override
+    protected int spectrumBandCount() {
+        // One band per bar
+        return mDensity;
+    }
+
+    @Override
+    protected void onRenderSizeChanged(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    protected void onRenderFrame(Canvas canvas, byte[] frame) {
+        mRenderer.draw(canvas, mPaint, mWidth, mHeight, mDensity, frame,
+                isSpectrumMode() ? analyzeSpectrum(frame) : null);
+    }
+}
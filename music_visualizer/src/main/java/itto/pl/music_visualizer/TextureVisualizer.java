@@ -0,0 +1,395 @@
+package itto.pl.music_visualizer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.SurfaceTexture;
+import android.media.audiofx.Visualizer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Surface;
+import android.view.TextureView;
+import android.view.View;
+
+/**
+ * {@link BaseVisualizer} variant drawing on its own render thread into a {@link TextureView}, so
+ * visualizer frames never compete with layout and input on the UI thread.
+ * <p>
+ * A captured frame schedules one Choreographer frame on the render thread, which draws the newest
+ * capture and posts it. Rendering stops while the view is detached, not visible, without a surface,
+ * or while {@link #setPlaying(boolean) playback is paused}. {@link #setColor(int)} and
+ * {@link #setPlayer(int)} work as on {@link BaseVisualizer}.
+ */
+public abstract class TextureVisualizer extends TextureView implements TextureView.SurfaceTextureListener,
+        VisualizerCapture.FrameListener {
+    private static final String TAG = "PL_itto." + TextureVisualizer.class.getSimpleName();
+
+    // Only used on the render thread once it runs
+    protected final Paint mPaint = new Paint();
+    private final SpectrumLevels mSpectrum = new SpectrumLevels();
+    private final VisualizerCapture mCapture = new VisualizerCapture(this);
+    private volatile int mColor = Color.BLUE;
+
+    // View state, main thread
+    private boolean mAttached;
+    private boolean mPlaying = true;
+
+    private HandlerThread mRenderThread;
+    private volatile Handler mRenderHandler;
+
+    // Render thread state
+    private Choreographer mChoreographer;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mSurface;
+    private int mWidth;
+    private int mHeight;
+    private boolean mRunning;
+    private boolean mFrameScheduled;
+
+    public TextureVisualizer(Context context) {
+        this(context, null);
+    }
+
+    public TextureVisualizer(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public TextureVisualizer(Context context, AttributeSet attrs, int defStyleAttr) {
+        this(context, attrs, defStyleAttr, 0);
+    }
+
+    public TextureVisualizer(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        super(context, attrs, defStyleAttr, defStyleRes);
+        // Let the layout behind show through the cleared frames
+        setOpaque(false);
+        setSurfaceTextureListener(this);
+        init();
+    }
+
+    public abstract void init();
+
+    /**
+     * Called on the render thread when the surface size changes
+     */
+    protected abstract void onRenderSizeChanged(int width, int height);
+
+    /**
+     * Called on the render thread to draw {@code frame} onto a cleared canvas
+     *
+     * @param frame newest capture, waveform or FFT depending on {@link #isSpectrumMode()}
+     */
+    protected abstract void onRenderFrame(Canvas canvas, byte[] frame);
+
+    /**
+     * Set the color to visualizer by resource id
+     *
+     * @param color
+     */
+    public void setColor(int color) {
+        mColor = color;
+    }
+
+    /**
+     * Set current MediaPlayer by the sessionID
+     *
+     * @param sessionId
+     */
+    public void setPlayer(int sessionId) {
+        mCapture.setPlayer(sessionId);
+    }
+
+    /**
+     * Stop capturing and rendering while playback is paused
+     */
+    public void setPlaying(boolean playing) {
+        mPlaying = playing;
+        updateRunning();
+    }
+
+    /**
+     * Draw the frequency spectrum instead of the waveform
+     *
+     * @param spectrum true to capture the FFT and draw band levels
+     */
+    public void setSpectrumMode(boolean spectrum) {
+        mCapture.setSpectrumMode(spectrum);
+    }
+
+    public boolean isSpectrumMode() {
+        return mCapture.isSpectrumMode();
+    }
+
+    /**
+     * @return number of frequency bands drawn in spectrum mode
+     */
+    protected int spectrumBandCount() {
+        return 32;
+    }
+
+    /**
+     * Turn an FFT frame into band levels, called from {@link #onRenderFrame} in spectrum mode.
+     * A redraw without a new capture gets the levels of the last one.
+     *
+     * @return smoothed level of every band in [0, 1]
+     */
+    protected float[] analyzeSpectrum(byte[] fft) {
+        return mSpectrum.analyze(fft, mCapture.getSamplingRate(), spectrumBandCount(), mCapture.isNewFrame());
+    }
+
+    /**
+     * @return number of frames delivered by the Visualizer
+     */
+    public long getFramesCaptured() {
+        return mCapture.getFrames().getCaptured();
+    }
+
+    /**
+     * @return number of captured frames that were drawn
+     */
+    public long getFramesRendered() {
+        return mCapture.getFrames().getRendered();
+    }
+
+    /**
+     * @return number of captured frames replaced by a newer one before they could be drawn
+     */
+    public long getFramesDropped() {
+        return mCapture.getFrames().getDropped();
+    }
+
+    /**
+     * Release the native Visualizer, safe to call if {@link #setPlayer(int)} failed or never ran
+     */
+    public void release() {
+        mCapture.release();
+    }
+
+    public Visualizer getVisualizer() {
+        return mCapture.getVisualizer();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        mRenderThread = new HandlerThread("VisualizerRender", Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Frame callbacks arrive on the thread the Choreographer belongs to
+                mChoreographer = Choreographer.getInstance();
+            }
+        });
+        updateRunning();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mAttached = false;
+        updateRunning();
+        if (!isAvailable()) {
+            quitRenderThread();
+        }
+        // Otherwise the surface is destroyed right after this, the thread quits once it released it
+        super.onDetachedFromWindow();
+    }
+
+    private void quitRenderThread() {
+        mRenderHandler = null;
+        // Runs the commands already posted first
+        mRenderThread.quitSafely();
+        mRenderThread = null;
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateRunning();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateRunning();
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(final SurfaceTexture surface, final int width, final int height) {
+        Handler handler = mRenderHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSurfaceTexture = surface;
+                mSurface = new Surface(surface);
+                resize(width, height);
+            }
+        });
+        updateRunning();
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, final int width, final int height) {
+        Handler handler = mRenderHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                resize(width, height);
+            }
+        });
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        updateRunning();
+        Handler handler = mRenderHandler;
+        if (handler == null) {
+            // The render thread is gone already, nothing draws into the texture anymore
+            return true;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseSurface();
+            }
+        });
+        if (!mAttached) {
+            quitRenderThread();
+        }
+        // Released by the render thread once it is done with it
+        return false;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    }
+
+    // Capture thread
+    @Override
+    public void onFrameAvailable() {
+        Handler handler = mRenderHandler;
+        if (handler != null) {
+            handler.post(mScheduleFrame);
+        }
+    }
+
+    private void updateRunning() {
+        boolean visible = mAttached && mPlaying && isShown() && getWindowVisibility() == VISIBLE;
+        if (mCapture != null) {
+            // Called from the super constructor before the fields are set
+            mCapture.setActive(visible);
+        }
+        final boolean running = visible && isAvailable();
+        Handler handler = mRenderHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                setRunning(running);
+            }
+        });
+    }
+
+    // Render thread
+    private void setRunning(boolean running) {
+        if (running == mRunning) {
+            return;
+        }
+        mRunning = running;
+        if (running) {
+            // Draw whatever was captured while paused
+            scheduleFrame();
+        } else if (mFrameScheduled) {
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mFrameScheduled = false;
+        }
+    }
+
+    // Render thread
+    private void scheduleFrame() {
+        if (mRunning && !mFrameScheduled && mSurface != null) {
+            mFrameScheduled = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            scheduleFrame();
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            if (mRunning && mSurface != null) {
+                drawFrame();
+            }
+        }
+    };
+
+    // Render thread
+    private void drawFrame() {
+        byte[] frame = mCapture.acquire();
+        if (frame == null) {
+            return;
+        }
+        Canvas canvas;
+        try {
+            canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    ? mSurface.lockHardwareCanvas() : mSurface.lockCanvas(null);
+        } catch (IllegalArgumentException | Surface.OutOfResourcesException e) {
+            Log.e(TAG, "drawFrame: " + e.toString());
+            return;
+        }
+        try {
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            mPaint.setColor(mColor);
+            onRenderFrame(canvas, frame);
+        } finally {
+            mSurface.unlockCanvasAndPost(canvas);
+        }
+    }
+
+    // Render thread
+    private void resize(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        onRenderSizeChanged(width, height);
+    }
+
+    // Render thread
+    private void releaseSurface() {
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+        mWidth = 0;
+        mHeight = 0;
+    }
+}
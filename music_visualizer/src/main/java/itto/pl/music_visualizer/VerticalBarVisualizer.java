@@ -4,12 +4,12 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.util.AttributeSet;
-import android.util.Log;
 
 public class VerticalBarVisualizer extends BaseVisualizer {
     private static final String TAG = "PL_itto." + VerticalBarVisualizer.class.getSimpleName();
-    private float mDensity = 50;
-    private int mGap;
+    private int mDensity = BarRenderer.DEFAULT_DENSITY;
+    // Bar positions and sample indices, rebuilt only when the size, density or capture size change
+    private final BarRenderer mRenderer = new BarRenderer();
 
     public VerticalBarVisualizer(Context context) {
         super(context);
@@ -29,8 +29,7 @@ public class VerticalBarVisualizer extends BaseVisualizer {
 
     @Override
     public void init() {
-        mDensity = 50;
-        mGap = 4;
+        mDensity = BarRenderer.DEFAULT_DENSITY;
         mPaint.setStyle(Paint.Style.FILL);
     }
 
@@ -42,28 +41,21 @@ public class VerticalBarVisualizer extends BaseVisualizer {
      * @param density
      */
     public void setDensity(int density) {
-        mDensity = density;
-        if (density > 256) {
-            mDensity = 256;
-        } else if (density < 10) {
-            mDensity = 10;
-        }
+        mDensity = BarRenderer.clampDensity(density);
+    }
+
+    @Override
+    protected int spectrumBandCount() {
+        // One band per bar
+        return mDensity;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        Log.d(TAG, "onDraw: ");
-        if (mBytes != null) {
-            float barWidth = getWidth() / mDensity;
-            float div = mBytes.length / mDensity;
-            mPaint.setStrokeWidth(barWidth - mGap);
-            for (int i = 0; i < mDensity; i++) {
-                int bytePosition = (int) Math.ceil(i * div);
-                int top = getHeight() +
-                        ((byte) (Math.abs(mBytes[bytePosition]) + 128)) * getHeight() / 128;
-                float barX = (i * barWidth) + (barWidth / 2);
-                canvas.drawLine(barX, getHeight(), barX, top, mPaint);
-            }
+        byte[] bytes = acquireFrame();
+        if (bytes != null) {
+            mRenderer.draw(canvas, mPaint, getWidth(), getHeight(), mDensity, bytes,
+                    isSpectrumMode() ? analyzeSpectrum(bytes) : null);
         }
         super.onDraw(canvas);
     }
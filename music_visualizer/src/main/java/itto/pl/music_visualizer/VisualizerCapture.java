@@ -0,0 +1,268 @@
+package itto.pl.music_visualizer;
+
+import android.media.audiofx.Visualizer;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Owns the {@link Visualizer} of a visualizer view and hands its captures to the renderer through a
+ * {@link FrameExchange}, whichever thread the renderer draws on.
+ * <p>
+ * Capturing only runs while the view is {@link #setActive(boolean) active}, i.e. attached, visible
+ * and playing. Every {@link #ADAPT_INTERVAL_MS} the share of captured frames that were actually drawn
+ * is checked: a renderer falling behind first gets a lower capture rate, then a smaller capture size,
+ * and both are raised again once it keeps up.
+ */
+class VisualizerCapture {
+    private static final String TAG = "PL_itto." + VisualizerCapture.class.getSimpleName();
+    static final long ADAPT_INTERVAL_MS = 2000;
+    // Share of captured frames drawn below which the capture is scaled down, and above which it is scaled up
+    private static final float DROP_THRESHOLD = 0.6f;
+    private static final float KEEP_UP_THRESHOLD = 0.95f;
+    // Lowest rate as a fraction of the maximum capture rate
+    private static final int MIN_RATE_DIVISOR = 8;
+
+    interface FrameListener {
+        /**
+         * Called on the capture thread when a frame was published and no redraw is pending yet
+         */
+        void onFrameAvailable();
+    }
+
+    private final FrameListener mListener;
+    // Hands captured frames over to the render thread without sharing the Visualizer's array
+    private final FrameExchange mFrames = new FrameExchange();
+    private Visualizer mVisualizer;
+    private int mSessionId;
+    private boolean mActive;
+    // Spectrum mode captures the FFT instead of the waveform
+    private volatile boolean mSpectrum;
+    private volatile int mSamplingRate;
+
+    // Capture rate in milliHertz and capture size, adapted to the frames actually drawn
+    private int mRate;
+    private int mCaptureSize;
+
+    // Render thread, start of the current adaptation window. Reset by setActive.
+    private volatile long mWindowStart;
+    private long mWindowCaptured;
+    private long mWindowRendered;
+
+    VisualizerCapture(FrameListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Capture the audio session {@code sessionId}. Binding the session already captured is a no-op,
+     * binding another one releases the previous Visualizer first.
+     */
+    synchronized void setPlayer(int sessionId) {
+        if (mVisualizer != null && sessionId == mSessionId) {
+            return;
+        }
+        releaseVisualizer();
+        mSessionId = sessionId;
+        try {
+            mVisualizer = new Visualizer(sessionId);
+            if (mRate == 0) {
+                mRate = Visualizer.getMaxCaptureRate() / 2;
+                mCaptureSize = Visualizer.getCaptureSizeRange()[1];
+            }
+            mVisualizer.setCaptureSize(mCaptureSize);
+            registerCaptureListener();
+            mVisualizer.setServerDiedListener(new Visualizer.OnServerDiedListener() {
+                @Override
+                public void onServerDied() {
+                    // The media server restarted, the native effect is gone
+                    rebind();
+                }
+            });
+            mVisualizer.setEnabled(mActive);
+        } catch (Exception e) {
+            Log.e(TAG, "setPlayer Error: " + e.toString());
+            releaseVisualizer();
+        }
+    }
+
+    /**
+     * Capture only while the frames can be seen, the Visualizer is kept but disabled otherwise
+     */
+    synchronized void setActive(boolean active) {
+        if (active == mActive) {
+            return;
+        }
+        mActive = active;
+        if (active) {
+            // Frames drawn while inactive say nothing about the budget
+            mWindowStart = 0;
+        }
+        if (mVisualizer != null) {
+            try {
+                mVisualizer.setEnabled(active);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "setActive Error: " + e.toString());
+            }
+        }
+    }
+
+    synchronized void setSpectrumMode(boolean spectrum) {
+        if (spectrum == mSpectrum) {
+            return;
+        }
+        mSpectrum = spectrum;
+        reconfigure();
+    }
+
+    boolean isSpectrumMode() {
+        return mSpectrum;
+    }
+
+    /**
+     * @return sampling rate in Hz of the last FFT capture
+     */
+    int getSamplingRate() {
+        return mSamplingRate;
+    }
+
+    /**
+     * @return capture rate in milliHertz currently requested
+     */
+    synchronized int getCaptureRate() {
+        return mRate;
+    }
+
+    /**
+     * @return capture size currently requested
+     */
+    synchronized int getCaptureSize() {
+        return mCaptureSize;
+    }
+
+    /**
+     * Take the newest captured frame for drawing, see {@link FrameExchange#acquire()}. Also where the
+     * capture is adapted to the frames the renderer manages to draw.
+     */
+    byte[] acquire() {
+        byte[] frame = mFrames.acquire();
+        long now = SystemClock.uptimeMillis();
+        if (mWindowStart == 0) {
+            startWindow(now);
+        } else if (now - mWindowStart >= ADAPT_INTERVAL_MS) {
+            adapt();
+            startWindow(now);
+        }
+        return frame;
+    }
+
+    /**
+     * @return true if the last {@link #acquire()} returned a new capture, see {@link FrameExchange#isNewFrame()}
+     */
+    boolean isNewFrame() {
+        return mFrames.isNewFrame();
+    }
+
+    FrameExchange getFrames() {
+        return mFrames;
+    }
+
+    synchronized Visualizer getVisualizer() {
+        return mVisualizer;
+    }
+
+    /**
+     * Release the native Visualizer, safe to call when none was created
+     */
+    synchronized void release() {
+        releaseVisualizer();
+    }
+
+    private void startWindow(long now) {
+        mWindowStart = now;
+        mWindowCaptured = mFrames.getCaptured();
+        mWindowRendered = mFrames.getRendered();
+    }
+
+    private synchronized void adapt() {
+        long captured = mFrames.getCaptured() - mWindowCaptured;
+        long rendered = mFrames.getRendered() - mWindowRendered;
+        if (captured == 0 || mVisualizer == null) {
+            return;
+        }
+        float drawn = (float) rendered / captured;
+        int maxRate = Visualizer.getMaxCaptureRate();
+        int[] sizeRange = Visualizer.getCaptureSizeRange();
+        int rate = mRate;
+        int size = mCaptureSize;
+        if (drawn < DROP_THRESHOLD) {
+            if (rate / 2 >= maxRate / MIN_RATE_DIVISOR) {
+                rate /= 2;
+            } else if (size / 2 >= sizeRange[0]) {
+                size /= 2;
+            }
+        } else if (drawn > KEEP_UP_THRESHOLD) {
+            // Quality first, then smoothness
+            if (size * 2 <= sizeRange[1]) {
+                size *= 2;
+            } else if (rate < maxRate) {
+                rate = Math.min(rate * 2, maxRate);
+            }
+        }
+        if (rate != mRate || size != mCaptureSize) {
+            Log.d(TAG, "adapt: " + rendered + "/" + captured + " drawn, rate " + rate + " size " + size);
+            mRate = rate;
+            mCaptureSize = size;
+            reconfigure();
+        }
+    }
+
+    private synchronized void rebind() {
+        int sessionId = mSessionId;
+        releaseVisualizer();
+        setPlayer(sessionId);
+    }
+
+    // The capture size and listener can only be changed while capturing is disabled
+    private void reconfigure() {
+        if (mVisualizer == null) {
+            return;
+        }
+        try {
+            mVisualizer.setEnabled(false);
+            mVisualizer.setCaptureSize(mCaptureSize);
+            registerCaptureListener();
+            mVisualizer.setEnabled(mActive);
+        } catch (Exception e) {
+            Log.e(TAG, "reconfigure Error: " + e.toString());
+        }
+    }
+
+    private void releaseVisualizer() {
+        if (mVisualizer != null) {
+            mVisualizer.release();
+            mVisualizer = null;
+        }
+    }
+
+    private void registerCaptureListener() {
+        mVisualizer.setDataCaptureListener(new Visualizer.OnDataCaptureListener() {
+            @Override
+            public void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate) {
+                publishFrame(waveform);
+            }
+
+            @Override
+            public void onFftDataCapture(Visualizer visualizer, byte[] fft, int samplingRate) {
+                // Delivered in milliHertz
+                mSamplingRate = samplingRate / 1000;
+                publishFrame(fft);
+            }
+        }, mRate, !mSpectrum, mSpectrum);
+    }
+
+    private void publishFrame(byte[] frame) {
+        if (mFrames.publish(frame)) {
+            // Otherwise a redraw is pending already, it will draw this newer frame
+            mListener.onFrameAvailable();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package itto.pl.music_visualizer;
+
+/**
+ * Primitive array routines turning a waveform capture into a min/max envelope per pixel column and
+ * the line coordinates drawing it. Nothing here allocates, callers own every array.
+ * <p>
+ * Waveform captures of {@link android.media.audiofx.Visualizer} are unsigned 8 bit samples centered
+ * on 128, envelope values are normalized to [-1, 1].
+ */
+public final class WaveformDecimator {
+
+    private WaveformDecimator() {
+    }
+
+    /**
+     * Reduce {@code samples} to {@code columns} columns holding the lowest and highest sample each.
+     * With more columns than samples, neighbouring columns repeat the same sample.
+     */
+    public static void decimate(byte[] samples, int sampleCount, int columns, float[] min, float[] max) {
+        for (int column = 0; column < columns; column++) {
+            int start = column * sampleCount / columns;
+            // Upsampling leaves a column without a sample of its own, it takes the one it starts on
+            int end = Math.max(start + 1, (column + 1) * sampleCount / columns);
+            int low = 255;
+            int high = 0;
+            for (int i = start; i < end; i++) {
+                int sample = samples[i] & 0xFF;
+                if (sample < low) {
+                    low = sample;
+                }
+                if (sample > high) {
+                    high = sample;
+                }
+            }
+            min[column] = (low - 128) / 128f;
+            max[column] = (high - 128) / 128f;
+        }
+    }
+
+    /**
+     * Exponential smoothing over time, {@code alpha} 1 takes {@code target} as is
+     */
+    public static void smooth(float[] current, float[] target, int count, float alpha) {
+        for (int i = 0; i < count; i++) {
+            current[i] += (target[i] - current[i]) * alpha;
+        }
+    }
+
+    /**
+     * Make the envelope symmetric around the center line, keeping the larger excursion of each column
+     */
+    public static void mirror(float[] min, float[] max, int count) {
+        for (int i = 0; i < count; i++) {
+            float peak = Math.max(Math.abs(min[i]), Math.abs(max[i]));
+            min[i] = -peak;
+            max[i] = peak;
+        }
+    }
+
+    /**
+     * Write the envelope as one polyline zigzagging from each column's min to its max, in the segment
+     * pairs {@link android.graphics.Canvas#drawLines(float[], int, int, android.graphics.Paint)} takes.
+     *
+     * @param out at least {@code (2 * count - 1) * 4} floats
+     * @return number of floats written
+     */
+    public static int buildLines(float[] min, float[] max, int count, float width, float height, float[] out) {
+        if (count == 0) {
+            return 0;
+        }
+        float columnWidth = width / count;
+        float center = height / 2;
+        float x = columnWidth / 2;
+        float y = center - min[0] * center;
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            // From the previous point down to this column's min, then up to its max
+            float yMin = center - min[i] * center;
+            float yMax = center - max[i] * center;
+            if (i > 0) {
+                out[offset++] = x - columnWidth;
+                out[offset++] = y;
+                out[offset++] = x;
+                out[offset++] = yMin;
+            }
+            out[offset++] = x;
+            out[offset++] = yMin;
+            out[offset++] = x;
+            out[offset++] = yMax;
+            y = yMax;
+            x += columnWidth;
+        }
+        return offset;
+    }
+
+    /**
+     * @return size of the {@link #buildLines} output for {@code count} columns
+     */
+    public static int lineBufferSize(int count) {
+        return count == 0 ? 0 : (2 * count - 1) * 4;
+    }
+}
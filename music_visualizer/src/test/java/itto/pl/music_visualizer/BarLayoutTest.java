@@ -0,0 +1,86 @@
+package itto.pl.music_visualizer;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the per frame path of {@link VerticalBarVisualizer} on the host JVM.
+ */
+public class BarLayoutTest {
+    private static final int FRAMES = 10000;
+
+    @Test
+    public void fill_allocatesNothingPerFrame() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        BarLayout layout = new BarLayout();
+        byte[] bytes = new byte[1024];
+        layout.update(1080, 400, 256, bytes.length, 4);
+        // Warm up so the JIT and class loading are out of the measurement
+        for (int i = 0; i < FRAMES; i++) {
+            nextFrame(bytes, i);
+            layout.fill(bytes);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        // The first read of the counter allocates itself
+        threadBean.getThreadAllocatedBytes(threadId);
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < FRAMES; i++) {
+            nextFrame(bytes, i);
+            layout.fill(bytes);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("bytes allocated over " + FRAMES + " frames", 0, allocated);
+    }
+
+    @Test
+    public void fill_matchesPerBarFormula() {
+        BarLayout layout = new BarLayout();
+        byte[] bytes = new byte[1024];
+        nextFrame(bytes, 7);
+        int width = 1000;
+        int height = 300;
+        int barCount = 50;
+        layout.update(width, height, barCount, bytes.length, 4);
+
+        int count = layout.fill(bytes);
+        assertEquals(barCount * 4, count);
+        float[] points = layout.getPoints();
+        float barWidth = (float) width / barCount;
+        for (int i = 0; i < barCount; i++) {
+            int bytePosition = (int) Math.ceil(i * ((float) bytes.length / barCount));
+            int top = height + ((byte) (Math.abs(bytes[bytePosition]) + 128)) * height / 128;
+            float barX = (i * barWidth) + (barWidth / 2);
+            assertEquals(barX, points[i * 4], 0.001f);
+            assertEquals(height, points[i * 4 + 1], 0.001f);
+            assertEquals(barX, points[i * 4 + 2], 0.001f);
+            assertEquals(top, points[i * 4 + 3], 0.001f);
+        }
+        assertEquals(barWidth - 4, layout.getStrokeWidth(), 0.001f);
+    }
+
+    @Test
+    public void update_clampsSampleIndexToCapture() {
+        BarLayout layout = new BarLayout();
+        layout.update(256, 100, 256, 128, 0);
+        for (int i = 0; i < layout.getBarCount(); i++) {
+            assertEquals(true, layout.getSampleIndex(i) < 128);
+        }
+    }
+
+    private static void nextFrame(byte[] bytes, int frame) {
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31 + frame);
+        }
+    }
+}
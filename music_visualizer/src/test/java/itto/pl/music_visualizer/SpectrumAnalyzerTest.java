@@ -0,0 +1,135 @@
+package itto.pl.music_visualizer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpectrumAnalyzerTest {
+    private static final int CAPTURE_SIZE = 1024;
+    private static final int SAMPLING_RATE = 44100;
+
+    @Test
+    public void bandEdges_areContiguousAndCoverTheSpectrum() {
+        int binCount = SpectrumAnalyzer.binCount(CAPTURE_SIZE);
+        float binWidth = SpectrumAnalyzer.binWidth(CAPTURE_SIZE, SAMPLING_RATE);
+        int[] start = new int[32];
+        int[] end = new int[32];
+        SpectrumAnalyzer.computeBandEdges(binCount, binWidth, 40f, start, end);
+
+        // The DC bin is never part of a band
+        assertEquals(Math.max(1, (int) (40f / binWidth)), start[0]);
+        assertEquals(binCount, end[31]);
+        for (int band = 0; band < 32; band++) {
+            assertTrue("band " + band + " is empty", end[band] > start[band]);
+            if (band > 0) {
+                assertEquals("gap before band " + band, end[band - 1], start[band]);
+            }
+        }
+    }
+
+    @Test
+    public void bandEdges_areLogSpaced() {
+        int binCount = SpectrumAnalyzer.binCount(8192);
+        float binWidth = SpectrumAnalyzer.binWidth(8192, SAMPLING_RATE);
+        int[] start = new int[10];
+        int[] end = new int[10];
+        SpectrumAnalyzer.computeBandEdges(binCount, binWidth, 40f, start, end);
+
+        // With enough bins every band spans about the same frequency ratio
+        double expected = Math.pow((binCount - 1) * binWidth / 40f, 1.0 / 10);
+        for (int band = 2; band < 9; band++) {
+            double ratio = (double) end[band] / start[band];
+            assertEquals("ratio of band " + band, expected, ratio, 0.05 * expected);
+        }
+    }
+
+    @Test
+    public void bandEdges_keepOneBinPerBandWhenBandsOutnumberLowBins() {
+        int binCount = SpectrumAnalyzer.binCount(128);
+        float binWidth = SpectrumAnalyzer.binWidth(128, SAMPLING_RATE);
+        int[] start = new int[20];
+        int[] end = new int[20];
+        SpectrumAnalyzer.computeBandEdges(binCount, binWidth, 40f, start, end);
+
+        for (int band = 0; band < 20; band++) {
+            assertTrue(end[band] > start[band]);
+            assertTrue(end[band] <= binCount);
+        }
+    }
+
+    @Test
+    public void magnitudes_followVisualizerLayout() {
+        byte[] fft = new byte[8];
+        fft[0] = -10; // DC
+        fft[1] = 20; // Nyquist
+        fft[2] = 3;
+        fft[3] = 4; // bin 1
+        float[] magnitudes = new float[SpectrumAnalyzer.binCount(8)];
+        SpectrumAnalyzer.computeMagnitudes(fft, magnitudes);
+
+        assertEquals(10f, magnitudes[0], 0.001f);
+        assertEquals(5f, magnitudes[1], 0.001f);
+        assertEquals(0f, magnitudes[2], 0.001f);
+        assertEquals(20f, magnitudes[4], 0.001f);
+    }
+
+    @Test
+    public void process_putsToneInItsBand() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(16);
+        analyzer.setSmoothing(1f, 1f, 1f);
+        int bin = 100;
+        analyzer.process(tone(bin, 100), SAMPLING_RATE);
+
+        float[] levels = analyzer.getLevels();
+        for (int band = 0; band < analyzer.getBandCount(); band++) {
+            boolean inBand = analyzer.getBandStart(band) <= bin && bin < analyzer.getBandEnd(band);
+            if (inBand) {
+                assertTrue(levels[band] > 0.9f);
+            } else {
+                assertEquals("band " + band, 0f, levels[band], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void process_attacksDecaysAndHoldsPeaks() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(8);
+        analyzer.setSmoothing(0.5f, 0.25f, 0.1f);
+        byte[] tone = tone(300, 127);
+        byte[] silence = new byte[CAPTURE_SIZE];
+        int band = bandOf(analyzer, tone, 300);
+        float target = SpectrumAnalyzer.toLevel(127 * (float) Math.sqrt(2));
+
+        analyzer.process(tone, SAMPLING_RATE);
+        assertEquals(target * 0.5f, analyzer.getLevels()[band], 0.001f);
+        analyzer.process(tone, SAMPLING_RATE);
+        assertEquals(target * 0.75f, analyzer.getLevels()[band], 0.001f);
+        float peak = analyzer.getPeaks()[band];
+        assertEquals(analyzer.getLevels()[band], peak, 0f);
+
+        analyzer.process(silence, SAMPLING_RATE);
+        assertEquals(target * 0.75f * 0.75f, analyzer.getLevels()[band], 0.001f);
+        // The peak falls slower than the level
+        assertEquals(peak - 0.1f, analyzer.getPeaks()[band], 0.001f);
+    }
+
+    private static int bandOf(SpectrumAnalyzer analyzer, byte[] fft, int bin) {
+        // Band edges are only known once the capture size is, probe them without touching the levels
+        SpectrumAnalyzer probe = new SpectrumAnalyzer(analyzer.getBandCount());
+        probe.process(fft, SAMPLING_RATE);
+        for (int band = 0; band < probe.getBandCount(); band++) {
+            if (probe.getBandStart(band) <= bin && bin < probe.getBandEnd(band)) {
+                return band;
+            }
+        }
+        throw new AssertionError("bin " + bin + " is in no band");
+    }
+
+    private static byte[] tone(int bin, int amplitude) {
+        byte[] fft = new byte[CAPTURE_SIZE];
+        fft[bin * 2] = (byte) amplitude;
+        fft[bin * 2 + 1] = (byte) amplitude;
+        return fft;
+    }
+}
@@ -0,0 +1,42 @@
+package itto.pl.music_visualizer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpectrumLevelsTest {
+    private static final int SAMPLING_RATE = 44100;
+
+    private static byte[] loudFrame() {
+        byte[] fft = new byte[1024];
+        for (int i = 2; i < fft.length; i++) {
+            fft[i] = 100;
+        }
+        return fft;
+    }
+
+    @Test
+    public void analyze_reusesTheLevelsOfAFrameDrawnAgain() {
+        SpectrumLevels spectrum = new SpectrumLevels();
+        byte[] fft = loudFrame();
+        float first = spectrum.analyze(fft, SAMPLING_RATE, 32, true)[10];
+        assertTrue(first > 0);
+
+        // Smoothing would move the level again if the frame was processed twice
+        assertEquals(first, spectrum.analyze(fft, SAMPLING_RATE, 32, false)[10], 0f);
+        assertTrue(spectrum.analyze(fft, SAMPLING_RATE, 32, true)[10] > first);
+    }
+
+    @Test
+    public void analyze_followsTheBandCount() {
+        SpectrumLevels spectrum = new SpectrumLevels();
+        byte[] fft = loudFrame();
+        assertEquals(32, spectrum.analyze(fft, SAMPLING_RATE, 32, true).length);
+
+        float[] levels = spectrum.analyze(fft, SAMPLING_RATE, 50, false);
+        assertEquals(50, levels.length);
+        // Analyzed again at the new band count, not drawn empty
+        assertTrue(levels[10] > 0);
+    }
+}